@@ -0,0 +1,416 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Keeps track of the entries written to an archive, so writing it can continue after a failure or after the JVM was killed
+ * without compressing the entries in the archive again.
+ *
+ * The journal is a sequence of records, every record lists the entries written since the previous one and ends with a checkpoint:
+ * the size of the archive after those entries. The archive is written ahead of the journal, so only the last checkpoint within
+ * the size of the archive found is used: the archive is cut back to it and the remaining files are appended from there.
+ * Every record carries a checksum, a record torn when the JVM was killed ends the journal.
+ * The last record tells if the archive was completed, the original files may not all be removed yet in that case.
+ */
+public class ArchiveJournal implements Closeable {
+
+  private static final int MAGIC = 0x41524a4c; // ARJL
+  private static final int VERSION = 2;
+
+  private static final byte RECORD_START = 1;
+  private static final byte RECORD_CHECKPOINT = 2;
+  private static final byte RECORD_COMPLETE = 3;
+
+  /**
+   * A source file written to the archive.
+   */
+  public static class Entry {
+    private String source;
+    private long size;
+    private long lastModified;
+    private ParallelZipCreator.WrittenEntry zipEntry;
+    private byte[] digest;
+
+    /**
+     * @param file The source file as it was found, with its digest if it was calculated
+     * @param zipEntry The central directory data of the file in a ZIP archive, null for other archives
+     */
+    public Entry(SourceFile file, ParallelZipCreator.WrittenEntry zipEntry) {
+      this(file.getFile().getName().getURI(), file.getSize(), file.getLastModifiedTime(), zipEntry, file.getDigest());
+    }
+
+    private Entry(String source, long size, long lastModified, ParallelZipCreator.WrittenEntry zipEntry, byte[] digest) {
+      this.source = source;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.zipEntry = zipEntry;
+      this.digest = digest;
+    }
+
+    /**
+     * @return The URI of the source file
+     */
+    public String getSource() {
+      return source;
+    }
+
+    /**
+     * @return The size of the source file when it was written to the archive
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return The modification time of the source file in ms when it was written to the archive
+     */
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public ParallelZipCreator.WrittenEntry getZipEntry() {
+      return zipEntry;
+    }
+
+    /**
+     * @return The digest of the file calculated when it was written to the archive, null if it wasn't calculated
+     */
+    public byte[] getDigest() {
+      return digest;
+    }
+
+    /**
+     * @return true if the file is the one written to the archive: same name, same size and same modification time
+     */
+    public boolean isSameFile(SourceFile file) {
+      return size==file.getSize() && lastModified==file.getLastModifiedTime() && source.equals(file.getFile().getName().getURI());
+    }
+  }
+
+  private Path journalFile;
+  private long checkpointInterval;
+
+  private String targetFile;
+  private List<Entry> entries;
+  private List<long[]> checkpoints;
+  private long offset;
+  private boolean complete;
+
+  private DataOutputStream out;
+
+  /**
+   * @param journalFile The journal of the archive of a generation, there is at most one archive of a generation being written
+   * @param checkpointInterval The minimum number of bytes written to the archive between two checkpoints
+   */
+  public ArchiveJournal(Path journalFile, long checkpointInterval) {
+    this.journalFile = journalFile;
+    this.checkpointInterval = checkpointInterval;
+    entries = new ArrayList<Entry>();
+    checkpoints = new ArrayList<long[]>();
+  }
+
+  /**
+   * Reads the journal left behind by a previous run.
+   *
+   * @return true if there is a previous archive, see {@link #isComplete()} and {@link #rollBack(long)}
+   */
+  public boolean load() throws IOException {
+    targetFile = null;
+    entries.clear();
+    checkpoints.clear();
+    offset = 0L;
+    complete = false;
+
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile.toFile()), 64*1024));
+    } catch(FileNotFoundException e) {
+      return false;
+    }
+    try {
+      if (in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+        return false;
+      }
+      DataInputStream record;
+      while ((record=readRecord(in))!=null) {
+        byte type = record.readByte();
+        if (type==RECORD_START) {
+          targetFile = record.readUTF();
+        } else if (targetFile==null) {
+          break;
+        }
+        int nrEntries = record.readInt();
+        for (int i=0;i<nrEntries;i++) {
+          entries.add(readEntry(record));
+        }
+        offset = record.readLong();
+        checkpoints.add(new long[] { offset, entries.size() });
+        complete = type==RECORD_COMPLETE;
+      }
+    } catch(EOFException e) {
+      // Cut off in the header: nothing to continue with
+    } finally {
+      in.close();
+    }
+    return targetFile!=null;
+  }
+
+  /**
+   * @return The next record or null at the end of the journal or at a torn record
+   */
+  private DataInputStream readRecord(DataInputStream in) throws IOException {
+    byte[] record;
+    try {
+      int length = in.readInt();
+      if (length<=0 || length>64*1024*1024) {
+        return null;
+      }
+      record = new byte[length];
+      in.readFully(record);
+      if (in.readInt()!=XXHash32.hash(record, 0, length)) {
+        return null;
+      }
+    } catch(EOFException e) {
+      return null;
+    }
+    return new DataInputStream(new ByteArrayInputStream(record));
+  }
+
+  private Entry readEntry(DataInputStream in) throws IOException {
+    String source = in.readUTF();
+    long size = in.readLong();
+    long lastModified = in.readLong();
+    ParallelZipCreator.WrittenEntry zipEntry = null;
+    if (in.readBoolean()) {
+      zipEntry = new ParallelZipCreator.WrittenEntry(in.readUTF(), in.readLong(), in.readInt(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+    byte[] digest = null;
+    int digestLength = in.readUnsignedByte();
+    if (digestLength>0) {
+      digest = new byte[digestLength];
+      in.readFully(digest);
+    }
+    return new Entry(source, size, lastModified, zipEntry, digest);
+  }
+
+  private void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+    out.writeUTF(entry.source);
+    out.writeLong(entry.size);
+    out.writeLong(entry.lastModified);
+    ParallelZipCreator.WrittenEntry zipEntry = entry.zipEntry;
+    out.writeBoolean(zipEntry!=null);
+    if (zipEntry!=null) {
+      out.writeUTF(zipEntry.getName());
+      out.writeLong(zipEntry.getLastModified());
+      out.writeInt(zipEntry.getMethod());
+      out.writeLong(zipEntry.getCrc());
+      out.writeLong(zipEntry.getSize());
+      out.writeLong(zipEntry.getCompressedSize());
+      out.writeLong(zipEntry.getOffset());
+    }
+    if (entry.digest!=null) {
+      out.writeByte(entry.digest.length);
+      out.write(entry.digest);
+    } else {
+      out.writeByte(0);
+    }
+  }
+
+  /**
+   * Goes back to the last checkpoint the archive reaches, the entries after it need to be written again.
+   *
+   * @param archiveLength The size of the archive left behind
+   * @return false if the archive doesn't even reach the first checkpoint
+   */
+  public boolean rollBack(long archiveLength) {
+    for (int i=checkpoints.size()-1;i>=0;i--) {
+      long[] checkpoint = checkpoints.get(i);
+      if (checkpoint[0]<=archiveLength) {
+        offset = checkpoint[0];
+        entries = new ArrayList<Entry>(entries.subList(0, (int)checkpoint[1]));
+        checkpoints = new ArrayList<long[]>(checkpoints.subList(0, i+1));
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Starts the journal of a new archive, the journal of a previous archive is replaced.
+   */
+  public void start(String targetFile) throws IOException {
+    this.targetFile = targetFile;
+    entries.clear();
+    checkpoints.clear();
+    offset = 0L;
+    complete = false;
+    restart();
+  }
+
+  /**
+   * Rewrites the journal with the entries up to the checkpoint rolled back to, see {@link #rollBack(long)}.
+   * The new journal replaces the previous one in one go, so there is always a journal to continue from.
+   */
+  public void restart() throws IOException {
+    close();
+    Path newJournalFile = journalFile.resolveSibling(journalFile.getFileName()+".new");
+    DataOutputStream newJournal = new DataOutputStream(new FileOutputStream(newJournalFile.toFile()));
+    try {
+      newJournal.writeInt(MAGIC);
+      newJournal.writeInt(VERSION);
+      writeRecord(newJournal, RECORD_START, entries, offset);
+      newJournal.close();
+    } finally {
+      IOUtils.closeQuietly(newJournal);
+    }
+    try {
+      Files.move(newJournalFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch(AtomicMoveNotSupportedException e) {
+      Files.move(newJournalFile, journalFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+    out = new DataOutputStream(new FileOutputStream(journalFile.toFile(), true));
+  }
+
+  /**
+   * @param archiveOffset The current size of the archive
+   * @return true if enough was written to the archive since the previous checkpoint
+   */
+  public boolean isCheckpointDue(long archiveOffset) {
+    return archiveOffset-offset>=checkpointInterval;
+  }
+
+  /**
+   * Records the entries written since the previous checkpoint. The journal is handed to the operating system,
+   * so it survives the JVM being killed.
+   *
+   * @param newEntries The entries written since the previous checkpoint
+   * @param archiveOffset The size of the archive after the entries: the position to continue from
+   */
+  public void checkpoint(List<Entry> newEntries, long archiveOffset) throws IOException {
+    writeRecord(out, RECORD_CHECKPOINT, newEntries, archiveOffset);
+    entries.addAll(newEntries);
+    offset = archiveOffset;
+  }
+
+  /**
+   * Records that the archive was closed successfully, only the original files remain to be removed.
+   *
+   * @param newEntries The entries written since the previous checkpoint
+   * @param archiveOffset The size of the archive
+   */
+  public void complete(List<Entry> newEntries, long archiveOffset) throws IOException {
+    writeRecord(out, RECORD_COMPLETE, newEntries, archiveOffset);
+    entries.addAll(newEntries);
+    offset = archiveOffset;
+    complete = true;
+  }
+
+  private void writeRecord(DataOutputStream out, byte type, List<Entry> recordEntries, long archiveOffset) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(type);
+    if (type==RECORD_START) {
+      record.writeUTF(targetFile);
+    }
+    record.writeInt(recordEntries.size());
+    for (Entry entry : recordEntries) {
+      writeEntry(record, entry);
+    }
+    record.writeLong(archiveOffset);
+    record.close();
+
+    // One write per record, a record is never mixed up with the next one
+    //
+    byte[] data = bytes.toByteArray();
+    ByteArrayOutputStream framed = new ByteArrayOutputStream(data.length+8);
+    DataOutputStream frame = new DataOutputStream(framed);
+    frame.writeInt(data.length);
+    frame.write(data);
+    frame.writeInt(XXHash32.hash(data, 0, data.length));
+    frame.close();
+    framed.writeTo(out);
+    out.flush();
+  }
+
+  /**
+   * @return The files which are not in the archive yet, a file changed since it was written to the archive is written again
+   */
+  public List<SourceFile> getMissingFiles(List<SourceFile> files) {
+    Map<String, Entry> written = new HashMap<String, Entry>();
+    for (Entry entry : entries) {
+      written.put(entry.source, entry);
+    }
+    List<SourceFile> missingFiles = new ArrayList<SourceFile>();
+    for (SourceFile file : files) {
+      Entry entry = written.get(file.getFile().getName().getURI());
+      if (entry==null || !entry.isSameFile(file)) {
+        missingFiles.add(file);
+      }
+    }
+    return missingFiles;
+  }
+
+  /**
+   * @return The archive the journal is about
+   */
+  public String getTargetFile() {
+    return targetFile;
+  }
+
+  /**
+   * @return The entries in the archive up to the last checkpoint
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return The size of the archive at the last checkpoint
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return true if the archive was closed successfully
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  public void close() throws IOException {
+    if (out!=null) {
+      DataOutputStream journal = out;
+      out = null;
+      journal.close();
+    }
+  }
+
+  /**
+   * Removes the journal once the archive is complete and the original files are removed.
+   */
+  public void delete() throws IOException {
+    close();
+    Files.deleteIfExists(journalFile);
+  }
+}
@@ -1,28 +1,56 @@
 package org.pentaho.di.trans.steps.archiver;
 
-import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Deflater;
 
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.Selectors;
 import org.apache.commons.vfs.provider.local.LocalFile;
 import org.pentaho.di.core.Const;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleFileException;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.vfs.KettleVFS;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
@@ -32,10 +60,14 @@ import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
+import org.tukaani.xz.XZInputStream;
 
 public class Archiver extends BaseStep implements StepInterface {
 
   private static Class<?> PKG = Archiver.class;
+  
+  /** The time in ms between two looks at the watched folders in watch mode */
+  private static final long WATCH_POLL_INTERVAL = 250L;
  
   private ArchiverMeta meta;
   private ArchiverData data;
@@ -55,6 +87,62 @@ public class Archiver extends BaseStep implements StepInterface {
     }
   }
 
+  /**
+   * A file found in a generation folder together with the (possibly still running) work done on it.
+   */
+  private static class HandledFile {
+    private SourceFile file;
+    private ArchiveType archiveType;
+    private Future<Void> future;
+    private Exception exception;
+    
+    private HandledFile(SourceFile file) {
+      this.file = file;
+    }
+    
+    private boolean isDone() {
+      return future==null || future.isDone();
+    }
+    
+    private void waitUntilDone() throws Exception {
+      if (exception!=null) {
+        throw exception;
+      }
+      if (future!=null) {
+        try {
+          future.get();
+        } catch(ExecutionException e) {
+          if (e.getCause() instanceof Exception) {
+            throw (Exception)e.getCause();
+          }
+          throw e;
+        }
+      }
+    }
+  }
+  
+  /**
+   * Compresses a single file to the target folder in one of the compression threads.
+   */
+  private class CompressionTask implements Callable<Void> {
+    private ArchiverGeneration generation;
+    private ArchiverGenerationData generationData;
+    private SourceFile file;
+    private String targetFolder;
+    
+    private CompressionTask(ArchiverGeneration generation, ArchiverGenerationData generationData, SourceFile file, String targetFolder) {
+      this.generation = generation;
+      this.generationData = generationData;
+      this.file = file;
+      this.targetFolder = targetFolder;
+    }
+    
+    public Void call() throws Exception {
+      compressFile(generation, generationData, file, targetFolder);
+      return null;
+    }
+  }
+
   public Archiver(StepMeta stepMeta, StepDataInterface stepDataInterface, int copyNr, TransMeta transMeta, Trans trans) {
     super(stepMeta, stepDataInterface, copyNr, transMeta, trans);
   }
@@ -65,214 +153,1228 @@ public class Archiver extends BaseStep implements StepInterface {
     meta = (ArchiverMeta) smi;
     data = (ArchiverData) sdi;
     
+    if (meta.isReadingFilenamesFromInput()) {
+      return processInputRow();
+    }
+    if (meta.isWatching()) {
+      return watchGenerations();
+    }
+    
     data.outputRowMeta = new RowMeta();
     meta.getFields(data.outputRowMeta, getStepname(), null, null, this);
     
     ArchiverMeta meta = (ArchiverMeta)smi;
     
     try {
+      int nrGenerationThreads = Math.min(meta.getNrGenerationThreads(this), meta.getMaxCompressionThreads(this));
+      if (nrGenerationThreads>1 && meta.getGenerations().size()>1) {
+        handleGenerationsInParallel(meta.getGenerations(), nrGenerationThreads);
+      } else {
+        List<ArchiverGeneration> generations = meta.getGenerations();
+        for (int i=0;i<generations.size();i++) {
+          // A generation working on the folders of an earlier one waits until the archive of that one is verified
+          //
+          for (int j=0;j<i;j++) {
+            if (generations.get(i).dependsOn(generations.get(j), this)) {
+              awaitVerification(generations.get(j));
+            }
+          }
+          handleGeneration(generations.get(i));
+        }
+      }
+      awaitVerifications();
+      
+      // Show how well the deflaters and buffers were reused
+      //
+      logBasic(BaseMessages.getString(PKG, "Archiver.Log.CodecPoolStatistics", data.codecPool.toString()));
+      
+      setOutputDone();
+      return false;
+    } catch(Exception e) {
+      throw new KettleException(e);
+    }
+    
+  }
+
+  /**
+   * Archives the file named in the next input row right away. Files going to an archive are collected in batches per generation,
+   * a batch is written as soon as it is complete or when its first file waited for the flush interval, also while no rows arrive.
+   * The remaining batches are written after the last row.
+   */
+  private boolean processInputRow() throws KettleException {
+    if (data.inputGenerations!=null) {
+      awaitInputRow();
+    }
+    Object[] row = getRow();
+    if (row==null) {
+      if (data.inputGenerations!=null) {
+        for (ArchiverGeneration generation : data.inputGenerations.keySet()) {
+          archiveBatch(generation, data.inputGenerations.get(generation));
+        }
+      }
+      awaitVerifications();
+      logBasic(BaseMessages.getString(PKG, "Archiver.Log.CodecPoolStatistics", data.codecPool.toString()));
+      setOutputDone();
+      return false;
+    }
+    
+    if (first) {
+      first = false;
+      
+      data.outputRowMeta = getInputRowMeta().clone();
+      meta.getFields(data.outputRowMeta, getStepname(), null, null, this);
+      
+      String fieldName = environmentSubstitute(meta.getInputFilenameField());
+      data.inputFilenameIndex = getInputRowMeta().indexOfValue(fieldName);
+      if (data.inputFilenameIndex<0) {
+        throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.InputFilenameFieldNotFound", fieldName));
+      }
+      
+      // The generations are kept open for the whole input, ordered the way they are configured.
+      //
+      data.inputGenerations = new LinkedHashMap<ArchiverGeneration, ArchiverGenerationData>();
       for (ArchiverGeneration generation : meta.getGenerations()) {
-        handleGeneration(generation);
+        ArchiverGenerationData generationData = createGenerationData(generation);
+        generationData.sourceFolder = KettleVFS.getFileObject(environmentSubstitute(generation.getSourceFolder())).getName();
+        generationData.selection = generation.getFileSelection(this, null);
+        data.inputGenerations.put(generation, generationData);
+      }
+    }
+    
+    String filename = getInputRowMeta().getString(row, data.inputFilenameIndex);
+    HandledFile handledFile = null;
+    ArchiverGeneration generation = null;
+    ArchiverGenerationData generationData = null;
+    try {
+      FileObject file = KettleVFS.getFileObject(filename);
+      
+      // The first generation picking up the file in a folder scan gets it
+      //
+      for (ArchiverGeneration candidate : data.inputGenerations.keySet()) {
+        ArchiverGenerationData candidateData = data.inputGenerations.get(candidate);
+        if (candidateData.selection.isFileSelected(candidateData.sourceFolder, file.getName())) {
+          generation = candidate;
+          generationData = candidateData;
+          break;
+        }
       }
+      
+      handledFile = new HandledFile(SourceFile.fromFileObject(file));
+      if (generation==null) {
+        handledFile.archiveType = ArchiveType.IGNORE;
+      } else {
+        handledFile.archiveType = archiveFile(generation, generationData, handledFile.file);
+        handleArchiving(generation, generationData, handledFile.file, handledFile.archiveType);
+      }
+    } catch(Exception e) {
+      if (handledFile==null) {
+        handledFile = new HandledFile(null);
+        handledFile.archiveType = ArchiveType.IGNORE;
+      }
+      handledFile.exception = e;
+    }
+    passHandledFile(generationData, handledFile, row, filename);
+    
+    if (handledFile.archiveType==ArchiveType.ARCHIVE && generationData.files.size()==1) {
+      generationData.batchStartTime = System.currentTimeMillis();
+    }
+    if (generation!=null && generationData.files.size()>=meta.getInputBatchSize(this)) {
+      archiveBatch(generation, generationData);
+    }
+    archiveDueInputBatches();
+    return true;
+  }
+  
+  /**
+   * Waits until a row can be read without blocking while batches are collected, so a batch waiting for rows which don't come
+   * is still written after the flush interval. The rows are left in the row sets for getRow().
+   */
+  private void awaitInputRow() throws KettleException {
+    while (!isStopped() && !isInputRowAvailable()) {
+      boolean collecting = false;
+      for (ArchiverGenerationData generationData : data.inputGenerations.values()) {
+        collecting |= !generationData.files.isEmpty();
+      }
+      if (!collecting) {
+        return;
+      }
+      archiveDueInputBatches();
+      try {
+        Thread.sleep(WATCH_POLL_INTERVAL);
+      } catch(InterruptedException e) {
+        return;
+      }
+    }
+  }
+  
+  private boolean isInputRowAvailable() {
+    for (RowSet rowSet : getInputRowSets()) {
+      if (rowSet.size()>0 || rowSet.isDone()) {
+        return true;
+      }
+    }
+    return getInputRowSets().isEmpty();
+  }
+  
+  /**
+   * Writes the input batches of which the first file waited for the flush interval.
+   */
+  private void archiveDueInputBatches() throws KettleException {
+    long flushInterval = meta.getWatchFlushInterval(this);
+    long now = System.currentTimeMillis();
+    for (ArchiverGeneration generation : data.inputGenerations.keySet()) {
+      ArchiverGenerationData generationData = data.inputGenerations.get(generation);
+      if (!generationData.files.isEmpty() && now-generationData.batchStartTime>=flushInterval) {
+        archiveBatch(generation, generationData);
+      }
+    }
+  }
+  
+  /**
+   * Keeps running until the transformation is stopped: the source folders are watched and every file is handled as soon as
+   * it is old enough. Files for an archive are written in batches, when a batch is complete or when its first file waited
+   * for the flush interval. The files collected when the transformation is stopped are still archived.
+   */
+  private boolean watchGenerations() throws KettleException {
+    data.outputRowMeta = new RowMeta();
+    meta.getFields(data.outputRowMeta, getStepname(), null, null, this);
+    
+    Map<ArchiverGeneration, ArchiverGenerationData> generations = new LinkedHashMap<ArchiverGeneration, ArchiverGenerationData>();
+    Map<ArchiverGeneration, FolderWatcher> watchers = new HashMap<ArchiverGeneration, FolderWatcher>();
+    try {
+      for (ArchiverGeneration generation : meta.getGenerations()) {
+        ArchiverGenerationData generationData = createGenerationData(generation);
+        generationData.sourceFolder = KettleVFS.getFileObject(environmentSubstitute(generation.getSourceFolder())).getName();
+        generations.put(generation, generationData);
+        FolderWatcher watcher = generation.watchFiles(this);
+        watchers.put(generation, watcher);
+        logBasic(BaseMessages.getString(PKG, "Archiver.Log.WatchStarted", generation.getSourceFolder(), Integer.toString(watcher.getNrWaitingFiles())));
+      }
+      
+      int batchSize = meta.getInputBatchSize(this);
+      long flushInterval = meta.getWatchFlushInterval(this);
+      while (!isStopped()) {
+        for (ArchiverGeneration generation : generations.keySet()) {
+          ArchiverGenerationData generationData = generations.get(generation);
+          FolderWatcher watcher = watchers.get(generation);
+          if (watcher.poll()) {
+            logBasic(BaseMessages.getString(PKG, "Archiver.Log.WatchOverflow", generation.getSourceFolder()));
+          }
+          
+          long now = System.currentTimeMillis();
+          for (SourceFile file : watcher.takeDueFiles(now)) {
+            if (isStopped()) {
+              break;
+            }
+            if (!isHandledByThisCopy(generationData, file)) {
+              continue;
+            }
+            if (isCollected(generationData, file)) {
+              // Changed and handed out again while it waits for its archive
+              continue;
+            }
+            HandledFile handledFile = new HandledFile(file);
+            try {
+              handledFile.archiveType = archiveFile(generation, generationData, file);
+              handleArchiving(generation, generationData, file, handledFile.archiveType);
+            } catch(Exception e) {
+              handledFile.exception = e;
+            }
+            passHandledFile(generationData, handledFile);
+            if (handledFile.archiveType==ArchiveType.ARCHIVE && generationData.files.size()==1) {
+              generationData.batchStartTime = now;
+            }
+          }
+          
+          if (!generationData.files.isEmpty() && (generationData.files.size()>=batchSize || now-generationData.batchStartTime>=flushInterval)) {
+            archiveBatch(generation, generationData);
+          }
+        }
+        
+        try {
+          Thread.sleep(WATCH_POLL_INTERVAL);
+        } catch(InterruptedException e) {
+          break;
+        }
+      }
+      
+      for (ArchiverGeneration generation : generations.keySet()) {
+        archiveBatch(generation, generations.get(generation));
+      }
+      awaitVerifications();
+      logBasic(BaseMessages.getString(PKG, "Archiver.Log.CodecPoolStatistics", data.codecPool.toString()));
+      
       setOutputDone();
       return false;
+    } catch(KettleException e) {
+      throw e;
     } catch(Exception e) {
       throw new KettleException(e);
+    } finally {
+      for (FolderWatcher watcher : watchers.values()) {
+        try {
+          watcher.close();
+        } catch(IOException e) {
+          // Only releases the watch service, nothing to report
+        }
+      }
+    }
+  }
+  
+  private boolean isCollected(ArchiverGenerationData generationData, SourceFile file) {
+    for (SourceFile collected : generationData.files) {
+      if (collected.getFile().equals(file.getFile())) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Writes the files collected for an archive so far to a new archive.
+   */
+  private void archiveBatch(ArchiverGeneration generation, ArchiverGenerationData generationData) throws KettleException {
+    if (generationData.files.isEmpty()) {
+      return;
+    }
+    try {
+      generationData.archiveNr++;
+      archiveFiles(generation, generationData, generationData.files);
+      generationData.files.clear();
+    } catch(Exception e) {
+      throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.UnableToHandleGenerationSourcingFrom", generation.getSourceFolder()), e);
+    }
+  }
+
+  @Override
+  public boolean init(StepMetaInterface smi, StepDataInterface sdi) {
+    meta = (ArchiverMeta) smi;
+    data = (ArchiverData) sdi;
+    
+    if (!super.init(smi, sdi)) {
+      return false;
+    }
+    
+    // The rate limits of the step are shared by all generations and threads
+    //
+    long readRateLimit = meta.getReadRateLimit(this);
+    if (readRateLimit>0) {
+      data.readRateLimiter = new RateLimiter(readRateLimit, null);
+    }
+    long writeRateLimit = meta.getWriteRateLimit(this);
+    if (writeRateLimit>0) {
+      data.writeRateLimiter = new RateLimiter(writeRateLimit, null);
+    }
+    
+    // The share of the CPU cores is capped for the step as a whole, whichever pool the compression runs in
+    //
+    int maxCompressionThreads = meta.getMaxCompressionThreads(this);
+    if (maxCompressionThreads<Integer.MAX_VALUE) {
+      data.compressionPermits = new Semaphore(maxCompressionThreads, true);
     }
+    return true;
+  }
+
+  @Override
+  public void dispose(StepMetaInterface smi, StepDataInterface sdi) {
+    data = (ArchiverData) sdi;
     
+    if (data.blockCompressionPool!=null) {
+      data.blockCompressionPool.shutdownNow();
+      data.blockCompressionPool = null;
+    }
+    if (data.ioThreads!=null) {
+      data.ioThreads.shutdownNow();
+      data.ioThreads = null;
+      data.copier = null;
+    }
+    if (data.deletePool!=null) {
+      data.deletePool.shutdownNow();
+      data.deletePool = null;
+    }
+    if (data.verificationPool!=null) {
+      // The originals of an archive not verified yet are simply kept
+      //
+      data.verificationPool.shutdownNow();
+      data.verificationPool = null;
+    }
+    
+    super.dispose(smi, sdi);
+  }
+
+  /**
+   * Handles independent generations at the same time. A generation which depends on generations configured before it
+   * (it reads from their source or target folder or writes into their source folder) only starts once those are done.
+   */
+  private void handleGenerationsInParallel(final List<ArchiverGeneration> generations, int nrThreads) throws Exception {
+    
+    // Which earlier generations does each generation need to wait for?
+    //
+    List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+    for (int i=0;i<generations.size();i++) {
+      Set<Integer> generationDependencies = new HashSet<Integer>();
+      for (int j=0;j<i;j++) {
+        if (generations.get(i).dependsOn(generations.get(j), this)) {
+          generationDependencies.add(j);
+        }
+      }
+      dependencies.add(generationDependencies);
+    }
+    
+    ExecutorService generationPool = Executors.newFixedThreadPool(nrThreads);
+    CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(generationPool);
+    boolean[] started = new boolean[generations.size()];
+    try {
+      int nrDone = 0;
+      while (nrDone<generations.size()) {
+        // Start every generation of which all dependencies are done
+        //
+        for (int i=0;i<generations.size();i++) {
+          if (!started[i] && dependencies.get(i).isEmpty()) {
+            final int generationNr = i;
+            completionService.submit(new Callable<Integer>() {
+              public Integer call() throws Exception {
+                handleGeneration(generations.get(generationNr));
+                awaitVerification(generations.get(generationNr));
+                return generationNr;
+              }
+            });
+            started[i] = true;
+          }
+        }
+        
+        int generationNr;
+        try {
+          generationNr = completionService.take().get();
+        } catch(ExecutionException e) {
+          if (e.getCause() instanceof KettleException) {
+            throw (KettleException)e.getCause();
+          }
+          throw new KettleException(e.getCause());
+        }
+        nrDone++;
+        for (Set<Integer> generationDependencies : dependencies) {
+          generationDependencies.remove(generationNr);
+        }
+      }
+    } finally {
+      generationPool.shutdownNow();
+    }
   }
 
   private void handleGeneration(ArchiverGeneration generation) throws KettleException {
+    ExecutorService compressionPool = null;
+    Iterator<SourceFile> files = null;
     try {
       // Reset for this generation...
       //
-      data.fileNr = 0;
-      data.files = new ArrayList<FileObject>();
+      ArchiverGenerationData generationData = createGenerationData(generation);
+      generationData.sourceFolder = KettleVFS.getFileObject(environmentSubstitute(generation.getSourceFolder())).getName();
+      
+      // Compressing single files can be done in parallel, the output rows are still passed in order.
+      //
+      int nrThreads = getNrThreads(generation);
+      if (nrThreads>1 && generation.getCompressionType()!=CompressionType.NONE && generation.isArchivedToSingleFile()) {
+        compressionPool = Executors.newFixedThreadPool(nrThreads);
+      }
+      LinkedList<HandledFile> handledFiles = new LinkedList<HandledFile>();
       
       // Which files can we find for this generation folder?
       //
-      FileObject[] files = generation.findFiles(this);
-      for (FileObject file : files) {
+      // With a scan index only the files old enough to be handled are returned
+      //
+      long maxLastModifiedTime = getTrans().getCurrentDate().getTime()-generation.getMaxWaitTime();
+      files = generation.iterateFiles(this, getScanIndexFile(generation), maxLastModifiedTime);
+      while (files.hasNext()) {
+        if (isStopped()) {
+          break;
+        }
+        SourceFile file = files.next();
+        if (!isHandledByThisCopy(generationData, file)) {
+          continue;
+        }
+        HandledFile handledFile = new HandledFile(file);
         try {
-          ArchiveType archiveType = archiveFile(generation, file);
-          Object[] outputRow = RowDataUtil.allocateRowData(data.outputRowMeta.size());
-          
-          handleArchiving(generation, file, archiveType);
-          
-          int outIndex = 0;
-          outputRow[outIndex++] = file.toString();
-          outputRow[outIndex++] = archiveType.getDescription();
-          putRow(data.outputRowMeta, outputRow);
-        } catch(Exception e) {
-          if (getStepMeta().isDoingErrorHandling()) {
-            putError(getInputRowMeta(), RowDataUtil.allocateRowData(getInputRowMeta().size()), 1, e.getMessage(), file.toString(), "ARC-001");
+          handledFile.archiveType = archiveFile(generation, generationData, file);
+          if (compressionPool!=null && handledFile.archiveType==ArchiveType.MOVE) {
+            handledFile.future = compressionPool.submit(new CompressionTask(generation, generationData, file, environmentSubstitute(generation.getTargetFolder())));
           } else {
-            throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.UnableToArchiveFile", file.toString()), e);
+            handleArchiving(generation, generationData, file, handledFile.archiveType);
           }
+        } catch(Exception e) {
+          handledFile.exception = e;
+        }
+        handledFiles.add(handledFile);
+        
+        // Don't let the compression work run too far ahead of the output rows...
+        //
+        while (handledFiles.size()>nrThreads*2 || (!handledFiles.isEmpty() && handledFiles.getFirst().isDone())) {
+          passHandledFile(generationData, handledFiles.removeFirst());
         }
       }
+      while (!handledFiles.isEmpty()) {
+        passHandledFile(generationData, handledFiles.removeFirst());
+      }
+      
+      if (files instanceof IndexedLocalFileIterator && !isStopped()) {
+        IndexedLocalFileIterator indexedFiles = (IndexedLocalFileIterator)files;
+        logBasic(BaseMessages.getString(PKG, "Archiver.Log.ScanIndexStatistics", Integer.toString(indexedFiles.getNrFoldersListed()), Integer.toString(indexedFiles.getNrFoldersReused()), generation.getSourceFolder()));
+      }
+      
+      if (!generationData.files.isEmpty()) {
+        archiveFiles(generation, generationData, generationData.files);
+      }
       
-      if (!data.files.isEmpty()) {
-        archiveFiles(generation, data.files);
+      if (generationData.nrSkippedFiles>0) {
+        logBasic(BaseMessages.getString(PKG, "Archiver.Log.CompressionSkipped", Integer.toString(generationData.nrSkippedFiles), Long.toString(generationData.nrSkippedBytes), generation.getSourceFolder()));
       }
       
     } catch(Exception e) {
       throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.UnableToHandleGenerationSourcingFrom", generation.getSourceFolder()), e);
+    } finally {
+      if (compressionPool!=null) {
+        compressionPool.shutdownNow();
+      }
+      if (files instanceof Closeable) {
+        try {
+          ((Closeable)files).close();
+        } catch(IOException e) {
+          // Only releases the folder being listed, nothing to report
+        }
+      }
     }
     
   }
+  
+  /**
+   * With several copies of the step, every copy scans the same folders but only handles its own share of the files.
+   * The files are spread over the copies by a hash of their path relative to the source folder, so every file goes to exactly one copy.
+   */
+  private boolean isHandledByThisCopy(ArchiverGenerationData generationData, SourceFile file) throws FileSystemException {
+    int nrCopies = getStepMeta().getCopies();
+    if (nrCopies<=1) {
+      return true;
+    }
+    byte[] relativeName = generationData.sourceFolder.getRelativeName(file.getFile().getName()).getBytes(StandardCharsets.UTF_8);
+    XXHash32 hash = new XXHash32();
+    hash.update(relativeName, 0, relativeName.length);
+    return (hash.getValue() % nrCopies)==getCopy();
+  }
+  
+  /**
+   * @return The scan index of the generation in the scan index folder, null if no scan index folder is configured.
+   * Every copy of the step keeps its own index.
+   */
+  private Path getScanIndexFile(ArchiverGeneration generation) throws Exception {
+    String indexFolder = environmentSubstitute(meta.getScanIndexFolder());
+    if (Const.isEmpty(indexFolder)) {
+      return null;
+    }
+    FileObject indexFolderObject = KettleVFS.getFileObject(indexFolder);
+    if (!(indexFolderObject instanceof LocalFile)) {
+      throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.ScanIndexFolderNotLocal", indexFolder));
+    }
+    Path indexFolderPath = SourceFile.getLocalPath(indexFolderObject);
+    Files.createDirectories(indexFolderPath);
+    String indexName = generation.getStateName(this);
+    if (getStepMeta().getCopies()>1) {
+      indexName += "_copy"+getCopy();
+    }
+    return indexFolderPath.resolve(indexName+".idx");
+  }
+  
+  private ArchiverGenerationData createGenerationData(ArchiverGeneration generation) {
+    ArchiverGenerationData generationData = new ArchiverGenerationData();
+    
+    // Adapt the compression level to the throughput achieved if there is a target
+    //
+    CompressionType compressionType = generation.getCompressionType();
+    double targetThroughput = generation.getTargetThroughput(this);
+    if (targetThroughput>0 && compressionType.hasLevels()) {
+      int initialLevel = generation.getCompressionLevel(this, compressionType.getDefaultLevel());
+      generationData.levelController = new CompressionLevelController(compressionType.getMinLevel(), compressionType.getMaxLevel(), initialLevel, targetThroughput);
+    }
+    
+    // The I/O of the generation is limited by its own rate limits and the ones of the step
+    //
+    long readRateLimit = generation.getReadRateLimit(this);
+    generationData.readRateLimiter = readRateLimit>0 ? new RateLimiter(readRateLimit, data.readRateLimiter) : data.readRateLimiter;
+    long writeRateLimit = generation.getWriteRateLimit(this);
+    generationData.writeRateLimiter = writeRateLimit>0 ? new RateLimiter(writeRateLimit, data.writeRateLimiter) : data.writeRateLimiter;
+    return generationData;
+  }
+  
+  private void passHandledFile(ArchiverGenerationData generationData, HandledFile handledFile) throws KettleException {
+    passHandledFile(generationData, handledFile, null, handledFile.file.toString());
+  }
+  
+  /**
+   * Wait for the work on a file to finish and pass the output row or the error row.
+   * 
+   * @param generationData The generation the file belongs to, null for a file named in an input row which no generation picks up
+   * @param inputRow The input row naming the file which is passed along, null when the file was found in a folder
+   * @param filename The name of the file to report
+   */
+  private void passHandledFile(ArchiverGenerationData generationData, HandledFile handledFile, Object[] inputRow, String filename) throws KettleException {
+    SourceFile file = handledFile.file;
+    try {
+      handledFile.waitUntilDone();
+      
+      // Files for an archive were sampled when they were found, single files have been moved by now
+      //
+      boolean compressionSkipped = file.isCompressionSkipped();
+      if (compressionSkipped) {
+        generationData.nrSkippedFiles++;
+        generationData.nrSkippedBytes+=file.getSize();
+      }
+      
+      Object[] outputRow;
+      int outIndex;
+      if (inputRow==null) {
+        outputRow = RowDataUtil.allocateRowData(data.outputRowMeta.size());
+        outIndex = 0;
+      } else {
+        outputRow = RowDataUtil.resizeArray(inputRow, data.outputRowMeta.size());
+        outIndex = getInputRowMeta().size();
+      }
+      outputRow[outIndex++] = filename;
+      outputRow[outIndex++] = handledFile.archiveType.getDescription();
+      outputRow[outIndex++] = Boolean.valueOf(compressionSkipped);
+      outputRow[outIndex++] = Long.valueOf(compressionSkipped ? file.getSize() : 0L);
+      synchronized(data) {
+        putRow(data.outputRowMeta, outputRow);
+      }
+    } catch(Exception e) {
+      if (getStepMeta().isDoingErrorHandling()) {
+        synchronized(data) {
+          RowMetaInterface errorRowMeta = getErrorRowMeta();
+          Object[] errorRow = inputRow!=null ? inputRow : RowDataUtil.allocateRowData(errorRowMeta.size());
+          putError(errorRowMeta, errorRow, 1, e.getMessage(), filename, "ARC-001");
+        }
+      } else {
+        throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.UnableToArchiveFile", filename), e);
+      }
+    }
+  }
 
-  private void archiveFiles(ArchiverGeneration generation, List<FileObject> files) throws Exception {
+  /**
+   * @return The layout of the rows sent to the error hop: the input rows, or no fields at all when the files are not read from an input hop
+   */
+  private RowMetaInterface getErrorRowMeta() {
+    if (getInputRowMeta()!=null) {
+      return getInputRowMeta();
+    }
+    return new RowMeta();
+  }
+
+  /**
+   * Writes the files to an archive. With a checkpoint interval the archive is journaled: an archive a previous run didn't complete
+   * is continued from its last checkpoint instead of being written all over again.
+   */
+  private void archiveFiles(ArchiverGeneration generation, ArchiverGenerationData generationData, List<SourceFile> files) throws Exception {
+    if (meta.isVerifying() && !generation.getCompressionType().isVerifiable()) {
+      throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.ArchiveNotVerifiable", generation.getCompressionType().getDescription()));
+    }
+    long checkpointInterval = meta.getCheckpointInterval(this);
+    if (checkpointInterval<=0) {
+      String targetFile = getTargetFile(generation, generationData);
+      writeArchive(generation, generationData, files, targetFile, null);
+      finishArchive(generation, generationData, targetFile, files, new ArrayList<ArchiveJournal.Entry>(), null);
+      return;
+    }
+    
+    // The journal of the previous archive of the generation is only replaced once that archive is verified
+    //
+    awaitVerification(generation);
+    ArchiveJournal journal = new ArchiveJournal(getJournalFile(generation), checkpointInterval);
+    try {
+      boolean resumed = false;
+      List<ArchiveJournal.Entry> resumedEntries = new ArrayList<ArchiveJournal.Entry>();
+      if (journal.load()) {
+        Path previousTargetPath = SourceFile.getLocalPath(KettleVFS.getFileObject(journal.getTargetFile()));
+        boolean sameType = journal.getTargetFile().endsWith(generation.getCompressionType().getExtension());
+        if (journal.isComplete()) {
+          // The previous archive was written, some of its original files may not have been removed yet
+          //
+          if (isJournaledArchiveVerified(generationData, journal)) {
+            deleteArchivedFiles(generation, generationData, new ArrayList<SourceFile>(), journal.getEntries(), null);
+            files = journal.getMissingFiles(files);
+          }
+        } else if (sameType && Files.exists(previousTargetPath) && journal.rollBack(Files.size(previousTargetPath))) {
+          // Cut the archive back to the last checkpoint it reaches and append the files which are not in it yet
+          //
+          FileChannel channel = FileChannel.open(previousTargetPath, StandardOpenOption.WRITE);
+          try {
+            channel.truncate(journal.getOffset());
+          } finally {
+            channel.close();
+          }
+          journal.restart();
+          resumed = true;
+          resumedEntries.addAll(journal.getEntries());
+          files = journal.getMissingFiles(files);
+          logBasic(BaseMessages.getString(PKG, "Archiver.Log.ArchiveResumed", journal.getTargetFile(), Integer.toString(resumedEntries.size()), Long.toString(journal.getOffset())));
+        } else {
+          // Nothing to continue from, the original files are all still there
+          //
+          Files.deleteIfExists(previousTargetPath);
+        }
+      }
+      if (!resumed) {
+        if (files.isEmpty()) {
+          journal.delete();
+          return;
+        }
+        journal.start(getTargetFile(generation, generationData));
+      }
+      
+      writeArchive(generation, generationData, files, journal.getTargetFile(), journal);
+      
+      // The original files written to the archive by the previous run can go as well then
+      //
+      finishArchive(generation, generationData, journal.getTargetFile(), files, resumedEntries, journal);
+    } finally {
+      journal.close();
+    }
+  }
+  
+  private void writeArchive(ArchiverGeneration generation, ArchiverGenerationData generationData, List<SourceFile> files, String targetFile, ArchiveJournal journal) throws Exception {
     switch(generation.getCompressionType()) {
-    case ZIP: zipFiles(generation, files); break;
-    case TARGZIP: tarGzFiles(generation, files); break;
-    case TAR: tarFiles(generation, files); break;
+    case ZIP: zipFiles(generation, generationData, files, targetFile, journal); break;
+    case TARGZIP: 
+    case TARBZIP: 
+    case TARXZ: 
+      compressedTarFiles(generation, generationData, files, targetFile, journal); break;
+    case TAR: tarFiles(generation, generationData, files, targetFile, journal); break;
     default:
       break;
     }
   }
   
-  private void zipFiles(ArchiverGeneration generation, List<FileObject> files) throws Exception {
-    String targetFile = getTargetFile(generation);
-    OutputStream os = null;
-    ZipOutputStream zos = null;
+  /**
+   * Removes the original files of a written archive and its journal. When archives are verified that only happens once the archive
+   * is read back and found to match, the verification runs in the background while the next archive is written.
+   * 
+   * @param files The files written to the archive by this run
+   * @param resumedEntries The files written to the archive by a previous run
+   * @param journal The journal of the archive, null if it isn't journaled
+   */
+  private void finishArchive(final ArchiverGeneration generation, final ArchiverGenerationData generationData, final String targetFile, List<SourceFile> files, 
+      final List<ArchiveJournal.Entry> resumedEntries, final ArchiveJournal journal) throws Exception {
+    final List<SourceFile> archivedFiles = new ArrayList<SourceFile>(files);
+    if (!meta.isVerifying()) {
+      deleteArchivedFiles(generation, generationData, archivedFiles, resumedEntries, journal);
+      return;
+    }
+    
+    // The digests were calculated when the files were read, in the order of the entries
+    //
+    final List<byte[]> digests = new ArrayList<byte[]>();
+    for (ArchiveJournal.Entry entry : resumedEntries) {
+      digests.add(entry.getDigest());
+    }
+    for (SourceFile file : archivedFiles) {
+      digests.add(file.getDigest());
+    }
+    
+    // At most one archive of the generation waits for its verification
+    //
+    awaitVerification(generation);
+    Future<Void> verification = getVerificationPool().submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        verifyArchiveWithPermit(generationData, targetFile, digests);
+        deleteArchivedFiles(generation, generationData, archivedFiles, resumedEntries, journal);
+        return null;
+      }
+    });
+    data.verifications.put(generation, verification);
+  }
+  
+  /**
+   * Removes the original files of an archive and then its journal. The files are deleted in parallel, a file which can't be deleted
+   * is reported with an error row when the step handles errors. Otherwise the generation fails once all other files are deleted,
+   * the journal is kept so the next run tries again.
+   */
+  private void deleteArchivedFiles(ArchiverGeneration generation, ArchiverGenerationData generationData, List<SourceFile> files, 
+      List<ArchiveJournal.Entry> resumedEntries, ArchiveJournal journal) throws Exception {
+    if (generation.isRemovingOriginal()) {
+      List<FileObject> originals = new ArrayList<FileObject>();
+      for (SourceFile file : files) {
+        originals.add(file.getFile());
+      }
+      originals.addAll(getJournaledFiles(resumedEntries));
+      
+      FileDeleter deleter = new FileDeleter(getDeletePool());
+      List<FileDeleter.Failure> failures = deleter.delete(originals);
+      if (meta.isRemovingEmptyFolders()) {
+        deleter.removeEmptyFolders(generationData.sourceFolder);
+      }
+      reportDeleteFailures(failures);
+    }
+    if (journal!=null) {
+      journal.delete();
+    }
+  }
+  
+  private void reportDeleteFailures(List<FileDeleter.Failure> failures) throws KettleException {
+    if (failures.isEmpty()) {
+      return;
+    }
+    if (!getStepMeta().isDoingErrorHandling()) {
+      FileDeleter.Failure failure = failures.get(0);
+      throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.FilesCouldNotBeDeleted", Integer.toString(failures.size()), failure.getFile().toString()), failure.getException());
+    }
+    for (FileDeleter.Failure failure : failures) {
+      String filename = failure.getFile().toString();
+      String description = BaseMessages.getString(PKG, "Archiver.Exception.FileCouldNotBeDeleted", filename);
+      if (failure.getException()!=null) {
+        description += ": "+failure.getException().toString();
+      }
+      synchronized(data) {
+        RowMetaInterface errorRowMeta = getErrorRowMeta();
+        putError(errorRowMeta, RowDataUtil.allocateRowData(errorRowMeta.size()), 1, description, filename, "ARC-001");
+      }
+    }
+  }
+  
+  /**
+   * Decompressing the archive counts against the share of the CPU cores as well, a verification takes a compression permit.
+   */
+  private void verifyArchiveWithPermit(ArchiverGenerationData generationData, String targetFile, List<byte[]> digests) throws Exception {
+    if (data.compressionPermits==null) {
+      verifyArchive(generationData, targetFile, digests);
+      return;
+    }
+    data.compressionPermits.acquire();
     try {
-      os = KettleVFS.getOutputStream(targetFile, false);
-      zos = new ZipOutputStream(os);
-      for (FileObject file : files) {
-        ZipEntry e = new ZipEntry(file.getName().getBaseName());
-        zos.putNextEntry(e);
-        InputStream inputStream = null;
-        try {
-          inputStream = KettleVFS.getInputStream(file);
-          IOUtils.copyLarge(inputStream, zos);
-        } finally {
-          zos.closeEntry();
-          IOUtils.closeQuietly(inputStream);
+      verifyArchive(generationData, targetFile, digests);
+    } finally {
+      data.compressionPermits.release();
+    }
+  }
+  
+  /**
+   * Reads the archive back in one streaming pass and compares the digest of every entry with the digest of its original file,
+   * calculated when the file was written to the archive. Once all entries match the digests are written to a manifest next to
+   * the archive, in the format of sha256sum.
+   * 
+   * @param digests The digests of the original files in the order of the entries, null for a file of which no digest is known
+   */
+  private void verifyArchive(ArchiverGenerationData generationData, String targetFile, List<byte[]> digests) throws Exception {
+    DigestType digestType = meta.getVerifyDigest();
+    StringBuilder manifest = new StringBuilder();
+    InputStream inputStream = KettleVFS.getInputStream(targetFile);
+    if (generationData.readRateLimiter!=null) {
+      inputStream = new ThrottledInputStream(inputStream, generationData.readRateLimiter);
+    }
+    int nrEntries = 0;
+    try {
+      ArchiveInputStream archive = openArchiveInputStream(targetFile, inputStream);
+      byte[] buffer = new byte[64*1024];
+      ArchiveEntry entry;
+      while ((entry=archive.getNextEntry())!=null) {
+        if (entry.isDirectory()) {
+          continue;
         }
+        MessageDigest digest = digestType.createDigest();
+        int size;
+        while ((size=archive.read(buffer, 0, buffer.length))>=0) {
+          digest.update(buffer, 0, size);
+        }
+        byte[] value = digest.digest();
+        if (nrEntries>=digests.size() || digests.get(nrEntries)==null || !MessageDigest.isEqual(value, digests.get(nrEntries))) {
+          throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.VerificationFailed", targetFile, Integer.toString(nrEntries+1), entry.getName()));
+        }
+        manifest.append(DigestType.toHex(value)).append("  ").append(entry.getName()).append('\n');
+        nrEntries++;
       }
-      zos.finish();
-      zos.close();
-      
-      // Only if all went well we remove the files...
+    } catch(IOException e) {
+      throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.ArchiveUnreadable", targetFile), e);
+    } finally {
+      IOUtils.closeQuietly(inputStream);
+    }
+    if (nrEntries!=digests.size()) {
+      throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.VerificationEntryCount", targetFile, Integer.toString(nrEntries), Integer.toString(digests.size())));
+    }
+    
+    String manifestFile = targetFile+digestType.getExtension();
+    OutputStream outputStream = KettleVFS.getOutputStream(manifestFile, false);
+    try {
+      outputStream.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+    } finally {
+      outputStream.close();
+    }
+    logDetailed(BaseMessages.getString(PKG, "Archiver.Log.ArchiveVerified", targetFile, Integer.toString(nrEntries), manifestFile));
+  }
+  
+  /**
+   * Opens the entries of an archive, decompressing it on the way.
+   */
+  private ArchiveInputStream openArchiveInputStream(String targetFile, InputStream inputStream) throws IOException {
+    if (targetFile.endsWith(CompressionType.ZIP.getExtension())) {
+      return new ZipArchiveInputStream(inputStream);
+    }
+    if (targetFile.endsWith(CompressionType.TARGZIP.getExtension())) {
+      // Checkpoints and parallel compression write the archive in several gzip members
       //
-      // If compression went OK we delete the original file...
+      inputStream = new GzipCompressorInputStream(inputStream, true);
+    } else if (targetFile.endsWith(CompressionType.TARBZIP.getExtension())) {
+      inputStream = new BZip2CompressorInputStream(inputStream, true);
+    } else if (targetFile.endsWith(CompressionType.TARXZ.getExtension())) {
+      // Reads the streams of every checkpoint one after the other
       //
-      for (FileObject file : files) {
-        deleteFile(generation, file);
+      inputStream = new XZInputStream(inputStream);
+    } else if (!targetFile.endsWith(CompressionType.TAR.getExtension())) {
+      throw new IOException(BaseMessages.getString(PKG, "Archiver.Exception.ArchiveNotVerifiable", targetFile));
+    }
+    return new TarArchiveInputStream(inputStream);
+  }
+  
+  /**
+   * Verifies the completed archive of a journal left behind by a previous run. An archive which doesn't match is left as it is,
+   * its original files are kept and archived again.
+   * 
+   * @return true if the original files of the archive can be removed
+   */
+  private boolean isJournaledArchiveVerified(ArchiverGenerationData generationData, ArchiveJournal journal) {
+    if (!meta.isVerifying()) {
+      return true;
+    }
+    List<byte[]> digests = new ArrayList<byte[]>();
+    for (ArchiveJournal.Entry entry : journal.getEntries()) {
+      digests.add(entry.getDigest());
+    }
+    try {
+      verifyArchive(generationData, journal.getTargetFile(), digests);
+      return true;
+    } catch(Exception e) {
+      logError(BaseMessages.getString(PKG, "Archiver.Log.JournaledArchiveNotVerified", journal.getTargetFile(), e.getMessage()));
+      return false;
+    }
+  }
+  
+  /**
+   * Waits for the verification of the last archive of the generation, an archive which doesn't match fails the generation.
+   */
+  private void awaitVerification(ArchiverGeneration generation) throws KettleException {
+    Future<Void> verification = data.verifications.remove(generation);
+    if (verification==null) {
+      return;
+    }
+    try {
+      verification.get();
+    } catch(ExecutionException e) {
+      if (e.getCause() instanceof KettleException) {
+        throw (KettleException)e.getCause();
+      }
+      throw new KettleException(e.getCause());
+    } catch(InterruptedException e) {
+      throw new KettleException(e);
+    }
+  }
+  
+  private void awaitVerifications() throws KettleException {
+    for (ArchiverGeneration generation : meta.getGenerations()) {
+      awaitVerification(generation);
+    }
+  }
+  
+  /**
+   * @return The threads deleting the original files of the archives, shared by all generations, created the first time they are needed.
+   */
+  private ExecutorService getDeletePool() {
+    synchronized(data) {
+      if (data.deletePool==null) {
+        data.deletePool = Executors.newFixedThreadPool(meta.getNrDeleteThreads(this));
+      }
+      return data.deletePool;
+    }
+  }
+  
+  /**
+   * @return The threads verifying archives, created the first time they are needed. Every generation handled in parallel
+   * can have an archive being verified.
+   */
+  private ExecutorService getVerificationPool() {
+    synchronized(data) {
+      if (data.verificationPool==null) {
+        int nrThreads = Math.max(1, Math.min(meta.getNrGenerationThreads(this), meta.getMaxCompressionThreads(this)));
+        data.verificationPool = Executors.newFixedThreadPool(nrThreads);
+      }
+      return data.verificationPool;
+    }
+  }
+  
+  /**
+   * @return The journal of the archives of the generation in the target folder, every copy of the step keeps its own journal
+   */
+  private Path getJournalFile(ArchiverGeneration generation) throws Exception {
+    String targetFolder = environmentSubstitute(generation.getTargetFolder());
+    FileObject targetFolderObject = KettleVFS.getFileObject(targetFolder);
+    if (!(targetFolderObject instanceof LocalFile)) {
+      throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.CheckpointsOnlySupportLocalTargetFolders", targetFolder));
+    }
+    Path targetFolderPath = SourceFile.getLocalPath(targetFolderObject);
+    Files.createDirectories(targetFolderPath);
+    String journalName = "."+generation.getStateName(this);
+    if (getStepMeta().getCopies()>1) {
+      journalName += "_copy"+getCopy();
+    }
+    return targetFolderPath.resolve(journalName+".journal");
+  }
+  
+  /**
+   * @return The original files written to an archive by a previous run which are still there, a file changed since is left alone
+   */
+  private List<FileObject> getJournaledFiles(List<ArchiveJournal.Entry> entries) throws Exception {
+    List<FileObject> files = new ArrayList<FileObject>();
+    for (ArchiveJournal.Entry entry : entries) {
+      FileObject file = KettleVFS.getFileObject(entry.getSource());
+      if (file.exists() && entry.isSameFile(SourceFile.fromFileObject(file))) {
+        files.add(file);
       }
+    }
+    return files;
+  }
+  
+  /**
+   * Every ZIP archive goes through the parallel writer, with a single thread as well: it stores the entries compressed already
+   * in the same pass which takes their size and CRC, and it is the only writer which can continue a journaled archive.
+   */
+  private void zipFiles(ArchiverGeneration generation, ArchiverGenerationData generationData, List<SourceFile> files, String targetFile, ArchiveJournal journal) throws Exception {
+    parallelZipFiles(generation, generationData, files, getNrThreads(generation), targetFile, journal);
+  }
+
+  /**
+   * Compresses the entries in parallel in scatter buffers and gathers them in order in the ZIP archive.
+   * A journaled archive gets a checkpoint whenever enough was written since the previous one, the entries are gathered
+   * as they are added so every checkpoint is at the end of an entry.
+   */
+  private void parallelZipFiles(ArchiverGeneration generation, final ArchiverGenerationData generationData, List<SourceFile> files, int nrThreads, String targetFile, ArchiveJournal journal) throws Exception {
+    long offset = journal!=null ? journal.getOffset() : 0L;
+    PipelinedCopier.Pipeline pipeline = openPipeline(generationData, KettleVFS.getOutputStream(targetFile, offset>0));
+    ParallelZipCreator zipCreator = null;
+    try {
+      int level = generation.getCompressionLevel(this, Deflater.DEFAULT_COMPRESSION);
+      zipCreator = new ParallelZipCreator(pipeline.getOutputStream(), getBlockCompressionPool(), nrThreads, level, ParallelZipCreator.DEFAULT_SPILL_THRESHOLD);
+      zipCreator.setLevelController(generationData.levelController);
+      zipCreator.setCodecPool(data.codecPool);
+      zipCreator.setCompressionPermits(data.compressionPermits);
+      
+      // The entries written before are kept for the central directory
+      //
+      int nrResumed = 0;
+      if (journal!=null) {
+        List<ParallelZipCreator.WrittenEntry> writtenEntries = new ArrayList<ParallelZipCreator.WrittenEntry>();
+        for (ArchiveJournal.Entry entry : journal.getEntries()) {
+          writtenEntries.add(entry.getZipEntry());
+        }
+        zipCreator.resume(writtenEntries, offset);
+        nrResumed = writtenEntries.size();
+      }
+      
+      for (final SourceFile sourceFile : files) {
+        FileObject file = sourceFile.getFile();
+        zipCreator.addEntry(SourceFile.getEntryName(file), sourceFile.getLastModifiedTime(), sourceFile.isCompressionSkipped(), new ParallelZipCreator.InputStreamSupplier() {
+          public InputStream get() throws Exception {
+            return openArchivedInputStream(generationData, sourceFile);
+          }
+        });
+        if (journal!=null && journal.isCheckpointDue(zipCreator.getOffset())) {
+          journal.checkpoint(getNewJournalEntries(journal, zipCreator, files, nrResumed), zipCreator.getOffset());
+        }
+      }
+      zipCreator.close();
+      if (journal!=null) {
+        journal.complete(getNewJournalEntries(journal, zipCreator, files, nrResumed), zipCreator.getOffset());
+      }
+      zipCreator = null;
       
     } finally {
-      IOUtils.closeQuietly(os);
+      if (zipCreator!=null) {
+        zipCreator.abort();
+      }
+      pipeline.release();
+    }
+  }
+  
+  /**
+   * @param nrResumed The number of entries written before the archive was resumed, the files are the ones added after them
+   * @return The journal entries of the ZIP entries written since the previous checkpoint
+   */
+  private List<ArchiveJournal.Entry> getNewJournalEntries(ArchiveJournal journal, ParallelZipCreator zipCreator, List<SourceFile> files, int nrResumed) {
+    List<ParallelZipCreator.WrittenEntry> writtenEntries = zipCreator.getWrittenEntries();
+    List<ArchiveJournal.Entry> newEntries = new ArrayList<ArchiveJournal.Entry>();
+    for (int i=journal.getEntries().size();i<writtenEntries.size();i++) {
+      newEntries.add(new ArchiveJournal.Entry(files.get(i-nrResumed), writtenEntries.get(i)));
     }
+    return newEntries;
   }
 
-  private void tarGzFiles(ArchiverGeneration generation, List<FileObject> files) throws Exception {
-    String targetFile = getTargetFile(generation);
-    OutputStream os = null;
-    GZIPOutputStream gzos = null;
-    TarArchiveOutputStream taos = null;
+  /**
+   * Writes a TAR archive through the compressor of the compression type (GZip, BZip2 or XZ).
+   * Every checkpoint of a journaled archive ends a compressed member, the archive can be continued with a new member after it.
+   */
+  private void compressedTarFiles(final ArchiverGeneration generation, final ArchiverGenerationData generationData, List<SourceFile> files, String targetFile, ArchiveJournal journal) throws Exception {
+    long offset = journal!=null ? journal.getOffset() : 0L;
+    PipelinedCopier.Pipeline pipeline = openPipeline(generationData, KettleVFS.getOutputStream(targetFile, offset>0));
+    MultiMemberOutputStream cos = null;
 
     try {
-      os = KettleVFS.getOutputStream(targetFile, false);
-      gzos = new GZIPOutputStream(os);
-      taos = new TarArchiveOutputStream(gzos);
-      taos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
-      taos.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+      cos = new MultiMemberOutputStream(pipeline.getOutputStream(), offset, new MultiMemberOutputStream.CompressorFactory() {
+        public OutputStream create(OutputStream os) throws IOException {
+          return createTarCompressor(generation, generationData, os);
+        }
+      });
+      TarStreamWriter tarWriter = new TarStreamWriter(cos, 0L);
+      List<ArchiveJournal.Entry> newEntries = new ArrayList<ArchiveJournal.Entry>();
       
-      for (FileObject file : files) {
+      for (SourceFile sourceFile : files) {
+        FileObject file = sourceFile.getFile();
         if (!(file instanceof LocalFile)) {
           throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.TarOnlySupportsLocalFiles", file.toString()));
         }
         
-        String localFilename = KettleVFS.getFilename(file);
-        
-        TarArchiveEntry entry = new TarArchiveEntry(new File(localFilename), file.getName().getBaseName());
-        taos.putArchiveEntry(entry);
+        tarWriter.putEntry(SourceFile.getEntryName(file), sourceFile.getSize(), sourceFile.getLastModifiedTime());
         
-        BufferedInputStream inputStream = null;
+        InputStream inputStream = null;
         try {
-          inputStream = new BufferedInputStream(KettleVFS.getInputStream(file));
-          IOUtils.copyLarge(inputStream, taos);
+          inputStream = openArchivedInputStream(generationData, sourceFile);
+          pipeline.copy(inputStream, tarWriter);
         } finally {
-          taos.closeArchiveEntry();
           IOUtils.closeQuietly(inputStream);
         }
+        tarWriter.closeEntry();
+        
+        if (journal!=null) {
+          newEntries.add(new ArchiveJournal.Entry(sourceFile, null));
+          if (journal.isCheckpointDue(cos.getOffset())) {
+            journal.checkpoint(newEntries, cos.endMember());
+            newEntries.clear();
+          }
+        }
       }
       
-      taos.close();
-      
-      // Only if all went OK we remove the files...
-      //
-      // If compression went OK we delete the original file...
-      //
-      for (FileObject file : files) {
-        deleteFile(generation, file);
+      tarWriter.close();
+      if (journal!=null) {
+        journal.complete(newEntries, cos.getOffset());
       }
       
     } finally {
-      if (os!=null) os.close();
-      IOUtils.closeQuietly(gzos);
+      IOUtils.closeQuietly(cos);
+      pipeline.release();
+    }
+  }
+  
+  /**
+   * Wraps the given stream in the compressor of the compression type of a TAR archive.
+   */
+  private OutputStream createTarCompressor(ArchiverGeneration generation, ArchiverGenerationData generationData, OutputStream os) throws IOException {
+    switch(generation.getCompressionType()) {
+    case TARBZIP: return createBZip2OutputStream(generation, os);
+    case TARXZ: return createXZOutputStream(generation, generationData, os);
+    default: return createGzipOutputStream(generation, generationData, os);
     }
   }
   
-  private void tarFiles(ArchiverGeneration generation, List<FileObject> files) throws Exception {
-    String targetFile = getTargetFile(generation);
-    OutputStream os = null;
-    TarArchiveOutputStream taos = null;
+  private void tarFiles(ArchiverGeneration generation, ArchiverGenerationData generationData, List<SourceFile> files, String targetFile, ArchiveJournal journal) throws Exception {
+    long offset = journal!=null ? journal.getOffset() : 0L;
+    FileObject targetFileObject = KettleVFS.getFileObject(targetFile);
+    
+    // Data transferred by the kernel doesn't pass the JVM, it can't be limited or digested on the way
+    //
+    if (targetFileObject instanceof LocalFile && !isThrottled(generationData) && !meta.isVerifying()) {
+      localTarFiles(files, SourceFile.getLocalPath(targetFileObject), journal);
+      return;
+    }
+    PipelinedCopier.Pipeline pipeline = openPipeline(generationData, KettleVFS.getOutputStream(targetFile, offset>0));
 
     try {
-      os = KettleVFS.getOutputStream(targetFile, false);
-      taos = new TarArchiveOutputStream(os);
-      taos.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
-      taos.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+      TarStreamWriter tarWriter = new TarStreamWriter(pipeline.getOutputStream(), offset);
+      List<ArchiveJournal.Entry> newEntries = new ArrayList<ArchiveJournal.Entry>();
       
-      for (FileObject file : files) {
+      for (SourceFile sourceFile : files) {
+        FileObject file = sourceFile.getFile();
         
         if (!(file instanceof LocalFile)) {
           throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.TarOnlySupportsLocalFiles", file.toString()));
         }
         
-        String localFilename = KettleVFS.getFilename(file);
+        tarWriter.putEntry(SourceFile.getEntryName(file), sourceFile.getSize(), sourceFile.getLastModifiedTime());
         
-        TarArchiveEntry entry = new TarArchiveEntry(new File(localFilename), file.getName().getBaseName());
-        taos.putArchiveEntry(entry);
-        
-        BufferedInputStream inputStream = null;
+        InputStream inputStream = null;
         try {
-          inputStream = new BufferedInputStream(KettleVFS.getInputStream(file));
-          IOUtils.copyLarge(inputStream, taos);
+          inputStream = openArchivedInputStream(generationData, sourceFile);
+          pipeline.copy(inputStream, tarWriter);
         } finally {
-          taos.closeArchiveEntry();
           IOUtils.closeQuietly(inputStream);
         }
+        tarWriter.closeEntry();
+        
+        if (journal!=null) {
+          newEntries.add(new ArchiveJournal.Entry(sourceFile, null));
+          if (journal.isCheckpointDue(tarWriter.getPosition())) {
+            journal.checkpoint(newEntries, tarWriter.getPosition());
+            newEntries.clear();
+          }
+        }
       }
       
-      taos.close();
-      
-      // Only if all went OK we remove the files...
-      //
-      // If compression went OK we delete the original file...
-      //
-      for (FileObject file : files) {
-        deleteFile(generation, file);
+      tarWriter.close();
+      if (journal!=null) {
+        journal.complete(newEntries, tarWriter.getPosition());
       }
       
     } finally {
-      if (os!=null) os.close();
+      pipeline.release();
     }
     
   }
 
 
 
-  private void handleArchiving(ArchiverGeneration generation, FileObject file, ArchiveType archiveType) throws Exception {
+  /**
+   * Writes a TAR archive to a local file, the data of the entries is transferred by the kernel. 
+   */
+  private void localTarFiles(List<SourceFile> files, Path targetPath, ArchiveJournal journal) throws Exception {
+    LocalTarWriter tarWriter = new LocalTarWriter(targetPath, journal!=null && journal.getOffset()>0, data.codecPool);
+    List<ArchiveJournal.Entry> newEntries = new ArrayList<ArchiveJournal.Entry>();
+    long size;
+    try {
+      for (SourceFile sourceFile : files) {
+        FileObject file = sourceFile.getFile();
+        if (!(file instanceof LocalFile)) {
+          throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.TarOnlySupportsLocalFiles", file.toString()));
+        }
+        
+        tarWriter.addEntry(SourceFile.getEntryName(file), SourceFile.getLocalPath(file), sourceFile.getSize(), sourceFile.getLastModifiedTime());
+        
+        if (journal!=null) {
+          newEntries.add(new ArchiveJournal.Entry(sourceFile, null));
+          if (journal.isCheckpointDue(tarWriter.getPosition())) {
+            journal.checkpoint(newEntries, tarWriter.getPosition());
+            newEntries.clear();
+          }
+        }
+      }
+      tarWriter.finish();
+      size = tarWriter.getPosition();
+    } finally {
+      tarWriter.close();
+    }
+    if (journal!=null) {
+      journal.complete(newEntries, size);
+    }
+  }
+
+  private void handleArchiving(ArchiverGeneration generation, ArchiverGenerationData generationData, SourceFile sourceFile, ArchiveType archiveType) throws Exception {
+    FileObject file = sourceFile.getFile();
     
     String targetFolder = environmentSubstitute(generation.getTargetFolder());
     
     switch(archiveType) {
     case MOVE:
-      moveFile(generation, file, targetFolder);
+      moveFile(generation, generationData, sourceFile, targetFolder);
       break;
     
     case DELETE:
@@ -280,9 +1382,15 @@ public class Archiver extends BaseStep implements StepInterface {
       break;
       
     case ARCHIVE:
+      // ZIP entries can be stored as they are if they are compressed already
+      //
+      if (generation.getCompressionType()==CompressionType.ZIP) {
+        sourceFile.setCompressionSkipped(isCompressedAlready(generationData, sourceFile));
+      }
+      
       // Just add to the files list for archiving all at once.
       //
-      data.files.add(file);
+      generationData.files.add(sourceFile);
       break;
     case IGNORE:
       // Don't do anything...
@@ -309,23 +1417,133 @@ public class Archiver extends BaseStep implements StepInterface {
     }
   }
 
-  private void moveFile(ArchiverGeneration generation, FileObject file, String targetFolder) throws Exception {
+  private void moveFile(ArchiverGeneration generation, ArchiverGenerationData generationData, SourceFile sourceFile, String targetFolder) throws Exception {
     
     if (generation.getCompressionType() != CompressionType.NONE) {
-      compressFile(generation, file, targetFolder);
+      compressFile(generation, generationData, sourceFile, targetFolder);
     } else  {
       // Regular move: move the file to the target folder...
       //
+      FileObject file = sourceFile.getFile();
       FileObject targetFileObject = KettleVFS.getFileObject(targetFolder+File.separator+file.getName().getBaseName());
-      try {
+      transferFile(generationData, sourceFile, targetFileObject, false);
+    }
+  }
+
+  /**
+   * Moves or copies a file as it is, local files are renamed or copied by the kernel.
+   * With an I/O rate limit the data is copied through the rate limiters instead, only a rename is still done right away.
+   */
+  private void transferFile(ArchiverGenerationData generationData, SourceFile sourceFile, FileObject targetFileObject, boolean keepOriginal) throws Exception {
+    FileObject file = sourceFile.getFile();
+    try {
+      if (isThrottled(generationData)) {
+        if (!keepOriginal && file instanceof LocalFile && targetFileObject instanceof LocalFile 
+            && LocalFileTransfer.rename(SourceFile.getLocalPath(file), SourceFile.getLocalPath(targetFileObject))) {
+          return;
+        }
+        InputStream inputStream = openInputStream(generationData, sourceFile);
+        try {
+          OutputStream outputStream = KettleVFS.getOutputStream(targetFileObject, false);
+          if (generationData.writeRateLimiter!=null) {
+            outputStream = new ThrottledOutputStream(outputStream, generationData.writeRateLimiter);
+          }
+          try {
+            IOUtils.copyLarge(inputStream, outputStream);
+          } finally {
+            outputStream.close();
+          }
+        } finally {
+          IOUtils.closeQuietly(inputStream);
+        }
+        targetFileObject.getContent().setLastModifiedTime(sourceFile.getLastModifiedTime());
+        if (!keepOriginal && !file.delete()) {
+          throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.FileCouldNotBeDeleted", file.toString()));
+        }
+      } else if (file instanceof LocalFile && targetFileObject instanceof LocalFile) {
+        // Rename or let the kernel copy the data, VFS would stream it through the JVM when it can't rename
+        //
+        Path source = SourceFile.getLocalPath(file);
+        Path target = SourceFile.getLocalPath(targetFileObject);
+        if (keepOriginal) {
+          LocalFileTransfer.copy(source, target);
+        } else {
+          LocalFileTransfer.move(source, target);
+        }
+      } else if (keepOriginal) {
+        targetFileObject.copyFrom(file, Selectors.SELECT_SELF);
+      } else {
         file.moveTo(targetFileObject);
-      } catch(Exception e) {
-        throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.FileCouldNotBeMoved", file.toString()), e);
       }
+    } catch(Exception e) {
+      throw new KettleException(BaseMessages.getString(PKG, "Archiver.Exception.FileCouldNotBeMoved", file.toString()), e);
+    }
+  }
+
+  /**
+   * Opens a file to archive or compress. Large local files are read through memory mapped windows.
+   * The data read is counted against the read rate limit of the generation.
+   */
+  private InputStream openInputStream(ArchiverGenerationData generationData, SourceFile sourceFile) throws Exception {
+    FileObject file = sourceFile.getFile();
+    long mmapThreshold = meta.getMmapThreshold(this);
+    InputStream inputStream;
+    if (mmapThreshold>=0 && sourceFile.getSize()>=mmapThreshold && file instanceof LocalFile) {
+      inputStream = new MappedFileInputStream(SourceFile.getLocalPath(file));
+    } else {
+      inputStream = KettleVFS.getInputStream(file);
     }
+    if (generationData.readRateLimiter!=null) {
+      inputStream = new ThrottledInputStream(inputStream, generationData.readRateLimiter);
+    }
+    return inputStream;
+  }
+  
+  /**
+   * Opens a file to write to an archive. When archives are verified the digest of the file is calculated while it is read.
+   */
+  private InputStream openArchivedInputStream(ArchiverGenerationData generationData, SourceFile sourceFile) throws Exception {
+    InputStream inputStream = openInputStream(generationData, sourceFile);
+    if (meta.isVerifying()) {
+      inputStream = new DigestingInputStream(inputStream, meta.getVerifyDigest().createDigest(), sourceFile);
+    }
+    return inputStream;
+  }
+  
+  /**
+   * @return true if the I/O of the generation is rate limited, the data then can't be copied by the kernel
+   */
+  private boolean isThrottled(ArchiverGenerationData generationData) {
+    return generationData.readRateLimiter!=null || generationData.writeRateLimiter!=null;
   }
 
-  private void compressFile(ArchiverGeneration generation, FileObject file, String targetFolder) throws Exception {
+  /**
+   * @return true if a sample of the first block shows the file is compressed already (gzip, images, parquet, ...)
+   */
+  private boolean isCompressedAlready(ArchiverGenerationData generationData, SourceFile sourceFile) throws Exception {
+    InputStream inputStream = KettleVFS.getInputStream(sourceFile.getFile());
+    if (generationData.readRateLimiter!=null) {
+      inputStream = new ThrottledInputStream(inputStream, generationData.readRateLimiter);
+    }
+    try {
+      return CompressedDataDetector.isIncompressible(inputStream, data.codecPool);
+    } finally {
+      IOUtils.closeQuietly(inputStream);
+    }
+  }
+
+  private void compressFile(ArchiverGeneration generation, ArchiverGenerationData generationData, SourceFile sourceFile, String targetFolder) throws Exception {
+    FileObject file = sourceFile.getFile();
+    
+    // Compressing a file which is compressed already only burns CPU: move it as it is instead.
+    //
+    if (isCompressedAlready(generationData, sourceFile)) {
+      FileObject targetFileObject = KettleVFS.getFileObject(targetFolder+File.separator+file.getName().getBaseName());
+      transferFile(generationData, sourceFile, targetFileObject, !generation.isRemovingOriginal());
+      sourceFile.setCompressionSkipped(true);
+      return;
+    }
+    
     CompressionType compressionType = generation.getCompressionType();
     FileObject targetFileObject = KettleVFS.getFileObject(targetFolder+File.separator+file.getName().getBaseName()+compressionType.getExtension());
 
@@ -334,15 +1552,18 @@ public class Archiver extends BaseStep implements StepInterface {
       {
         // GZip : move the file to the target folder but compress it first.
         //
-        GZIPOutputStream gzos=null; 
+        OutputStream gzos=null; 
         InputStream is = null; 
+        PipelinedCopier.Pipeline pipeline = openPipeline(generationData, KettleVFS.getOutputStream(targetFileObject, false));
         try {
-          gzos = new GZIPOutputStream(KettleVFS.getOutputStream(targetFileObject, false));
-          is = KettleVFS.getInputStream(file);
-          IOUtils.copyLarge(is, gzos);
+          gzos = createGzipOutputStream(generation, generationData, pipeline.getOutputStream());
+          is = openInputStream(generationData, sourceFile);
+          pipeline.copy(is, gzos);
+          gzos.close();
         } finally {
           IOUtils.closeQuietly(is);
           IOUtils.closeQuietly(gzos);
+          pipeline.release();
         }
       }
       break;
@@ -350,15 +1571,38 @@ public class Archiver extends BaseStep implements StepInterface {
       {
         // BZip2 : move the file to the target folder but compress it first.
         //
-        BZip2CompressorOutputStream bz2os = null; 
+        OutputStream bz2os = null; 
         InputStream is = null; 
+        PipelinedCopier.Pipeline pipeline = openPipeline(generationData, KettleVFS.getOutputStream(targetFileObject, false));
         try {
-          bz2os = new BZip2CompressorOutputStream(KettleVFS.getOutputStream(targetFileObject, false));
-          is = KettleVFS.getInputStream(file);
-          IOUtils.copyLarge(is, bz2os);
+          bz2os = createBZip2OutputStream(generation, pipeline.getOutputStream());
+          is = openInputStream(generationData, sourceFile);
+          pipeline.copy(is, bz2os);
+          bz2os.close();
         } finally {
           IOUtils.closeQuietly(is);
           IOUtils.closeQuietly(bz2os);
+          pipeline.release();
+        }
+      }
+      break;
+    case LZ4:
+      {
+        // LZ4 : move the file to the target folder but compress it first.
+        //
+        OutputStream cos = null; 
+        InputStream is = null; 
+        PipelinedCopier.Pipeline pipeline = openPipeline(generationData, KettleVFS.getOutputStream(targetFileObject, false));
+        try {
+          OutputStream os = pipeline.getOutputStream();
+          cos = createLZ4OutputStream(generation, generationData, os);
+          is = openInputStream(generationData, sourceFile);
+          pipeline.copy(is, cos);
+          cos.close();
+        } finally {
+          IOUtils.closeQuietly(is);
+          IOUtils.closeQuietly(cos);
+          pipeline.release();
         }
       }
       break;
@@ -371,11 +1615,117 @@ public class Archiver extends BaseStep implements StepInterface {
     deleteFile(generation, file);
   }
 
-  private ArchiveType archiveFile(ArchiverGeneration generation, FileObject file) throws Exception {
+  /**
+   * Wraps the given stream in a GZip stream. With more than one compression thread the blocks are deflated in parallel.
+   */
+  private OutputStream createGzipOutputStream(ArchiverGeneration generation, ArchiverGenerationData generationData, OutputStream os) throws IOException {
+    int nrThreads = getNrThreads(generation);
+    int level = generation.getCompressionLevel(this, Deflater.DEFAULT_COMPRESSION);
+    if (nrThreads<=1) {
+      return withCompressionPermits(new LevelGZIPOutputStream(os, level, generationData.levelController, data.codecPool));
+    }
+    ParallelGZIPOutputStream gzos = new ParallelGZIPOutputStream(os, getBlockCompressionPool(), nrThreads, level, ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE);
+    gzos.setLevelController(generationData.levelController);
+    gzos.setCodecPool(data.codecPool);
+    gzos.setCompressionPermits(data.compressionPermits);
+    return gzos;
+  }
+  
+  /**
+   * Wraps the given stream in a BZip2 stream. With more than one compression thread the 900k blocks are compressed in parallel.
+   */
+  private OutputStream createBZip2OutputStream(ArchiverGeneration generation, OutputStream os) throws IOException {
+    int nrThreads = getNrThreads(generation);
+    if (nrThreads<=1) {
+      return withCompressionPermits(new BZip2CompressorOutputStream(os));
+    }
+    ParallelBZip2OutputStream bz2os = new ParallelBZip2OutputStream(os, getBlockCompressionPool(), nrThreads);
+    bz2os.setCompressionPermits(data.compressionPermits);
+    return bz2os;
+  }
+  
+  /**
+   * Wraps the given stream in a LZ4 frame stream at the configured level, blocks of 4MB are compressed in parallel.
+   */
+  private OutputStream createLZ4OutputStream(ArchiverGeneration generation, ArchiverGenerationData generationData, OutputStream os) throws IOException {
+    int nrThreads = getNrThreads(generation);
+    int level = generation.getCompressionLevel(this, LZ4FrameOutputStream.DEFAULT_LEVEL);
+    LZ4FrameOutputStream lz4os = new LZ4FrameOutputStream(os, getBlockCompressionPool(), nrThreads, level);
+    lz4os.setLevelController(generationData.levelController);
+    lz4os.setCompressionPermits(data.compressionPermits);
+    return lz4os;
+  }
+  
+  /**
+   * Wraps the given stream in a XZ stream at the configured level, blocks of 4MB are compressed in parallel.
+   */
+  private OutputStream createXZOutputStream(ArchiverGeneration generation, ArchiverGenerationData generationData, OutputStream os) throws IOException {
+    int nrThreads = getNrThreads(generation);
+    int level = generation.getCompressionLevel(this, XZOutputStream.DEFAULT_LEVEL);
+    XZOutputStream xzos = new XZOutputStream(os, getBlockCompressionPool(), nrThreads, level);
+    xzos.setLevelController(generationData.levelController);
+    xzos.setCompressionPermits(data.compressionPermits);
+    return xzos;
+  }
+  
+  /**
+   * A compressor writing in the calling thread takes a compression permit for every write when the CPU share is capped.
+   */
+  private OutputStream withCompressionPermits(OutputStream cos) {
+    return data.compressionPermits==null ? cos : new CompressionPermitOutputStream(cos, data.compressionPermits);
+  }
+  
+  /**
+   * Opens a pipeline to read, compress and write at the same time, it writes to the given stream.
+   * The data written is counted against the write rate limit of the generation.
+   */
+  private PipelinedCopier.Pipeline openPipeline(ArchiverGenerationData generationData, OutputStream os) throws IOException {
+    if (generationData.writeRateLimiter!=null) {
+      os = new ThrottledOutputStream(os, generationData.writeRateLimiter);
+    }
+    PipelinedCopier copier;
+    synchronized(data) {
+      if (data.copier==null) {
+        data.ioThreads = Executors.newCachedThreadPool();
+        data.copier = new PipelinedCopier(data.ioThreads, meta.getCopyBufferSize(this), meta.getCopyQueueDepth(this), meta.getCopyMemoryLimit(this));
+      }
+      copier = data.copier;
+    }
+    try {
+      return copier.open(os);
+    } catch(IOException e) {
+      IOUtils.closeQuietly(os);
+      throw e;
+    }
+  }
+  
+  /**
+   * @return The threads shared by all streams compressing blocks in parallel, created the first time they are needed.
+   * The compression permits cap how many of them compress at the same time, together with the other compression threads.
+   */
+  private ExecutorService getBlockCompressionPool() {
+    synchronized(data) {
+      if (data.blockCompressionPool==null) {
+        int nrThreads = Math.min(Runtime.getRuntime().availableProcessors(), meta.getMaxCompressionThreads(this));
+        data.blockCompressionPool = Executors.newFixedThreadPool(nrThreads);
+      }
+      return data.blockCompressionPool;
+    }
+  }
+
+  /**
+   * @return The number of compression threads of the generation, at most the share of the CPU cores the step may use
+   */
+  private int getNrThreads(ArchiverGeneration generation) {
+    return Math.min(generation.getNrThreads(this, meta.getNrThreads(this)), meta.getMaxCompressionThreads(this));
+  }
+
+  private ArchiveType archiveFile(ArchiverGeneration generation, ArchiverGenerationData generationData, SourceFile file) throws Exception {
     // Let's calculate the age of the file, see if we need to move it or delete it...
+    // The modification time was captured when the file was found, no need to look it up again.
     //
-    long lastModifiedTime = file.getContent().getLastModifiedTime();
-    long now = getTrans().getCurrentDate().getTime();
+    long lastModifiedTime = file.getLastModifiedTime();
+    long now = getCurrentDate().getTime();
     long actualAge = now - lastModifiedTime;
     long maxWaitAge = generation.getMaxWaitTime();
     
@@ -386,11 +1736,11 @@ public class Archiver extends BaseStep implements StepInterface {
       if (Const.isEmpty(targetFolder)) {
         return ArchiveType.DELETE;
       } else {
-        data.fileNr++;
+        generationData.fileNr++;
         boolean archiveFile;
         
         if (generation.isRatioConfigured(this)) {
-          archiveFile = generation.keepFile(this, data.fileNr);          
+          archiveFile = generation.keepFile(this, generationData.fileNr);          
         } else {
           archiveFile = true;
         }
@@ -412,7 +1762,22 @@ public class Archiver extends BaseStep implements StepInterface {
   }
   
   
-  private String getTargetFile(ArchiverGeneration generation) throws KettleFileException {
+  /**
+   * @return The date the age of the files is measured against: the start of the transformation, the actual time in watch mode
+   * and in input mode, where files are handled as they arrive
+   */
+  private Date getCurrentDate() {
+    if (meta.isWatching() || meta.isReadingFilenamesFromInput()) {
+      return new Date();
+    }
+    return getTrans().getCurrentDate();
+  }
+  
+  /**
+   * @return The name of the archive: the base name, the date and time, the copy of the step when it runs in several copies
+   * and a sequence number when archives are written in batches
+   */
+  private String getTargetFile(ArchiverGeneration generation, ArchiverGenerationData generationData) throws KettleFileException {
     String targetFolder = environmentSubstitute(generation.getTargetFolder());
     FileObject sourceFolder = KettleVFS.getFileObject(environmentSubstitute(generation.getSourceFolder()));
     CompressionType compressionType = generation.getCompressionType();
@@ -422,8 +1787,16 @@ public class Archiver extends BaseStep implements StepInterface {
     } else {
       archiveBaseName = environmentSubstitute(generation.getArchiveBaseName());
     }
-    Date fileDate = getTrans().getCurrentDate();
+    Date fileDate = getCurrentDate();
     String dateString = new SimpleDateFormat("_yyyyMMdd_HHmmss").format(fileDate);
+    if (getStepMeta().getCopies()>1) {
+      // Every copy of the step writes its own archive
+      //
+      dateString += "_copy"+getCopy();
+    }
+    if (generationData.archiveNr>0) {
+      dateString += "_"+generationData.archiveNr;
+    }
     
     String targetFile = targetFolder+File.separator+archiveBaseName+dateString+compressionType.getExtension();
     return targetFile;
@@ -1,8 +1,11 @@
 package org.pentaho.di.trans.steps.archiver;
 
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
-import org.apache.commons.vfs.FileObject;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
@@ -10,10 +13,41 @@ import org.pentaho.di.trans.step.StepDataInterface;
 public class ArchiverData extends BaseStepData implements StepDataInterface {
   
   public RowMetaInterface outputRowMeta;
-  public int fileNr;
-  public List<FileObject> files;
+  
+  /** The field with the names of the files to archive and the state of every generation when the files are read from the input */
+  public int inputFilenameIndex;
+  public Map<ArchiverGeneration, ArchiverGenerationData> inputGenerations;
+  
+  /** The threads used by the streams which compress blocks of a single file in parallel */
+  public ExecutorService blockCompressionPool;
+  
+  /**
+   * The share of the CPU cores the step may use: every block, entry or buffer compressed and every archive verified takes a permit,
+   * whichever thread it runs in. Null if no share is configured.
+   */
+  public Semaphore compressionPermits;
+  
+  /** Reads ahead and writes behind the compression of files, the threads of the copier. They only wait for I/O and take no permits */
+  public PipelinedCopier copier;
+  public ExecutorService ioThreads;
+  
+  /** The I/O rate limits of the step shared by all generations, null if there is no limit */
+  public RateLimiter readRateLimiter;
+  public RateLimiter writeRateLimiter;
+  
+  /** Deflaters and buffers reused by all files, archives and compression threads of the step */
+  public CodecPool codecPool;
+  
+  /** The threads reading archives back to verify them and the verification still running for the last archive of every generation */
+  public ExecutorService verificationPool;
+  public Map<ArchiverGeneration, Future<Void>> verifications;
+  
+  /** The threads deleting the original files of the archives */
+  public ExecutorService deletePool;
 
   public ArchiverData() {
     super();
+    codecPool = new CodecPool();
+    verifications = new ConcurrentHashMap<ArchiverGeneration, Future<Void>>();
   }
 }
@@ -1,12 +1,17 @@
 package org.pentaho.di.trans.steps.archiver;
 
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
 
 import org.apache.commons.vfs.AllFileSelector;
+import org.apache.commons.vfs.FileName;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSelectInfo;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileType;
+import org.apache.commons.vfs.provider.local.LocalFile;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.variables.VariableSpace;
@@ -53,6 +58,33 @@ public class ArchiverGeneration {
   /** Flag to indicate whether or not we need to remove the original file */
   private boolean removingOriginal;
   
+  /** The number of threads compressing files in parallel for this generation, empty means the step default */
+  private String nrThreads;
+  
+  /** The number of threads listing the folders of a local source folder tree in parallel, empty means 1 */
+  private String nrScanThreads;
+  
+  /** The maximum depth of the folders below the source folder to look in, 0 is the source folder only, empty means no limit */
+  private String maxDepth;
+  
+  /** Comma separated glob patterns, only folders with a matching name are descended into. Empty means all folders */
+  private String folderIncludes;
+  
+  /** Comma separated glob patterns, folders with a matching name and everything below them are skipped */
+  private String folderExcludes;
+  
+  /** The compression level, empty means the default level of the format */
+  private String compressionLevel;
+  
+  /** The input throughput in MB/s to adapt the compression level to, empty means a fixed level */
+  private String targetThroughput;
+  
+  /** The maximum number of MB per second read for this generation, empty means only the step limit applies */
+  private String readRateLimit;
+  
+  /** The maximum number of MB per second written for this generation, empty means only the step limit applies */
+  private String writeRateLimit;
+  
   public ArchiverGeneration(String sourceFolder, String sourceRegex, String targetFolder, String waitTime,
       WaitingUnit waitUnit, String keepNumerator, String keepDenominator, CompressionType compressionType, String archiveBaseName, 
       boolean removingOriginal) {
@@ -80,6 +112,15 @@ public class ArchiverGeneration {
     compressionType = CompressionType.getCompressionTypeForCode(XMLHandler.getTagValue(node, "compression_type"));
     archiveBaseName = XMLHandler.getTagValue(node, "archive_base");
     removingOriginal = "Y".equalsIgnoreCase(XMLHandler.getTagValue(node, "remove_original"));
+    nrThreads = XMLHandler.getTagValue(node, "nr_threads");
+    nrScanThreads = XMLHandler.getTagValue(node, "nr_scan_threads");
+    maxDepth = XMLHandler.getTagValue(node, "max_depth");
+    folderIncludes = XMLHandler.getTagValue(node, "folder_includes");
+    folderExcludes = XMLHandler.getTagValue(node, "folder_excludes");
+    compressionLevel = XMLHandler.getTagValue(node, "compression_level");
+    targetThroughput = XMLHandler.getTagValue(node, "target_throughput");
+    readRateLimit = XMLHandler.getTagValue(node, "read_rate_limit");
+    writeRateLimit = XMLHandler.getTagValue(node, "write_rate_limit");
   }
    
   public ArchiverGeneration(Repository rep, ObjectId id_step, int i) throws KettleException {
@@ -93,6 +134,15 @@ public class ArchiverGeneration {
     compressionType = CompressionType.getCompressionTypeForCode(rep.getStepAttributeString(id_step, i, "compression_type"));
     archiveBaseName = rep.getStepAttributeString(id_step, i, "archive_base");
     removingOriginal = rep.getStepAttributeBoolean(id_step, i, "remove_original");
+    nrThreads = rep.getStepAttributeString(id_step, i, "nr_threads");
+    nrScanThreads = rep.getStepAttributeString(id_step, i, "nr_scan_threads");
+    maxDepth = rep.getStepAttributeString(id_step, i, "max_depth");
+    folderIncludes = rep.getStepAttributeString(id_step, i, "folder_includes");
+    folderExcludes = rep.getStepAttributeString(id_step, i, "folder_excludes");
+    compressionLevel = rep.getStepAttributeString(id_step, i, "compression_level");
+    targetThroughput = rep.getStepAttributeString(id_step, i, "target_throughput");
+    readRateLimit = rep.getStepAttributeString(id_step, i, "read_rate_limit");
+    writeRateLimit = rep.getStepAttributeString(id_step, i, "write_rate_limit");
   }
 
   public String getXML() {
@@ -109,6 +159,15 @@ public class ArchiverGeneration {
     xml.append(XMLHandler.addTagValue("compression_type", compressionType!=null ? compressionType.getCode() : null));
     xml.append(XMLHandler.addTagValue("archive_base", archiveBaseName));
     xml.append(XMLHandler.addTagValue("remove_original", removingOriginal));
+    xml.append(XMLHandler.addTagValue("nr_threads", nrThreads));
+    xml.append(XMLHandler.addTagValue("nr_scan_threads", nrScanThreads));
+    xml.append(XMLHandler.addTagValue("max_depth", maxDepth));
+    xml.append(XMLHandler.addTagValue("folder_includes", folderIncludes));
+    xml.append(XMLHandler.addTagValue("folder_excludes", folderExcludes));
+    xml.append(XMLHandler.addTagValue("compression_level", compressionLevel));
+    xml.append(XMLHandler.addTagValue("target_throughput", targetThroughput));
+    xml.append(XMLHandler.addTagValue("read_rate_limit", readRateLimit));
+    xml.append(XMLHandler.addTagValue("write_rate_limit", writeRateLimit));
     
     xml.append(XMLHandler.closeTag(XML_TAG));
     
@@ -126,29 +185,149 @@ public class ArchiverGeneration {
     rep.saveStepAttribute(id_transformation, id_step, i, "compression_type", compressionType!=null ? compressionType.getCode() : null);
     rep.saveStepAttribute(id_transformation, id_step, i, "archive_base", archiveBaseName);
     rep.saveStepAttribute(id_transformation, id_step, i, "remove_original", removingOriginal);
+    rep.saveStepAttribute(id_transformation, id_step, i, "nr_threads", nrThreads);
+    rep.saveStepAttribute(id_transformation, id_step, i, "nr_scan_threads", nrScanThreads);
+    rep.saveStepAttribute(id_transformation, id_step, i, "max_depth", maxDepth);
+    rep.saveStepAttribute(id_transformation, id_step, i, "folder_includes", folderIncludes);
+    rep.saveStepAttribute(id_transformation, id_step, i, "folder_excludes", folderExcludes);
+    rep.saveStepAttribute(id_transformation, id_step, i, "compression_level", compressionLevel);
+    rep.saveStepAttribute(id_transformation, id_step, i, "target_throughput", targetThroughput);
+    rep.saveStepAttribute(id_transformation, id_step, i, "read_rate_limit", readRateLimit);
+    rep.saveStepAttribute(id_transformation, id_step, i, "write_rate_limit", writeRateLimit);
   }
 
-  public FileObject[] findFiles(VariableSpace space) throws KettleException {
+  /**
+   * Iterates over the files of this generation. Local folders are walked lazily so files can be handled while the scan is running,
+   * with more than one scan thread the sub folders are listed in parallel.
+   * Other file systems are listed completely up front with {@link #findFiles(VariableSpace)}.
+   */
+  public Iterator<SourceFile> iterateFiles(VariableSpace space) throws KettleException {
+    return iterateFiles(space, null, Long.MAX_VALUE);
+  }
+  
+  /**
+   * Iterates over the files of this generation. A local source folder is walked with the help of the scan index
+   * of the previous walk if one is given: only the files old enough to be handled are returned.
+   * 
+   * @param indexFile The scan index of the source folder or null to list all folders
+   * @param maxLastModifiedTime Files modified at or after this time in ms are not returned when a scan index is used
+   */
+  public Iterator<SourceFile> iterateFiles(VariableSpace space, Path indexFile, long maxLastModifiedTime) throws KettleException {
+    try {
+      FileObject sourceFileObject = KettleVFS.getFileObject(space.environmentSubstitute(sourceFolder));
+      if (!(sourceFileObject instanceof LocalFile)) {
+        final Iterator<FileObject> files = Arrays.asList(findFiles(space)).iterator();
+        return new Iterator<SourceFile>() {
+          public boolean hasNext() {
+            return files.hasNext();
+          }
+          public SourceFile next() {
+            try {
+              return SourceFile.fromFileObject(files.next());
+            } catch(FileSystemException e) {
+              throw new RuntimeException(e);
+            }
+          }
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+      Path sourcePath = SourceFile.getLocalPath(sourceFileObject).toAbsolutePath().normalize();
+      FileSelection selection = getFileSelection(space, getLocalTargetPath(space));
+      if (indexFile!=null) {
+        return new IndexedLocalFileIterator(sourcePath, selection, indexFile, maxLastModifiedTime);
+      }
+      int scanThreads = Const.toInt(space.environmentSubstitute(nrScanThreads), 1);
+      if (scanThreads>1) {
+        return new ParallelLocalFileIterator(sourcePath, selection, scanThreads);
+      }
+      return new LocalFileIterator(sourcePath, selection);
+    } catch(Exception e) {
+      throw new KettleException(BaseMessages.getString(PKG, "ArchiverGeneration.ErrorListingFiles"), e);
+    }
+  }
+  
+  /**
+   * Starts following the files of the local source folder, the folder tree is scanned first.
+   * 
+   * @return The watcher handing out the files once they stayed unchanged for the wait time
+   */
+  public FolderWatcher watchFiles(VariableSpace space) throws KettleException {
     try {
-      final Pattern pattern;
-      String realSourceRegex = space.environmentSubstitute(sourceRegex);
-      if (Const.isEmpty(realSourceRegex)) {
-        pattern = null;
-      } else {
-        pattern = Pattern.compile(realSourceRegex);
+      FileObject sourceFileObject = KettleVFS.getFileObject(space.environmentSubstitute(sourceFolder));
+      if (!(sourceFileObject instanceof LocalFile)) {
+        throw new KettleException(BaseMessages.getString(PKG, "ArchiverGeneration.WatchOnlySupportsLocalFolders", sourceFileObject.toString()));
+      }
+      Path sourcePath = SourceFile.getLocalPath(sourceFileObject).toAbsolutePath().normalize();
+      return new FolderWatcher(sourcePath, getFileSelection(space, getLocalTargetPath(space)), getMaxWaitTime());
+    } catch(KettleException e) {
+      throw e;
+    } catch(Exception e) {
+      throw new KettleException(BaseMessages.getString(PKG, "ArchiverGeneration.ErrorListingFiles"), e);
+    }
+  }
+  
+  /**
+   * Don't pick up the files we create ourselves when the target folder lives below the source folder.
+   * 
+   * @return The local target folder not to descend into, null if the target is not a local folder
+   */
+  private Path getLocalTargetPath(VariableSpace space) throws KettleException, FileSystemException {
+    String realTargetFolder = space.environmentSubstitute(targetFolder);
+    if (!Const.isEmpty(realTargetFolder)) {
+      FileObject targetFileObject = KettleVFS.getFileObject(realTargetFolder);
+      if (targetFileObject instanceof LocalFile) {
+        return SourceFile.getLocalPath(targetFileObject).toAbsolutePath().normalize();
       }
+    }
+    return null;
+  }
+  
+  /**
+   * @return A name for the state kept between runs of this generation: its scan index and its archive journal.
+   * It changes when the source folder or the file selection changes so the state is never used for a different selection of files.
+   */
+  public String getStateName(VariableSpace space) {
+    StringBuilder key = new StringBuilder();
+    for (String setting : new String[] { sourceFolder, sourceRegex, targetFolder, maxDepth, folderIncludes, folderExcludes }) {
+      key.append(Const.NVL(space.environmentSubstitute(setting), "")).append('\n');
+    }
+    byte[] bytes = key.toString().getBytes(StandardCharsets.UTF_8);
+    XXHash64 hash = new XXHash64();
+    hash.update(bytes, 0, bytes.length);
+    return String.format("archiver_%016x", hash.getValue());
+  }
+  
+  /**
+   * @param excludedFolder A local folder not to descend into or null
+   * @return The file selection of this generation: the source files regular expression and the folder rules.
+   */
+  public FileSelection getFileSelection(VariableSpace space, Path excludedFolder) {
+    String realSourceRegex = space.environmentSubstitute(sourceRegex);
+    FileNameMatcher fileMatcher = Const.isEmpty(realSourceRegex) ? null : FileNameMatcher.fromRegex(realSourceRegex);
+    FileNameMatcher folderIncludeMatcher = FileNameMatcher.fromGlobs(space.environmentSubstitute(folderIncludes));
+    FileNameMatcher folderExcludeMatcher = FileNameMatcher.fromGlobs(space.environmentSubstitute(folderExcludes));
+    int depth = Const.toInt(space.environmentSubstitute(maxDepth), -1);
+    
+    return new FileSelection(fileMatcher, folderIncludeMatcher, folderExcludeMatcher, depth, excludedFolder);
+  }
+
+  /**
+   * Lists the selected files of the source folder through VFS. Like the local walks it doesn't descend into the target folder
+   * when it lives below the source folder: the archives written there are not source files.
+   */
+  public FileObject[] findFiles(VariableSpace space) throws KettleException {
+    try {
+      final FileSelection selection = getFileSelection(space, null);
+      final FileName targetFolderName = getFolderName(space, targetFolder);
       FileObject sourceFileObject = KettleVFS.getFileObject(space.environmentSubstitute(sourceFolder));
       FileObject[] files = sourceFileObject.findFiles(new AllFileSelector() {
         @Override
         public boolean includeFile(FileSelectInfo info) {
           try {
             if (info.getFile().getType().equals(FileType.FILE)) {
-              if (pattern==null) {
-                return true;
-              } else {
-                String baseName = info.getFile().getName().getBaseName();
-                return pattern.matcher(baseName).matches();
-              }
+              return selection.isFileSelected(info.getFile().getName().getBaseName());
             }
             return false;
           } catch(FileSystemException e) {
@@ -157,8 +336,16 @@ public class ArchiverGeneration {
         }
         
         @Override
-        public boolean traverseDescendents(FileSelectInfo arg0) {
-          return true;
+        public boolean traverseDescendents(FileSelectInfo info) {
+          // The source folder itself is always listed, pruned folders are not
+          //
+          if (info.getDepth()==0) {
+            return true;
+          }
+          if (info.getFile().getName().equals(targetFolderName)) {
+            return false;
+          }
+          return selection.isFolderSelected(info.getFile().getName().getBaseName(), info.getDepth());
         }
       });
       
@@ -209,8 +396,95 @@ public class ArchiverGeneration {
     return ((fileNr%denominator)+1)<=numerator;
   }
   
+  /**
+   * @return The number of compression threads to use for this generation, the given default if nothing (valid) is configured.
+   */
+  public int getNrThreads(VariableSpace space, int defaultNrThreads) {
+    int threads = Const.toInt(space.environmentSubstitute(nrThreads), 0);
+    if (threads<=0) {
+      return defaultNrThreads;
+    }
+    return threads;
+  }
+  
+  /**
+   * @return The configured compression level brought within the levels of the compression type, the given default if nothing
+   * (valid) is configured.
+   */
+  public int getCompressionLevel(VariableSpace space, int defaultLevel) {
+    int level = Const.toInt(space.environmentSubstitute(compressionLevel), 0);
+    if (level<=0) {
+      return defaultLevel;
+    }
+    CompressionType type = getCompressionType();
+    if (type!=null && type.hasLevels()) {
+      return Math.max(type.getMinLevel(), Math.min(type.getMaxLevel(), level));
+    }
+    return level;
+  }
+  
+  /**
+   * @return The input throughput in MB/s to adapt the compression level to, 0 if the level is fixed
+   */
+  public double getTargetThroughput(VariableSpace space) {
+    return Math.max(0.0, Const.toDouble(space.environmentSubstitute(targetThroughput), 0.0));
+  }
+  
+  /**
+   * @return The maximum number of bytes per second read for this generation, 0 if only the step limit applies
+   */
+  public long getReadRateLimit(VariableSpace space) {
+    return ArchiverMeta.getRateLimit(space, readRateLimit);
+  }
+  
+  /**
+   * @return The maximum number of bytes per second written for this generation, 0 if only the step limit applies
+   */
+  public long getWriteRateLimit(VariableSpace space) {
+    return ArchiverMeta.getRateLimit(space, writeRateLimit);
+  }
+  
+  /**
+   * Generations configured one after the other depend on each other when the later one reads from the source or target
+   * folder of the earlier one or writes into its source folder. They can't be handled at the same time.
+   * Source folders are walked with their sub folders, so a folder below or above one of the other folders counts as well.
+   *  
+   * @param previous A generation configured before this one
+   * @return true if this generation can only be handled after the previous one.
+   */
+  public boolean dependsOn(ArchiverGeneration previous, VariableSpace space) throws KettleException {
+    FileName source = getFolderName(space, sourceFolder);
+    FileName target = getFolderName(space, targetFolder);
+    FileName previousSource = getFolderName(space, previous.sourceFolder);
+    FileName previousTarget = getFolderName(space, previous.targetFolder);
+    
+    if (overlaps(source, previousTarget) || overlaps(source, previousSource)) {
+      return true;
+    }
+    return overlaps(target, previousSource);
+  }
+  
+  /**
+   * @return true if both folders are given and one is the other or lies below it
+   */
+  private static boolean overlaps(FileName one, FileName two) {
+    if (one==null || two==null) {
+      return false;
+    }
+    return one.equals(two) || one.isDescendent(two) || two.isDescendent(one);
+  }
+  
+  private static FileName getFolderName(VariableSpace space, String folder) throws KettleException {
+    String realFolder = space.environmentSubstitute(folder);
+    if (Const.isEmpty(realFolder)) {
+      return null;
+    }
+    return KettleVFS.getFileObject(realFolder).getName();
+  }
+  
   public boolean isArchivedToSingleFile() {
-    return compressionType==null || compressionType==CompressionType.NONE || compressionType==CompressionType.GZIP  || compressionType==CompressionType.BZIP;
+    return compressionType==null || compressionType==CompressionType.NONE || compressionType==CompressionType.GZIP  || compressionType==CompressionType.BZIP
+        || compressionType==CompressionType.LZ4;
   }
 
   
@@ -296,4 +570,76 @@ public class ArchiverGeneration {
   public void setRemovingOriginal(boolean removingOriginal) {
     this.removingOriginal = removingOriginal;
   }
+
+  public String getNrThreads() {
+    return nrThreads;
+  }
+
+  public void setNrThreads(String nrThreads) {
+    this.nrThreads = nrThreads;
+  }
+
+  public String getNrScanThreads() {
+    return nrScanThreads;
+  }
+
+  public void setNrScanThreads(String nrScanThreads) {
+    this.nrScanThreads = nrScanThreads;
+  }
+
+  public String getMaxDepth() {
+    return maxDepth;
+  }
+
+  public void setMaxDepth(String maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  public String getFolderIncludes() {
+    return folderIncludes;
+  }
+
+  public void setFolderIncludes(String folderIncludes) {
+    this.folderIncludes = folderIncludes;
+  }
+
+  public String getFolderExcludes() {
+    return folderExcludes;
+  }
+
+  public void setFolderExcludes(String folderExcludes) {
+    this.folderExcludes = folderExcludes;
+  }
+
+  public String getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  public void setCompressionLevel(String compressionLevel) {
+    this.compressionLevel = compressionLevel;
+  }
+
+  public String getTargetThroughput() {
+    return targetThroughput;
+  }
+
+  public void setTargetThroughput(String targetThroughput) {
+    this.targetThroughput = targetThroughput;
+  }
+
+  public String getReadRateLimit() {
+    return readRateLimit;
+  }
+
+  public void setReadRateLimit(String readRateLimit) {
+    this.readRateLimit = readRateLimit;
+  }
+
+  public String getWriteRateLimit() {
+    return writeRateLimit;
+  }
+
+  public void setWriteRateLimit(String writeRateLimit) {
+    this.writeRateLimit = writeRateLimit;
+  }
 }
@@ -0,0 +1,41 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.vfs.FileName;
+
+/**
+ * The state kept while a single generation is handled, generations can be handled in parallel.
+ */
+public class ArchiverGenerationData {
+  
+  public int fileNr;
+  public List<SourceFile> files;
+  
+  /** Picks the compression levels when a target throughput is configured, null otherwise */
+  public CompressionLevelController levelController;
+  
+  /** Limit the bytes per second read and written for the generation, null if there is no limit */
+  public RateLimiter readRateLimiter;
+  public RateLimiter writeRateLimiter;
+  
+  /** The files which were compressed already and were stored or moved as they are, with their size */
+  public int nrSkippedFiles;
+  public long nrSkippedBytes;
+  
+  /** The number of the archive being written when the files are archived in batches, 0 for a single archive */
+  public int archiveNr;
+  
+  /** The time in ms the first file of the batch being collected was found in watch mode */
+  public long batchStartTime;
+  
+  /** The source folder and the file selection to match the files named in input rows with */
+  public FileName sourceFolder;
+  public FileSelection selection;
+
+  public ArchiverGenerationData() {
+    fileNr = 0;
+    files = new ArrayList<SourceFile>();
+  }
+}
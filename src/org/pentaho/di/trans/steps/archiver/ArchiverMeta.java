@@ -18,6 +18,8 @@ import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
 import org.pentaho.di.core.row.value.ValueMetaString;
 import org.pentaho.di.core.variables.VariableSpace;
 import org.pentaho.di.core.xml.XMLHandler;
@@ -49,7 +51,73 @@ public class ArchiverMeta extends BaseStepMeta implements StepMetaInterface {
   
   private static Class<?> PKG = ArchiverMeta.class;
   
+  /** Files of 256MB and more are memory mapped by default */
+  public static final long DEFAULT_MMAP_THRESHOLD_MB = 256L;
+  
+  /** Files named in the input are archived per 100 by default */
+  public static final int DEFAULT_INPUT_BATCH_SIZE = 100;
+  
+  /** Files collected for an archive in watch mode are archived after a minute by default */
+  public static final int DEFAULT_WATCH_FLUSH_INTERVAL = 60;
+  
+  /** The original files of an archive are deleted by 8 threads by default */
+  public static final int DEFAULT_NR_DELETE_THREADS = 8;
+  
   private List<ArchiverGeneration> generations;
+  
+  /** The default number of threads used to compress files in parallel */
+  private String nrThreads;
+  
+  /** The number of generations to handle at the same time */
+  private String nrGenerationThreads;
+  
+  /** The size in KB of the buffers handed from the reader to the compressor to the writer */
+  private String copyBufferSize;
+  
+  /** The number of buffers waiting between the reader, the compressor and the writer */
+  private String copyQueueDepth;
+  
+  /** The maximum memory in MB of the copy buffers of all files and archives being written */
+  private String copyMemoryLimit;
+  
+  /** The size in MB from which local files are read through memory mapped windows, -1 to never map them */
+  private String mmapThreshold;
+  
+  /** The input field with the names of the files to archive, empty to scan the source folders */
+  private String inputFilenameField;
+  
+  /** The number of files named in the input which are collected in a single archive */
+  private String inputBatchSize;
+  
+  /** The maximum number of MB per second read by the step, empty means no limit */
+  private String readRateLimit;
+  
+  /** The maximum number of MB per second written by the step, empty means no limit */
+  private String writeRateLimit;
+  
+  /** The percentage of the CPU cores the compression threads may use, empty means all of them */
+  private String maxCpuShare;
+  
+  /** The local folder to keep the scan indexes of the source folders in, empty means the source folders are listed completely */
+  private String scanIndexFolder;
+  
+  /** Flag to keep running and handle the files as soon as they are old enough instead of scanning the source folders once */
+  private boolean watching;
+  
+  /** The maximum time in seconds files collected for an archive wait in watch mode before the archive is written */
+  private String watchFlushInterval;
+  
+  /** The number of MB written to an archive between two checkpoints of its journal, empty means archives are not journaled */
+  private String checkpointInterval;
+  
+  /** The digest to verify archives with before the original files are removed, NONE means archives are not verified */
+  private DigestType verifyDigest;
+  
+  /** The number of threads deleting the original files of the archives */
+  private String nrDeleteThreads;
+  
+  /** Flag to remove the sub folders of a source folder which are left empty once the original files of an archive are deleted */
+  private boolean removingEmptyFolders;
 
   public ArchiverMeta() {
     super();
@@ -58,6 +126,24 @@ public class ArchiverMeta extends BaseStepMeta implements StepMetaInterface {
   
   public void clear() {
     generations = new ArrayList<ArchiverGeneration>();
+    nrThreads = null;
+    nrGenerationThreads = null;
+    copyBufferSize = null;
+    copyQueueDepth = null;
+    copyMemoryLimit = null;
+    mmapThreshold = null;
+    inputFilenameField = null;
+    inputBatchSize = null;
+    readRateLimit = null;
+    writeRateLimit = null;
+    maxCpuShare = null;
+    scanIndexFolder = null;
+    watching = false;
+    watchFlushInterval = null;
+    checkpointInterval = null;
+    verifyDigest = DigestType.NONE;
+    nrDeleteThreads = null;
+    removingEmptyFolders = false;
   }
 
   
@@ -68,6 +154,24 @@ public class ArchiverMeta extends BaseStepMeta implements StepMetaInterface {
 
   public void loadXML(Node stepnode, List<DatabaseMeta> databases, Map<String, Counter> counters) throws KettleXMLException {
     clear();
+    nrThreads = XMLHandler.getTagValue(stepnode, "nr_threads");
+    nrGenerationThreads = XMLHandler.getTagValue(stepnode, "nr_generation_threads");
+    copyBufferSize = XMLHandler.getTagValue(stepnode, "copy_buffer_size");
+    copyQueueDepth = XMLHandler.getTagValue(stepnode, "copy_queue_depth");
+    copyMemoryLimit = XMLHandler.getTagValue(stepnode, "copy_memory_limit");
+    mmapThreshold = XMLHandler.getTagValue(stepnode, "mmap_threshold");
+    inputFilenameField = XMLHandler.getTagValue(stepnode, "input_filename_field");
+    inputBatchSize = XMLHandler.getTagValue(stepnode, "input_batch_size");
+    readRateLimit = XMLHandler.getTagValue(stepnode, "read_rate_limit");
+    writeRateLimit = XMLHandler.getTagValue(stepnode, "write_rate_limit");
+    maxCpuShare = XMLHandler.getTagValue(stepnode, "max_cpu_share");
+    scanIndexFolder = XMLHandler.getTagValue(stepnode, "scan_index_folder");
+    watching = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "watch"));
+    watchFlushInterval = XMLHandler.getTagValue(stepnode, "watch_flush_interval");
+    checkpointInterval = XMLHandler.getTagValue(stepnode, "checkpoint_interval");
+    verifyDigest = DigestType.getDigestTypeForCode(XMLHandler.getTagValue(stepnode, "verify_digest"));
+    nrDeleteThreads = XMLHandler.getTagValue(stepnode, "nr_delete_threads");
+    removingEmptyFolders = "Y".equalsIgnoreCase(XMLHandler.getTagValue(stepnode, "remove_empty_folders"));
     Node generationsNode = XMLHandler.getSubNode(stepnode, "generations");
     List<Node> generationNodes = XMLHandler.getNodes(generationsNode, ArchiverGeneration.XML_TAG);
     for (Node generationNode : generationNodes) {
@@ -78,6 +182,24 @@ public class ArchiverMeta extends BaseStepMeta implements StepMetaInterface {
   @Override
   public String getXML() throws KettleException {
     StringBuilder xml = new StringBuilder();
+    xml.append(XMLHandler.addTagValue("nr_threads", nrThreads));
+    xml.append(XMLHandler.addTagValue("nr_generation_threads", nrGenerationThreads));
+    xml.append(XMLHandler.addTagValue("copy_buffer_size", copyBufferSize));
+    xml.append(XMLHandler.addTagValue("copy_queue_depth", copyQueueDepth));
+    xml.append(XMLHandler.addTagValue("copy_memory_limit", copyMemoryLimit));
+    xml.append(XMLHandler.addTagValue("mmap_threshold", mmapThreshold));
+    xml.append(XMLHandler.addTagValue("input_filename_field", inputFilenameField));
+    xml.append(XMLHandler.addTagValue("input_batch_size", inputBatchSize));
+    xml.append(XMLHandler.addTagValue("read_rate_limit", readRateLimit));
+    xml.append(XMLHandler.addTagValue("write_rate_limit", writeRateLimit));
+    xml.append(XMLHandler.addTagValue("max_cpu_share", maxCpuShare));
+    xml.append(XMLHandler.addTagValue("scan_index_folder", scanIndexFolder));
+    xml.append(XMLHandler.addTagValue("watch", watching));
+    xml.append(XMLHandler.addTagValue("watch_flush_interval", watchFlushInterval));
+    xml.append(XMLHandler.addTagValue("checkpoint_interval", checkpointInterval));
+    xml.append(XMLHandler.addTagValue("verify_digest", verifyDigest!=null ? verifyDigest.getCode() : null));
+    xml.append(XMLHandler.addTagValue("nr_delete_threads", nrDeleteThreads));
+    xml.append(XMLHandler.addTagValue("remove_empty_folders", removingEmptyFolders));
     xml.append(XMLHandler.openTag("generations"));
     for (ArchiverGeneration generation : generations) {
       xml.append(generation.getXML());
@@ -93,9 +215,35 @@ public class ArchiverMeta extends BaseStepMeta implements StepMetaInterface {
     
     ValueMetaInterface operation = new ValueMetaString("operation");
     inputRowMeta.addValueMeta(operation);
+    
+    // Files which were compressed already are stored or moved as they are
+    //
+    ValueMetaInterface compressionSkipped = new ValueMetaBoolean("compression_skipped");
+    inputRowMeta.addValueMeta(compressionSkipped);
+    
+    ValueMetaInterface skippedBytes = new ValueMetaInteger("skipped_bytes");
+    inputRowMeta.addValueMeta(skippedBytes);
   }
   
   public void saveRep(Repository rep, ObjectId id_transformation, ObjectId id_step) throws KettleException {
+    rep.saveStepAttribute(id_transformation, id_step, "nr_threads", nrThreads);
+    rep.saveStepAttribute(id_transformation, id_step, "nr_generation_threads", nrGenerationThreads);
+    rep.saveStepAttribute(id_transformation, id_step, "copy_buffer_size", copyBufferSize);
+    rep.saveStepAttribute(id_transformation, id_step, "copy_queue_depth", copyQueueDepth);
+    rep.saveStepAttribute(id_transformation, id_step, "copy_memory_limit", copyMemoryLimit);
+    rep.saveStepAttribute(id_transformation, id_step, "mmap_threshold", mmapThreshold);
+    rep.saveStepAttribute(id_transformation, id_step, "input_filename_field", inputFilenameField);
+    rep.saveStepAttribute(id_transformation, id_step, "input_batch_size", inputBatchSize);
+    rep.saveStepAttribute(id_transformation, id_step, "read_rate_limit", readRateLimit);
+    rep.saveStepAttribute(id_transformation, id_step, "write_rate_limit", writeRateLimit);
+    rep.saveStepAttribute(id_transformation, id_step, "max_cpu_share", maxCpuShare);
+    rep.saveStepAttribute(id_transformation, id_step, "scan_index_folder", scanIndexFolder);
+    rep.saveStepAttribute(id_transformation, id_step, "watch", watching);
+    rep.saveStepAttribute(id_transformation, id_step, "watch_flush_interval", watchFlushInterval);
+    rep.saveStepAttribute(id_transformation, id_step, "checkpoint_interval", checkpointInterval);
+    rep.saveStepAttribute(id_transformation, id_step, "verify_digest", verifyDigest!=null ? verifyDigest.getCode() : null);
+    rep.saveStepAttribute(id_transformation, id_step, "nr_delete_threads", nrDeleteThreads);
+    rep.saveStepAttribute(id_transformation, id_step, "remove_empty_folders", removingEmptyFolders);
     for (int i=0;i<generations.size();i++) {
       ArchiverGeneration generation = generations.get(i);
       generation.saveRep(rep, id_transformation, id_step, i);
@@ -104,6 +252,24 @@ public class ArchiverMeta extends BaseStepMeta implements StepMetaInterface {
 
   public void readRep(Repository rep, ObjectId id_step, List<DatabaseMeta> databases, Map<String, Counter> counters) throws KettleException {
     clear();
+    nrThreads = rep.getStepAttributeString(id_step, "nr_threads");
+    nrGenerationThreads = rep.getStepAttributeString(id_step, "nr_generation_threads");
+    copyBufferSize = rep.getStepAttributeString(id_step, "copy_buffer_size");
+    copyQueueDepth = rep.getStepAttributeString(id_step, "copy_queue_depth");
+    copyMemoryLimit = rep.getStepAttributeString(id_step, "copy_memory_limit");
+    mmapThreshold = rep.getStepAttributeString(id_step, "mmap_threshold");
+    inputFilenameField = rep.getStepAttributeString(id_step, "input_filename_field");
+    inputBatchSize = rep.getStepAttributeString(id_step, "input_batch_size");
+    readRateLimit = rep.getStepAttributeString(id_step, "read_rate_limit");
+    writeRateLimit = rep.getStepAttributeString(id_step, "write_rate_limit");
+    maxCpuShare = rep.getStepAttributeString(id_step, "max_cpu_share");
+    scanIndexFolder = rep.getStepAttributeString(id_step, "scan_index_folder");
+    watching = rep.getStepAttributeBoolean(id_step, "watch");
+    watchFlushInterval = rep.getStepAttributeString(id_step, "watch_flush_interval");
+    checkpointInterval = rep.getStepAttributeString(id_step, "checkpoint_interval");
+    verifyDigest = DigestType.getDigestTypeForCode(rep.getStepAttributeString(id_step, "verify_digest"));
+    nrDeleteThreads = rep.getStepAttributeString(id_step, "nr_delete_threads");
+    removingEmptyFolders = rep.getStepAttributeBoolean(id_step, "remove_empty_folders");
     int nrGenerations = rep.countNrStepAttributes(id_step, "source_folder");
     for (int i=0;i<nrGenerations;i++) {
       generations.add(new ArchiverGeneration(rep, id_step, i));
@@ -118,6 +284,15 @@ public class ArchiverMeta extends BaseStepMeta implements StepMetaInterface {
       if (Const.isEmpty(generation.getTargetFolder())) {
         remarks.add(new CheckResult(CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(PKG, "ArchiverMeta.CheckResult.EmptyTargetFolder.WarningMessage"), stepMeta));
       }
+      CompressionType compressionType = generation.getCompressionType();
+      int level = Const.toInt(transMeta.environmentSubstitute(generation.getCompressionLevel()), 0);
+      if (level>0 && compressionType!=null && compressionType.hasLevels() && (level<compressionType.getMinLevel() || level>compressionType.getMaxLevel())) {
+        remarks.add(new CheckResult(CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString(PKG, "ArchiverMeta.CheckResult.CompressionLevelOutOfRange.WarningMessage", 
+            Integer.toString(level), compressionType.getDescription(), Integer.toString(compressionType.getMinLevel()), Integer.toString(compressionType.getMaxLevel())), stepMeta));
+      }
+      if (isVerifying() && !generation.isArchivedToSingleFile() && !generation.getCompressionType().isVerifiable()) {
+        remarks.add(new CheckResult(CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString(PKG, "ArchiverMeta.CheckResult.ArchiveNotVerifiable.ErrorMessage", generation.getCompressionType().getDescription()), stepMeta));
+      }
     }
   }
 
@@ -138,6 +313,269 @@ public class ArchiverMeta extends BaseStepMeta implements StepMetaInterface {
     return generations;
   }
   
+  /**
+   * @return The default number of compression threads, at least 1.
+   */
+  public int getNrThreads(VariableSpace space) {
+    return Math.max(1, Const.toInt(space.environmentSubstitute(nrThreads), 1));
+  }
+
+  public String getNrThreads() {
+    return nrThreads;
+  }
+
+  public void setNrThreads(String nrThreads) {
+    this.nrThreads = nrThreads;
+  }
+  
+  /**
+   * @return The number of generations to handle at the same time, at least 1.
+   */
+  public int getNrGenerationThreads(VariableSpace space) {
+    return Math.max(1, Const.toInt(space.environmentSubstitute(nrGenerationThreads), 1));
+  }
+
+  public String getNrGenerationThreads() {
+    return nrGenerationThreads;
+  }
+
+  public void setNrGenerationThreads(String nrGenerationThreads) {
+    this.nrGenerationThreads = nrGenerationThreads;
+  }
+  
+  /**
+   * @return The size of the copy buffers in bytes
+   */
+  public int getCopyBufferSize(VariableSpace space) {
+    return Math.max(1, Const.toInt(space.environmentSubstitute(copyBufferSize), PipelinedCopier.DEFAULT_BUFFER_SIZE/1024))*1024;
+  }
+
+  public String getCopyBufferSize() {
+    return copyBufferSize;
+  }
+
+  public void setCopyBufferSize(String copyBufferSize) {
+    this.copyBufferSize = copyBufferSize;
+  }
+  
+  /**
+   * @return The number of buffers which can wait between two copy stages, at least 1.
+   */
+  public int getCopyQueueDepth(VariableSpace space) {
+    return Math.max(1, Const.toInt(space.environmentSubstitute(copyQueueDepth), PipelinedCopier.DEFAULT_QUEUE_DEPTH));
+  }
+
+  public String getCopyQueueDepth() {
+    return copyQueueDepth;
+  }
+
+  public void setCopyQueueDepth(String copyQueueDepth) {
+    this.copyQueueDepth = copyQueueDepth;
+  }
+  
+  /**
+   * @return The maximum memory of all copy buffers together in bytes
+   */
+  public long getCopyMemoryLimit(VariableSpace space) {
+    return Const.toLong(space.environmentSubstitute(copyMemoryLimit), PipelinedCopier.DEFAULT_MEMORY_LIMIT/(1024*1024))*1024*1024;
+  }
+
+  public String getCopyMemoryLimit() {
+    return copyMemoryLimit;
+  }
+
+  public void setCopyMemoryLimit(String copyMemoryLimit) {
+    this.copyMemoryLimit = copyMemoryLimit;
+  }
+  
+  /**
+   * @return The size in bytes from which local files are memory mapped, -1 if they are never mapped
+   */
+  public long getMmapThreshold(VariableSpace space) {
+    long threshold = Const.toLong(space.environmentSubstitute(mmapThreshold), DEFAULT_MMAP_THRESHOLD_MB);
+    return threshold<0 ? -1L : threshold*1024*1024;
+  }
+
+  public String getMmapThreshold() {
+    return mmapThreshold;
+  }
+
+  public void setMmapThreshold(String mmapThreshold) {
+    this.mmapThreshold = mmapThreshold;
+  }
+  
+  /**
+   * @return true if the files to archive are named in the input rows instead of found in the source folders
+   */
+  public boolean isReadingFilenamesFromInput() {
+    return !Const.isEmpty(inputFilenameField);
+  }
+
+  public String getInputFilenameField() {
+    return inputFilenameField;
+  }
+
+  public void setInputFilenameField(String inputFilenameField) {
+    this.inputFilenameField = inputFilenameField;
+  }
+  
+  /**
+   * @return The number of files named in the input or found in watch mode collected in an archive, at least 1.
+   */
+  public int getInputBatchSize(VariableSpace space) {
+    return Math.max(1, Const.toInt(space.environmentSubstitute(inputBatchSize), DEFAULT_INPUT_BATCH_SIZE));
+  }
+
+  public String getInputBatchSize() {
+    return inputBatchSize;
+  }
+
+  public void setInputBatchSize(String inputBatchSize) {
+    this.inputBatchSize = inputBatchSize;
+  }
+  
+  /**
+   * @return The maximum number of bytes per second read by the step, 0 if there is no limit
+   */
+  public long getReadRateLimit(VariableSpace space) {
+    return getRateLimit(space, readRateLimit);
+  }
+
+  public String getReadRateLimit() {
+    return readRateLimit;
+  }
+
+  public void setReadRateLimit(String readRateLimit) {
+    this.readRateLimit = readRateLimit;
+  }
+  
+  /**
+   * @return The maximum number of bytes per second written by the step, 0 if there is no limit
+   */
+  public long getWriteRateLimit(VariableSpace space) {
+    return getRateLimit(space, writeRateLimit);
+  }
+
+  public String getWriteRateLimit() {
+    return writeRateLimit;
+  }
+
+  public void setWriteRateLimit(String writeRateLimit) {
+    this.writeRateLimit = writeRateLimit;
+  }
+  
+  /**
+   * @return The rate in bytes per second for a rate in MB per second, 0 for no or an invalid rate
+   */
+  static long getRateLimit(VariableSpace space, String rateLimit) {
+    double megabytesPerSecond = Const.toDouble(space.environmentSubstitute(rateLimit), 0.0);
+    return megabytesPerSecond>0 ? Math.max(1L, (long)(megabytesPerSecond*1024*1024)) : 0L;
+  }
+  
+  /**
+   * @return The maximum number of threads compressing at the same time: the configured share of the CPU cores, at least 1.
+   * Integer.MAX_VALUE if no share is configured.
+   */
+  public int getMaxCompressionThreads(VariableSpace space) {
+    int share = Const.toInt(space.environmentSubstitute(maxCpuShare), 0);
+    if (share<=0 || share>=100) {
+      return Integer.MAX_VALUE;
+    }
+    return Math.max(1, Runtime.getRuntime().availableProcessors()*share/100);
+  }
+
+  public String getMaxCpuShare() {
+    return maxCpuShare;
+  }
+
+  public void setMaxCpuShare(String maxCpuShare) {
+    this.maxCpuShare = maxCpuShare;
+  }
+
+  public String getScanIndexFolder() {
+    return scanIndexFolder;
+  }
+
+  public void setScanIndexFolder(String scanIndexFolder) {
+    this.scanIndexFolder = scanIndexFolder;
+  }
+
+  public boolean isWatching() {
+    return watching;
+  }
+
+  public void setWatching(boolean watching) {
+    this.watching = watching;
+  }
+  
+  /**
+   * @return The maximum time in ms files collected for an archive wait in watch mode and in input mode, at least a second.
+   */
+  public long getWatchFlushInterval(VariableSpace space) {
+    return Math.max(1, Const.toInt(space.environmentSubstitute(watchFlushInterval), DEFAULT_WATCH_FLUSH_INTERVAL))*1000L;
+  }
+
+  public String getWatchFlushInterval() {
+    return watchFlushInterval;
+  }
+
+  public void setWatchFlushInterval(String watchFlushInterval) {
+    this.watchFlushInterval = watchFlushInterval;
+  }
+  
+  /**
+   * @return The number of bytes written to an archive between two checkpoints, 0 if archives are not journaled
+   */
+  public long getCheckpointInterval(VariableSpace space) {
+    return Math.max(0L, Const.toLong(space.environmentSubstitute(checkpointInterval), 0L))*1024*1024;
+  }
+
+  public String getCheckpointInterval() {
+    return checkpointInterval;
+  }
+
+  public void setCheckpointInterval(String checkpointInterval) {
+    this.checkpointInterval = checkpointInterval;
+  }
+
+  public DigestType getVerifyDigest() {
+    return verifyDigest;
+  }
+
+  public void setVerifyDigest(DigestType verifyDigest) {
+    this.verifyDigest = verifyDigest;
+  }
+
+  /**
+   * @return true if archives are read back and checked before the original files are removed
+   */
+  public boolean isVerifying() {
+    return verifyDigest!=null && verifyDigest!=DigestType.NONE;
+  }
+  
+  /**
+   * @return The number of threads deleting the original files of the archives, at least 1.
+   */
+  public int getNrDeleteThreads(VariableSpace space) {
+    return Math.max(1, Const.toInt(space.environmentSubstitute(nrDeleteThreads), DEFAULT_NR_DELETE_THREADS));
+  }
+
+  public String getNrDeleteThreads() {
+    return nrDeleteThreads;
+  }
+
+  public void setNrDeleteThreads(String nrDeleteThreads) {
+    this.nrDeleteThreads = nrDeleteThreads;
+  }
+
+  public boolean isRemovingEmptyFolders() {
+    return removingEmptyFolders;
+  }
+
+  public void setRemovingEmptyFolders(boolean removingEmptyFolders) {
+    this.removingEmptyFolders = removingEmptyFolders;
+  }
+  
   @Override
   public boolean supportsErrorHandling() {
     return true;
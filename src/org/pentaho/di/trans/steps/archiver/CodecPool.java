@@ -0,0 +1,206 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps deflaters, inflaters and buffers for reuse so handling many small files doesn't allocate
+ * (native zlib memory for every deflater) on every file, entry or block.
+ *
+ * Everything taken should be given back when done with it, it is reset when it is given back.
+ * The number of idle objects per kind is capped, anything beyond that is released.
+ * The number of objects taken and allocated is counted to see how well the pool works.
+ */
+public class CodecPool {
+
+  /** The size of the byte arrays and direct buffers handed out */
+  public static final int BUFFER_SIZE = 64*1024;
+
+  private Pool<Deflater> deflaters;
+  private Pool<Inflater> inflaters;
+  private Pool<byte[]> arrays;
+  private Pool<ByteBuffer> directBuffers;
+
+  public CodecPool() {
+    this(Runtime.getRuntime().availableProcessors()*4);
+  }
+
+  /**
+   * @param maxIdle The maximum number of idle objects kept of every kind
+   */
+  public CodecPool(int maxIdle) {
+    deflaters = new Pool<Deflater>("deflaters", maxIdle) {
+      protected Deflater create() {
+        return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      }
+      protected void reset(Deflater deflater) {
+        deflater.reset();
+      }
+      protected void release(Deflater deflater) {
+        deflater.end();
+      }
+    };
+    inflaters = new Pool<Inflater>("inflaters", maxIdle) {
+      protected Inflater create() {
+        return new Inflater(true);
+      }
+      protected void reset(Inflater inflater) {
+        inflater.reset();
+      }
+      protected void release(Inflater inflater) {
+        inflater.end();
+      }
+    };
+    arrays = new Pool<byte[]>("arrays", maxIdle) {
+      protected byte[] create() {
+        return new byte[BUFFER_SIZE];
+      }
+    };
+    directBuffers = new Pool<ByteBuffer>("direct buffers", maxIdle) {
+      protected ByteBuffer create() {
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+      }
+      protected void reset(ByteBuffer buffer) {
+        buffer.clear();
+      }
+    };
+  }
+
+  /**
+   * @param level The deflate level
+   * @return A deflater for raw deflate data (no zlib header), as used in gzip and zip
+   */
+  public Deflater takeDeflater(int level) {
+    Deflater deflater = deflaters.take();
+    deflater.setLevel(level);
+    return deflater;
+  }
+
+  public void giveDeflater(Deflater deflater) {
+    deflaters.give(deflater);
+  }
+
+  /**
+   * @return An inflater for raw deflate data (no zlib header)
+   */
+  public Inflater takeInflater() {
+    return inflaters.take();
+  }
+
+  public void giveInflater(Inflater inflater) {
+    inflaters.give(inflater);
+  }
+
+  /**
+   * @return A byte array of {@link #BUFFER_SIZE} bytes, the content is not cleared
+   */
+  public byte[] takeArray() {
+    return arrays.take();
+  }
+
+  public void giveArray(byte[] array) {
+    arrays.give(array);
+  }
+
+  /**
+   * @return A cleared direct buffer of {@link #BUFFER_SIZE} bytes, for writing to channels without an extra copy
+   */
+  public ByteBuffer takeDirectBuffer() {
+    return directBuffers.take();
+  }
+
+  public void giveDirectBuffer(ByteBuffer buffer) {
+    directBuffers.give(buffer);
+  }
+
+  /**
+   * @return The number of objects taken from the pool so far
+   */
+  public long getNrTaken() {
+    return deflaters.nrTaken.get()+inflaters.nrTaken.get()+arrays.nrTaken.get()+directBuffers.nrTaken.get();
+  }
+
+  /**
+   * @return The number of objects allocated because the pool had none left
+   */
+  public long getNrAllocated() {
+    return deflaters.nrAllocated.get()+inflaters.nrAllocated.get()+arrays.nrAllocated.get()+directBuffers.nrAllocated.get();
+  }
+
+  /**
+   * @return The fraction of the objects taken which were reused, from 0 to 1
+   */
+  public double getHitRate() {
+    return getHitRate(getNrTaken(), getNrAllocated());
+  }
+
+  private static double getHitRate(long nrTaken, long nrAllocated) {
+    return nrTaken==0 ? 1.0 : (double)(nrTaken-nrAllocated)/nrTaken;
+  }
+
+  /**
+   * @return The number of objects taken and allocated and the hit rate for every kind of object
+   */
+  @Override
+  public String toString() {
+    return deflaters+", "+inflaters+", "+arrays+", "+directBuffers;
+  }
+
+  private abstract static class Pool<T> {
+    private String name;
+    private int maxIdle;
+    private ConcurrentLinkedQueue<T> idle;
+    private AtomicInteger nrIdle;
+    private AtomicLong nrTaken;
+    private AtomicLong nrAllocated;
+
+    private Pool(String name, int maxIdle) {
+      this.name = name;
+      this.maxIdle = maxIdle;
+      idle = new ConcurrentLinkedQueue<T>();
+      nrIdle = new AtomicInteger();
+      nrTaken = new AtomicLong();
+      nrAllocated = new AtomicLong();
+    }
+
+    protected abstract T create();
+
+    protected void reset(T object) {
+    }
+
+    protected void release(T object) {
+    }
+
+    private T take() {
+      nrTaken.incrementAndGet();
+      T object = idle.poll();
+      if (object!=null) {
+        nrIdle.decrementAndGet();
+        return object;
+      }
+      nrAllocated.incrementAndGet();
+      return create();
+    }
+
+    private void give(T object) {
+      if (nrIdle.incrementAndGet()<=maxIdle) {
+        reset(object);
+        idle.add(object);
+      } else {
+        nrIdle.decrementAndGet();
+        release(object);
+      }
+    }
+
+    @Override
+    public String toString() {
+      long taken = nrTaken.get();
+      long allocated = nrAllocated.get();
+      return name+": "+taken+" taken, "+allocated+" allocated ("+Math.round(getHitRate(taken, allocated)*100)+"% reused)";
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Recognizes data which is already compressed (gzip rotations, images, video, parquet, ...) from a sample of its first block,
+ * so it can be stored instead of being compressed again.
+ *
+ * The sample is first checked for the magic bytes of the common compressed formats. Otherwise the byte entropy of the sample
+ * is calculated: only when it is close to 8 bits per byte the sample is deflated quickly to confirm it doesn't shrink.
+ */
+public class CompressedDataDetector {
+
+  /** The number of bytes sampled at the start of a file */
+  public static final int SAMPLE_SIZE = CodecPool.BUFFER_SIZE;
+
+  /** Samples smaller than this are too small for a meaningful entropy */
+  private static final int MIN_ENTROPY_SAMPLE_SIZE = 4096;
+
+  /** The entropy in bits per byte above which the sample is deflated to confirm it is incompressible */
+  private static final double ENTROPY_THRESHOLD = 7.8;
+
+  /** The fraction of the sample size deflate needs to stay above for the data to be considered incompressible */
+  private static final double MIN_RATIO = 0.97;
+
+  private static final int[][] MAGIC_BYTES = new int[][] {
+    { 0x1f, 0x8b },                         // gzip
+    { 0x1f, 0x9d },                         // compress (.Z)
+    { 'B', 'Z', 'h' },                      // bzip2
+    { 0xfd, '7', 'z', 'X', 'Z', 0x00 },     // xz
+    { 0x28, 0xb5, 0x2f, 0xfd },             // zstandard
+    { 0x04, 0x22, 0x4d, 0x18 },             // lz4 frame
+    { 0x89, 'L', 'Z', 'O' },                // lzop
+    { 0xff, 0x06, 0x00, 0x00, 's', 'N', 'a', 'P', 'p', 'Y' }, // snappy framing
+    { 'P', 'K', 0x03, 0x04 },               // zip, jar, docx, ...
+    { '7', 'z', 0xbc, 0xaf, 0x27, 0x1c },   // 7-zip
+    { 'R', 'a', 'r', '!', 0x1a, 0x07 },     // rar
+    { 'P', 'A', 'R', '1' },                 // parquet
+    { 0x89, 'P', 'N', 'G' },                // png
+    { 0xff, 0xd8, 0xff },                   // jpeg
+    { 'G', 'I', 'F', '8' },                 // gif
+    { 'O', 'g', 'g', 'S' },                 // ogg
+    { 'f', 'L', 'a', 'C' },                 // flac
+    { 'I', 'D', '3' },                      // mp3
+    { 0x1a, 0x45, 0xdf, 0xa3 },             // matroska, webm
+  };
+
+  /**
+   * Reads the sample from the stream and checks it, the stream is not closed.
+   *
+   * @param codecPool Provides the sample buffer and the deflater
+   * @return true if the data starting at the current position of the stream looks incompressible
+   */
+  public static boolean isIncompressible(InputStream inputStream, CodecPool codecPool) throws IOException {
+    byte[] sample = codecPool.takeArray();
+    try {
+      int length = 0;
+      int size;
+      while (length<SAMPLE_SIZE && (size=inputStream.read(sample, length, SAMPLE_SIZE-length))>=0) {
+        length+=size;
+      }
+      return isIncompressible(sample, length, codecPool);
+    } finally {
+      codecPool.giveArray(sample);
+    }
+  }
+
+  /**
+   * @param sample The first bytes of the data
+   * @param length The number of bytes in the sample
+   * @param codecPool Provides the deflater
+   * @return true if the data looks incompressible
+   */
+  public static boolean isIncompressible(byte[] sample, int length, CodecPool codecPool) {
+    if (hasMagicBytes(sample, length)) {
+      return true;
+    }
+    if (length<MIN_ENTROPY_SAMPLE_SIZE || getEntropy(sample, length)<ENTROPY_THRESHOLD) {
+      return false;
+    }
+
+    // A high byte entropy doesn't rule out repeated sequences, see if deflate finds any.
+    //
+    Deflater deflater = codecPool.takeDeflater(Deflater.BEST_SPEED);
+    byte[] output = codecPool.takeArray();
+    try {
+      deflater.setInput(sample, 0, length);
+      deflater.finish();
+      while (!deflater.finished()) {
+        deflater.deflate(output);
+      }
+      return deflater.getBytesWritten()>=length*MIN_RATIO;
+    } finally {
+      codecPool.giveDeflater(deflater);
+      codecPool.giveArray(output);
+    }
+  }
+
+  private static boolean hasMagicBytes(byte[] sample, int length) {
+    for (int[] magic : MAGIC_BYTES) {
+      if (startsWith(sample, length, 0, magic)) {
+        return true;
+      }
+    }
+    // Formats with their signature at an offset: webp (RIFF....WEBP) and the ISO media files like mp4 and mov (....ftyp)
+    //
+    if (startsWith(sample, length, 0, new int[] { 'R', 'I', 'F', 'F' }) && startsWith(sample, length, 8, new int[] { 'W', 'E', 'B', 'P' })) {
+      return true;
+    }
+    return startsWith(sample, length, 4, new int[] { 'f', 't', 'y', 'p' });
+  }
+
+  private static boolean startsWith(byte[] sample, int length, int offset, int[] magic) {
+    if (length<offset+magic.length) {
+      return false;
+    }
+    for (int i=0;i<magic.length;i++) {
+      if ((sample[offset+i]&0xff)!=magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The Shannon entropy of the bytes in the sample in bits per byte, from 0 to 8
+   */
+  static double getEntropy(byte[] sample, int length) {
+    int[] counts = new int[256];
+    for (int i=0;i<length;i++) {
+      counts[sample[i]&0xff]++;
+    }
+    double entropy = 0;
+    for (int count : counts) {
+      if (count>0) {
+        double p = (double)count/length;
+        entropy -= p*Math.log(p);
+      }
+    }
+    return entropy/Math.log(2);
+  }
+}
@@ -0,0 +1,103 @@
+package org.pentaho.di.trans.steps.archiver;
+
+/**
+ * Keeps the compression of a generation within a throughput budget.
+ *
+ * The compressors report the number of input bytes they handled and mark the time they spend compressing. Every second the
+ * throughput of the compressors is compared with the target: the level is lowered when it falls short and raised again when
+ * there is room to spare. The throughput is measured over the time at least one compressor was busy, so reading, writing,
+ * waiting for a rate limit or for the next file doesn't count as slow compression.
+ * Compressors ask for the level to use at the start of every file or block.
+ */
+public class CompressionLevelController {
+
+  private static final long INTERVAL_NANOS = 1000000000L;
+
+  /** Only raise the level when the throughput is this much over the target, to avoid flapping between two levels */
+  private static final double RAISE_MARGIN = 1.25;
+
+  private int minLevel;
+  private int maxLevel;
+  private volatile int level;
+  private double targetBytesPerSecond;
+
+  private long intervalStart;
+  private long intervalBytes;
+
+  /** The number of compressors busy right now, from when and for how long in this interval they were busy */
+  private int busyCompressors;
+  private long busyStart;
+  private long intervalBusyNanos;
+
+  /**
+   * @param minLevel The fastest level
+   * @param maxLevel The level with the best compression
+   * @param initialLevel The level to start with
+   * @param targetMBPerSecond The input throughput to achieve in MB/s
+   */
+  public CompressionLevelController(int minLevel, int maxLevel, int initialLevel, double targetMBPerSecond) {
+    this.minLevel = minLevel;
+    this.maxLevel = maxLevel;
+    this.level = Math.max(minLevel, Math.min(maxLevel, initialLevel));
+    this.targetBytesPerSecond = targetMBPerSecond*1024*1024;
+    intervalStart = System.nanoTime();
+    intervalBytes = 0L;
+    busyCompressors = 0;
+    intervalBusyNanos = 0L;
+  }
+
+  /**
+   * @return The level to compress the next file or block with
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * Marks the start of compression work in the calling thread, every call is followed by a call to {@link #stopCompressing()}.
+   */
+  public synchronized void startCompressing() {
+    if (busyCompressors++==0) {
+      busyStart = System.nanoTime();
+    }
+  }
+
+  /**
+   * Marks the end of compression work in the calling thread.
+   */
+  public synchronized void stopCompressing() {
+    if (--busyCompressors==0) {
+      intervalBusyNanos += System.nanoTime()-busyStart;
+    }
+  }
+
+  /**
+   * @param bytes The number of uncompressed bytes handled since the last report
+   */
+  public synchronized void addProcessed(long bytes) {
+    intervalBytes+=bytes;
+    long now = System.nanoTime();
+    if (now-intervalStart<INTERVAL_NANOS) {
+      return;
+    }
+
+    long busyNanos = intervalBusyNanos;
+    if (busyCompressors>0) {
+      // The rest of the busy time counts in the next interval
+      //
+      busyNanos += now-busyStart;
+      busyStart = now;
+    }
+    if (busyNanos>0) {
+      double bytesPerSecond = intervalBytes*1000000000.0/busyNanos;
+      if (bytesPerSecond<targetBytesPerSecond && level>minLevel) {
+        level--;
+      } else if (bytesPerSecond>targetBytesPerSecond*RAISE_MARGIN && level<maxLevel) {
+        level++;
+      }
+    }
+    intervalStart = now;
+    intervalBytes = 0L;
+    intervalBusyNanos = 0L;
+  }
+}
@@ -0,0 +1,72 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Takes a compression permit for every write to a compressor running in the calling thread, including the flush of the
+ * last data when it is closed. The compressors which compress blocks or entries in parallel take their permits themselves.
+ */
+public class CompressionPermitOutputStream extends FilterOutputStream {
+
+  private Semaphore compressionPermits;
+
+  /**
+   * @param out The compressor to write to
+   * @param compressionPermits The permits shared by all compression threads of the step
+   */
+  public CompressionPermitOutputStream(OutputStream out, Semaphore compressionPermits) {
+    super(out);
+    this.compressionPermits = compressionPermits;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    acquire();
+    try {
+      out.write(b);
+    } finally {
+      compressionPermits.release();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    acquire();
+    try {
+      out.write(b, off, len);
+    } finally {
+      compressionPermits.release();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    acquire();
+    try {
+      out.flush();
+    } finally {
+      compressionPermits.release();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    acquire();
+    try {
+      out.close();
+    } finally {
+      compressionPermits.release();
+    }
+  }
+
+  private void acquire() throws IOException {
+    try {
+      compressionPermits.acquire();
+    } catch(InterruptedException e) {
+      throw new IOException("Interrupted while waiting to compress data", e);
+    }
+  }
+}
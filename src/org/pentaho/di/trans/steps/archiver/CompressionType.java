@@ -1,20 +1,34 @@
 package org.pentaho.di.trans.steps.archiver;
 
 public enum CompressionType {
-  NONE("", "No compression"),
-  GZIP(".gz", "GZip files"),
-  BZIP(".bz2", "BZip2 files"),
-  ZIP(".zip", "ZIP Archive"),
-  TAR(".tar", "TAR Archive"),
-  TARGZIP(".tgz", "GZipped TAR Archive"),
+  NONE("", "No compression", 0, 0, 0),
+  GZIP(".gz", "GZip files", 1, 9, 6),
+  BZIP(".bz2", "BZip2 files", 0, 0, 0),
+  ZIP(".zip", "ZIP Archive", 1, 9, 6),
+  TAR(".tar", "TAR Archive", 0, 0, 0),
+  TARGZIP(".tgz", "GZipped TAR Archive", 1, 9, 6),
+  LZ4(".lz4", "LZ4 files", 1, LZ4FrameOutputStream.MAX_LEVEL, LZ4FrameOutputStream.DEFAULT_LEVEL),
+  TARBZIP(".tbz2", "BZipped TAR Archive", 0, 0, 0),
+  TARXZ(".txz", "XZ TAR Archive", 1, XZOutputStream.MAX_LEVEL, XZOutputStream.DEFAULT_LEVEL),
   ;
   
   private String extension;
   private String description;
+  private int minLevel;
+  private int maxLevel;
+  private int defaultLevel;
   
-  private CompressionType(String extension, String description) {
+  /**
+   * @param minLevel The fastest compression level, 0 if the compression has no levels
+   * @param maxLevel The compression level with the best ratio
+   * @param defaultLevel The level used when none is configured
+   */
+  private CompressionType(String extension, String description, int minLevel, int maxLevel, int defaultLevel) {
     this.extension = extension;
     this.description = description;
+    this.minLevel = minLevel;
+    this.maxLevel = maxLevel;
+    this.defaultLevel = defaultLevel;
   }
   
   public String getCode() {
@@ -29,6 +43,41 @@ public enum CompressionType {
     return description;
   }
 
+  /**
+   * @return true if the compression level can be chosen
+   */
+  public boolean hasLevels() {
+    return minLevel>0;
+  }
+
+  public int getMinLevel() {
+    return minLevel;
+  }
+
+  public int getMaxLevel() {
+    return maxLevel;
+  }
+
+  public int getDefaultLevel() {
+    return defaultLevel;
+  }
+
+  /**
+   * @return true if an archive of this type can be read back to verify it
+   */
+  public boolean isVerifiable() {
+    switch(this) {
+    case ZIP:
+    case TAR:
+    case TARGZIP:
+    case TARBZIP:
+    case TARXZ:
+      return true;
+    default:
+      return false;
+    }
+  }
+
   public static String[] getDescriptions() {
     String[] strings = new String[values().length];
     for (int i=0;i<strings.length;i++) {
@@ -0,0 +1,139 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The digest calculated of every file written to an archive to verify the archive before the original files are removed.
+ * The manifest written next to a verified archive gets the extension of the digest.
+ */
+public enum DigestType {
+  NONE("", "No verification"),
+  CRC32(".crc32", "CRC32"),
+  XXHASH64(".xxh64", "xxHash64"),
+  SHA256(".sha256", "SHA-256"),
+  ;
+
+  private String extension;
+  private String description;
+
+  private DigestType(String extension, String description) {
+    this.extension = extension;
+    this.description = description;
+  }
+
+  public String getCode() {
+    return name();
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  /**
+   * @return A new digest calculation, null for NONE
+   */
+  public MessageDigest createDigest() {
+    switch(this) {
+    case CRC32: return new ChecksumDigest(description, new CRC32(), 4);
+    case XXHASH64: return new ChecksumDigest(description, new XXHash64(), 8);
+    case SHA256:
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch(NoSuchAlgorithmException e) {
+        // Every Java platform is required to support it
+        //
+        throw new IllegalStateException(e);
+      }
+    default: return null;
+    }
+  }
+
+  public static String[] getDescriptions() {
+    String[] strings = new String[values().length];
+    for (int i=0;i<strings.length;i++) {
+      strings[i] = values()[i].getDescription();
+    }
+    return strings;
+  }
+
+  public static DigestType getDigestTypeForDescription(String description) {
+    for (DigestType digestType : values()) {
+      if (digestType.getDescription().equalsIgnoreCase(description)) {
+        return digestType;
+      }
+    }
+    return DigestType.NONE;
+  }
+
+  public static DigestType getDigestTypeForCode(String code) {
+    try {
+      return DigestType.valueOf(code);
+    } catch(Exception e) {
+      return DigestType.NONE;
+    }
+  }
+
+  /**
+   * @return The digest as lower case hexadecimal digits, the way sha256sum and friends print it
+   */
+  public static String toHex(byte[] digest) {
+    StringBuilder hex = new StringBuilder(digest.length*2);
+    for (byte b : digest) {
+      hex.append(Character.forDigit((b>>4)&0xf, 16)).append(Character.forDigit(b&0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * A checksum used as a message digest, the value is given big endian in the number of bytes of the checksum.
+   */
+  private static class ChecksumDigest extends MessageDigest {
+    private Checksum checksum;
+    private int length;
+
+    private ChecksumDigest(String algorithm, Checksum checksum, int length) {
+      super(algorithm);
+      this.checksum = checksum;
+      this.length = length;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+      checksum.update(input);
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int len) {
+      checksum.update(input, offset, len);
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+      return length;
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+      long value = checksum.getValue();
+      checksum.reset();
+      byte[] digest = new byte[length];
+      for (int i=length-1;i>=0;i--) {
+        digest[i] = (byte)value;
+        value>>>=8;
+      }
+      return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+      checksum.reset();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/**
+ * Calculates the digest of a source file while it is read to be written to an archive, so verifying the archive
+ * doesn't take another read of the file. The digest is handed to the source file once the whole file was read.
+ */
+public class DigestingInputStream extends FilterInputStream {
+
+  private MessageDigest digest;
+  private SourceFile sourceFile;
+
+  public DigestingInputStream(InputStream in, MessageDigest digest, SourceFile sourceFile) {
+    super(in);
+    this.digest = digest;
+    this.sourceFile = sourceFile;
+    sourceFile.setDigest(null);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = in.read();
+    if (b>=0) {
+      digest.update((byte)b);
+    } else {
+      finish();
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int size = in.read(b, off, len);
+    if (size>0) {
+      digest.update(b, off, size);
+    } else if (size<0) {
+      finish();
+    }
+    return size;
+  }
+
+  /**
+   * Skipped data still needs to be digested, it is read instead.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    byte[] buffer = new byte[(int)Math.min(n, 8192)];
+    long skipped = 0;
+    while (skipped<n) {
+      int size = read(buffer, 0, (int)Math.min(n-skipped, buffer.length));
+      if (size<0) {
+        break;
+      }
+      skipped+=size;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void finish() {
+    if (sourceFile.getDigest()==null) {
+      sourceFile.setDigest(digest.digest());
+    }
+  }
+}
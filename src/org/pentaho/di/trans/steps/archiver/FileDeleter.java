@@ -0,0 +1,162 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.vfs.FileName;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.provider.local.LocalFile;
+
+/**
+ * Removes the original files of an archive in one go. The files are deleted by a pool of threads in chunks, so the round trips
+ * to a network file system overlap, and local files are deleted through NIO instead of VFS.
+ * Afterwards the folders emptied by the deletes can be removed in a single pass, deepest first.
+ */
+public class FileDeleter {
+
+  /** The number of files deleted by a single task of the pool */
+  private static final int CHUNK_SIZE = 64;
+
+  /**
+   * A file which could not be deleted.
+   */
+  public static class Failure {
+    private FileObject file;
+    private Exception exception;
+
+    private Failure(FileObject file, Exception exception) {
+      this.file = file;
+      this.exception = exception;
+    }
+
+    public FileObject getFile() {
+      return file;
+    }
+
+    /**
+     * @return The reason the file could not be deleted, null if the file system didn't give one
+     */
+    public Exception getException() {
+      return exception;
+    }
+  }
+
+  private ExecutorService pool;
+  private List<FileObject> deletedFiles;
+
+  /**
+   * @param pool The threads deleting the files, the size of the pool limits the number of deletes running at the same time
+   */
+  public FileDeleter(ExecutorService pool) {
+    this.pool = pool;
+    deletedFiles = new ArrayList<FileObject>();
+  }
+
+  /**
+   * Deletes the files, a file which can't be deleted doesn't stop the others from being deleted.
+   *
+   * @return The files which could not be deleted, in the order of the files
+   */
+  public List<Failure> delete(List<FileObject> files) throws InterruptedException {
+    List<Future<List<Failure>>> chunks = new ArrayList<Future<List<Failure>>>();
+    for (int start=0;start<files.size();start+=CHUNK_SIZE) {
+      final List<FileObject> chunk = files.subList(start, Math.min(start+CHUNK_SIZE, files.size()));
+      chunks.add(pool.submit(new Callable<List<Failure>>() {
+        public List<Failure> call() throws Exception {
+          return deleteChunk(chunk);
+        }
+      }));
+    }
+
+    List<Failure> failures = new ArrayList<Failure>();
+    Set<FileObject> failedFiles = new HashSet<FileObject>();
+    try {
+      for (Future<List<Failure>> chunk : chunks) {
+        for (Failure failure : chunk.get()) {
+          failures.add(failure);
+          failedFiles.add(failure.file);
+        }
+      }
+    } catch(ExecutionException e) {
+      // Every failure is caught per file
+      //
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      for (Future<List<Failure>> chunk : chunks) {
+        chunk.cancel(true);
+      }
+    }
+    for (FileObject file : files) {
+      if (!failedFiles.contains(file)) {
+        deletedFiles.add(file);
+      }
+    }
+    return failures;
+  }
+
+  private List<Failure> deleteChunk(List<FileObject> chunk) {
+    List<Failure> failures = new ArrayList<Failure>();
+    for (FileObject file : chunk) {
+      try {
+        if (file instanceof LocalFile) {
+          Files.delete(SourceFile.getLocalPath(file));
+        } else if (!file.delete()) {
+          failures.add(new Failure(file, null));
+        }
+      } catch(Exception e) {
+        failures.add(new Failure(file, e));
+      }
+    }
+    return failures;
+  }
+
+  /**
+   * Removes the folders left empty by the files deleted so far: the folders of the files and their parents,
+   * up to but not including the root folder. A folder which still has files in it is left alone.
+   *
+   * @param rootFolder The source folder of the generation the files were found in
+   */
+  public void removeEmptyFolders(FileName rootFolder) throws FileSystemException {
+    Set<FileObject> folders = new HashSet<FileObject>();
+    for (FileObject file : deletedFiles) {
+      FileObject folder = file.getParent();
+      while (folder!=null && rootFolder.isDescendent(folder.getName()) && folders.add(folder)) {
+        folder = folder.getParent();
+      }
+    }
+
+    // The deepest folders first, so a parent is empty once its sub folders are removed
+    //
+    List<FileObject> sortedFolders = new ArrayList<FileObject>(folders);
+    Collections.sort(sortedFolders, new Comparator<FileObject>() {
+      public int compare(FileObject one, FileObject two) {
+        return two.getName().getDepth()-one.getName().getDepth();
+      }
+    });
+    for (FileObject folder : sortedFolders) {
+      try {
+        if (folder instanceof LocalFile) {
+          // Only removes an empty folder, there is no need to list it first
+          //
+          Files.delete(SourceFile.getLocalPath(folder));
+        } else if (folder.getChildren().length==0) {
+          folder.delete();
+        }
+      } catch(IOException e) {
+        // Not empty or gone already
+      }
+    }
+    deletedFiles.clear();
+  }
+}
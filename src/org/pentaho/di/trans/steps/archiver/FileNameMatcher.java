@@ -0,0 +1,181 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Matches file or folder names. Common patterns like "app.*", ".*\.log", "*.log" or "current" are matched with
+ * plain string comparisons, only the other patterns go through the regular expression engine.
+ */
+public abstract class FileNameMatcher {
+
+  private static final String REGEX_META_CHARACTERS = "\\^$.|?*+()[]{}";
+  private static final String GLOB_META_CHARACTERS = "\\?*[]{}";
+
+  public abstract boolean matches(String name);
+
+  /**
+   * @param regex The regular expression the complete name needs to match
+   */
+  public static FileNameMatcher fromRegex(String regex) {
+    boolean leadingWildcard = regex.startsWith(".*");
+    String rest = leadingWildcard ? regex.substring(2) : regex;
+    boolean trailingWildcard = rest.endsWith(".*") && !rest.endsWith("\\.*");
+    if (trailingWildcard) {
+      rest = rest.substring(0, rest.length()-2);
+    }
+
+    String literal = getRegexLiteral(rest);
+    if (literal==null) {
+      return new RegexMatcher(Pattern.compile(regex));
+    }
+    return createLiteralMatcher(literal, leadingWildcard, trailingWildcard);
+  }
+
+  /**
+   * @param glob A glob pattern: * matches any number of characters, ? a single character
+   */
+  public static FileNameMatcher fromGlob(String glob) {
+    boolean leadingWildcard = glob.startsWith("*");
+    String rest = leadingWildcard ? glob.substring(1) : glob;
+    boolean trailingWildcard = rest.endsWith("*");
+    if (trailingWildcard) {
+      rest = rest.substring(0, rest.length()-1);
+    }
+
+    if (!containsAny(rest, GLOB_META_CHARACTERS)) {
+      return createLiteralMatcher(rest, leadingWildcard, trailingWildcard);
+    }
+    return new RegexMatcher(Pattern.compile(globToRegex(glob)));
+  }
+
+  /**
+   * @param globs A comma separated list of glob patterns
+   * @return A matcher matching any of the patterns or null if there are none
+   */
+  public static FileNameMatcher fromGlobs(String globs) {
+    if (globs==null) {
+      return null;
+    }
+    final List<FileNameMatcher> matchers = new ArrayList<FileNameMatcher>();
+    for (String glob : globs.split(",")) {
+      if (glob.trim().length()>0) {
+        matchers.add(fromGlob(glob.trim()));
+      }
+    }
+    if (matchers.isEmpty()) {
+      return null;
+    }
+    if (matchers.size()==1) {
+      return matchers.get(0);
+    }
+    return new FileNameMatcher() {
+      @Override
+      public boolean matches(String name) {
+        for (FileNameMatcher matcher : matchers) {
+          if (matcher.matches(name)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    };
+  }
+
+  private static FileNameMatcher createLiteralMatcher(final String literal, boolean leadingWildcard, boolean trailingWildcard) {
+    if (leadingWildcard && trailingWildcard) {
+      return new FileNameMatcher() {
+        @Override
+        public boolean matches(String name) {
+          return name.contains(literal);
+        }
+      };
+    } else if (leadingWildcard) {
+      return new FileNameMatcher() {
+        @Override
+        public boolean matches(String name) {
+          return name.endsWith(literal);
+        }
+      };
+    } else if (trailingWildcard) {
+      return new FileNameMatcher() {
+        @Override
+        public boolean matches(String name) {
+          return name.startsWith(literal);
+        }
+      };
+    } else {
+      return new FileNameMatcher() {
+        @Override
+        public boolean matches(String name) {
+          return name.equals(literal);
+        }
+      };
+    }
+  }
+
+  /**
+   * @return The literal text matched by the regular expression or null if it contains anything but literal text.
+   */
+  private static String getRegexLiteral(String regex) {
+    StringBuilder literal = new StringBuilder();
+    for (int i=0;i<regex.length();i++) {
+      char c = regex.charAt(i);
+      if (c=='\\') {
+        // An escaped punctuation character is literal, \d, \w and the like are not
+        //
+        if (i+1>=regex.length() || Character.isLetterOrDigit(regex.charAt(i+1))) {
+          return null;
+        }
+        literal.append(regex.charAt(++i));
+      } else if (REGEX_META_CHARACTERS.indexOf(c)>=0) {
+        return null;
+      } else {
+        literal.append(c);
+      }
+    }
+    return literal.toString();
+  }
+
+  private static boolean containsAny(String string, String characters) {
+    for (int i=0;i<string.length();i++) {
+      if (characters.indexOf(string.charAt(i))>=0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String globToRegex(String glob) {
+    StringBuilder regex = new StringBuilder();
+    for (int i=0;i<glob.length();i++) {
+      char c = glob.charAt(i);
+      switch(c) {
+      case '*': regex.append(".*"); break;
+      case '?': regex.append('.'); break;
+      case '[': case ']': regex.append(c); break;
+      default:
+        if (REGEX_META_CHARACTERS.indexOf(c)>=0) {
+          regex.append('\\');
+        }
+        regex.append(c);
+        break;
+      }
+    }
+    return regex.toString();
+  }
+
+  private static class RegexMatcher extends FileNameMatcher {
+    private Pattern pattern;
+
+    private RegexMatcher(Pattern pattern) {
+      this.pattern = pattern;
+    }
+
+    @Override
+    public boolean matches(String name) {
+      return pattern.matcher(name).matches();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.nio.file.Path;
+
+import org.apache.commons.vfs.FileName;
+import org.apache.commons.vfs.FileSystemException;
+
+/**
+ * Decides which files of a generation are selected and which folders are descended into.
+ * Folders which are not selected are pruned: nothing below them is listed.
+ */
+public class FileSelection {
+
+  private FileNameMatcher fileMatcher;
+  private FileNameMatcher folderIncludes;
+  private FileNameMatcher folderExcludes;
+  private int maxDepth;
+  private Path excludedFolder;
+
+  /**
+   * @param fileMatcher The matcher for the base name of files or null to select all files
+   * @param folderIncludes Only descend into folders with a matching name, null for all folders
+   * @param folderExcludes Never descend into folders with a matching name, null for none
+   * @param maxDepth The maximum folder depth below the source folder, 0 for the source folder only, -1 for no limit
+   * @param excludedFolder A local folder never to descend into (the target folder) or null
+   */
+  public FileSelection(FileNameMatcher fileMatcher, FileNameMatcher folderIncludes, FileNameMatcher folderExcludes, int maxDepth, Path excludedFolder) {
+    this.fileMatcher = fileMatcher;
+    this.folderIncludes = folderIncludes;
+    this.folderExcludes = folderExcludes;
+    this.maxDepth = maxDepth;
+    this.excludedFolder = excludedFolder;
+  }
+
+  public boolean isFileSelected(String baseName) {
+    return fileMatcher==null || fileMatcher.matches(baseName);
+  }
+
+  /**
+   * @param baseName The name of a folder below the source folder
+   * @param depth The depth of the folder, 1 for a folder directly in the source folder
+   * @return true if the folder needs to be listed
+   */
+  public boolean isFolderSelected(String baseName, int depth) {
+    if (maxDepth>=0 && depth>maxDepth) {
+      return false;
+    }
+    if (folderExcludes!=null && folderExcludes.matches(baseName)) {
+      return false;
+    }
+    return folderIncludes==null || folderIncludes.matches(baseName);
+  }
+
+  /**
+   * Decides on a file named from elsewhere the way a scan of the source folder would.
+   *
+   * @param sourceFolder The source folder of the generation
+   * @param file The file
+   * @return true if the file is below the source folder, in folders which are listed, and is selected itself
+   */
+  public boolean isFileSelected(FileName sourceFolder, FileName file) throws FileSystemException {
+    if (!sourceFolder.isDescendent(file)) {
+      return false;
+    }
+    String[] names = sourceFolder.getRelativeName(file).split("/");
+    for (int i=0;i<names.length-1;i++) {
+      if (!isFolderSelected(names[i], i+1)) {
+        return false;
+      }
+    }
+    return isFileSelected(names[names.length-1]);
+  }
+
+  /**
+   * @param folder A local folder below the source folder
+   * @param depth The depth of the folder, 1 for a folder directly in the source folder
+   * @return true if the folder needs to be listed
+   */
+  public boolean isFolderSelected(Path folder, int depth) {
+    if (excludedFolder!=null && folder.equals(excludedFolder)) {
+      return false;
+    }
+    return isFolderSelected(folder.getFileName().toString(), depth);
+  }
+}
@@ -0,0 +1,274 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follows the files of a local source folder tree with a WatchService instead of listing the tree over and over again.
+ *
+ * Every selected file is kept in a timer wheel at the time it becomes old enough to handle: its modification time plus the wait time.
+ * A file changed in the mean time is put back at its new time. The tree is scanned completely when the watcher starts and whenever
+ * events were lost because the event queue of the watch service overflowed.
+ *
+ * The size and modification time of every file handed out is remembered: a file still there unchanged (ignored or archived
+ * without removing it) is not handed out again by a rescan or by an event which didn't change it.
+ */
+public class FolderWatcher implements Closeable {
+
+  /** The time covered by a slot of the timer wheel */
+  private static final long TICK_TIME = 1000L;
+
+  /** The number of slots: one turn of the wheel is an hour */
+  private static final int NR_SLOTS = 3600;
+
+  private Path sourceFolder;
+  private FileSelection selection;
+  private long waitTime;
+
+  private WatchService watchService;
+  private Map<WatchKey, WatchedFolder> folders;
+  private TimerWheel<Path> wheel;
+  private Map<Path, FileVersion> handledFiles;
+
+  /**
+   * Starts watching and scans the tree.
+   *
+   * @param sourceFolder The folder tree to watch
+   * @param selection Decides which files are followed and which folders are watched
+   * @param waitTime The time in ms a file needs to stay unchanged before it is handled
+   */
+  public FolderWatcher(Path sourceFolder, FileSelection selection, long waitTime) throws IOException {
+    this.sourceFolder = sourceFolder;
+    this.selection = selection;
+    this.waitTime = waitTime;
+
+    watchService = sourceFolder.getFileSystem().newWatchService();
+    folders = new HashMap<WatchKey, WatchedFolder>();
+    wheel = new TimerWheel<Path>(TICK_TIME, NR_SLOTS, System.currentTimeMillis());
+    handledFiles = new HashMap<Path, FileVersion>();
+    rescan();
+  }
+
+  /**
+   * Forgets the folders and waiting files and watches and scans the whole tree again.
+   * Only the files handled already are remembered, the ones which are gone are forgotten as well.
+   */
+  public void rescan() throws IOException {
+    for (WatchKey key : folders.keySet()) {
+      key.cancel();
+    }
+    folders.clear();
+    wheel.clear();
+    watchFolder(sourceFolder, 0);
+
+    // The delete events of the handled files may have been lost as well
+    //
+    Iterator<Path> handledPaths = handledFiles.keySet().iterator();
+    while (handledPaths.hasNext()) {
+      if (readAttributes(handledPaths.next())==null) {
+        handledPaths.remove();
+      }
+    }
+  }
+
+  /**
+   * Registers a folder and schedules the files in it, the selected sub folders are watched as well.
+   * The folder is registered before it is listed so files created while it is listed are not missed.
+   */
+  private void watchFolder(Path folder, int depth) throws IOException {
+    WatchKey key;
+    try {
+      key = folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    } catch(IOException e) {
+      if (depth==0) {
+        throw e;
+      }
+      // Gone since its parent was listed
+      return;
+    }
+    folders.put(key, new WatchedFolder(folder, depth));
+
+    List<Path> subFolders = new ArrayList<Path>();
+    DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder);
+    try {
+      for (Path path : directoryStream) {
+        BasicFileAttributes attributes = readAttributes(path);
+        if (attributes==null) {
+          continue;
+        }
+        if (attributes.isDirectory()) {
+          if (selection.isFolderSelected(path, depth+1)) {
+            subFolders.add(path);
+          }
+        } else if (attributes.isRegularFile() && selection.isFileSelected(path.getFileName().toString())) {
+          follow(path, attributes);
+        }
+      }
+    } finally {
+      directoryStream.close();
+    }
+    for (Path subFolder : subFolders) {
+      watchFolder(subFolder, depth+1);
+    }
+  }
+
+  /**
+   * Schedules a file at the time it becomes old enough to handle, unless it was handled already and didn't change since.
+   */
+  private void follow(Path path, BasicFileAttributes attributes) {
+    FileVersion handled = handledFiles.get(path);
+    if (handled!=null) {
+      if (handled.isSameVersion(attributes)) {
+        return;
+      }
+      handledFiles.remove(path);
+    }
+    wheel.schedule(path, attributes.lastModifiedTime().toMillis()+waitTime);
+  }
+
+  /**
+   * Handles the events which arrived since the previous poll, it doesn't wait for new ones.
+   *
+   * @return true if events were lost and the tree was scanned again
+   */
+  public boolean poll() throws IOException {
+    boolean overflow = false;
+    WatchKey key;
+    while ((key=watchService.poll())!=null) {
+      WatchedFolder folder = folders.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind()==StandardWatchEventKinds.OVERFLOW) {
+          overflow = true;
+          continue;
+        }
+        if (folder==null || overflow) {
+          continue;
+        }
+        Path path = folder.path.resolve((Path)event.context());
+        if (event.kind()==StandardWatchEventKinds.ENTRY_DELETE) {
+          wheel.cancel(path);
+          handledFiles.remove(path);
+          continue;
+        }
+        BasicFileAttributes attributes = readAttributes(path);
+        if (attributes==null) {
+          wheel.cancel(path);
+          handledFiles.remove(path);
+        } else if (attributes.isDirectory()) {
+          if (event.kind()==StandardWatchEventKinds.ENTRY_CREATE && selection.isFolderSelected(path, folder.depth+1)) {
+            watchFolder(path, folder.depth+1);
+          }
+        } else if (attributes.isRegularFile() && selection.isFileSelected(path.getFileName().toString())) {
+          follow(path, attributes);
+        }
+      }
+      if (!key.reset()) {
+        // The folder is gone
+        //
+        folders.remove(key);
+      }
+    }
+    if (overflow) {
+      rescan();
+    }
+    return overflow;
+  }
+
+  /**
+   * Takes the files which became old enough to handle. Every file is looked at once more: a file changed since its last event
+   * is put back at its new time.
+   *
+   * @param now The current time in ms
+   * @return The files to handle, they are no longer followed unless they change again, a rescan leaves them alone as well
+   */
+  public List<SourceFile> takeDueFiles(long now) throws IOException {
+    List<SourceFile> files = new ArrayList<SourceFile>();
+    for (Path path : wheel.poll(now)) {
+      BasicFileAttributes attributes = readAttributes(path);
+      if (attributes==null || !attributes.isRegularFile()) {
+        continue;
+      }
+      long dueTime = attributes.lastModifiedTime().toMillis()+waitTime;
+      if (dueTime>now) {
+        wheel.schedule(path, dueTime);
+      } else {
+        SourceFile file = LocalFileIterator.createSourceFile(path, attributes);
+        if (file!=null) {
+          files.add(file);
+        }
+        handledFiles.put(path, new FileVersion(attributes));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @return The number of files waiting to become old enough
+   */
+  public int getNrWaitingFiles() {
+    return wheel.size();
+  }
+
+  /**
+   * @return The number of files handed out which are still there unchanged
+   */
+  public int getNrHandledFiles() {
+    return handledFiles.size();
+  }
+
+  private static BasicFileAttributes readAttributes(Path path) {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch(IOException e) {
+      // Gone (or a dangling link): nothing to archive
+      return null;
+    }
+  }
+
+  public void close() throws IOException {
+    folders.clear();
+    wheel.clear();
+    handledFiles.clear();
+    watchService.close();
+  }
+
+  /**
+   * The size and modification time of a file when it was handed out.
+   */
+  private static class FileVersion {
+    private long size;
+    private long lastModifiedTime;
+
+    private FileVersion(BasicFileAttributes attributes) {
+      this.size = attributes.size();
+      this.lastModifiedTime = attributes.lastModifiedTime().toMillis();
+    }
+
+    private boolean isSameVersion(BasicFileAttributes attributes) {
+      return size==attributes.size() && lastModifiedTime==attributes.lastModifiedTime().toMillis();
+    }
+  }
+
+  private static class WatchedFolder {
+    private Path path;
+    private int depth;
+
+    private WatchedFolder(Path path, int depth) {
+      this.path = path;
+      this.depth = depth;
+    }
+  }
+}
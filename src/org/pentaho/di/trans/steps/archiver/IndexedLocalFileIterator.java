@@ -0,0 +1,424 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Walks a local folder tree with the help of the index written by the previous walk, only the files old enough to be handled are returned.
+ *
+ * The index holds every folder listed with its modification time, the selected files in it with their size and modification time
+ * and its selected sub folders. Adding, removing or renaming an entry changes the modification time of the folder, so a folder
+ * with the modification time in the index doesn't need to be listed again: its files are taken from the index.
+ * Files which were too young according to the index are still too young, they are not even looked at.
+ * The others are looked at again before they are returned, they may have been changed or removed.
+ * This way a walk only costs a look at every folder plus the files which changed or became old enough.
+ *
+ * The index is written in depth first order, the index of the previous walk is read along in the same order so neither is kept in memory.
+ * The new index replaces the previous one when the walk is complete. When the index is missing or can't be read the folders are listed.
+ */
+public class IndexedLocalFileIterator implements Iterator<SourceFile>, Closeable {
+
+  /** The maximum number of files found but not yet handled */
+  private static final int QUEUE_SIZE = 1000;
+
+  /** Marks the end of the walk in the queue */
+  private static final SourceFile END = new SourceFile(null, 0L, 0L);
+
+  private static final int MAGIC = 0x41524958; // ARIX
+  private static final int VERSION = 1;
+
+  /** Folders changed this close to the time they were listed may change again within the same modification time */
+  private static final long MTIME_GRANULARITY = 2000L;
+
+  /** The modification time of a folder which must be listed again in the next walk */
+  private static final long UNKNOWN = Long.MIN_VALUE;
+
+  private FileSelection selection;
+  private Path indexFile;
+  private long maxLastModifiedTime;
+
+  private DataInputStream previousIndex;
+  private DataOutputStream index;
+  private Path newIndexFile;
+  private int nrFoldersListed;
+  private int nrFoldersReused;
+
+  private Thread walker;
+  private BlockingQueue<SourceFile> queue;
+  private volatile boolean closed;
+  private volatile Throwable error;
+  private SourceFile nextFile;
+  private boolean done;
+
+  /**
+   * @param sourceFolder The folder to walk
+   * @param selection Decides which files are returned and which folders are listed
+   * @param indexFile The index of the previous walk, it is replaced when this walk is complete
+   * @param maxLastModifiedTime Only files last modified before this time in ms are returned
+   */
+  public IndexedLocalFileIterator(final Path sourceFolder, FileSelection selection, Path indexFile, long maxLastModifiedTime) {
+    this.selection = selection;
+    this.indexFile = indexFile;
+    this.maxLastModifiedTime = maxLastModifiedTime;
+
+    queue = new ArrayBlockingQueue<SourceFile>(QUEUE_SIZE);
+    walker = new Thread(new Runnable() {
+      public void run() {
+        try {
+          walk(sourceFolder);
+        } catch(Throwable t) {
+          error = t;
+        } finally {
+          enqueue(END);
+        }
+      }
+    }, "Archiver index walk of "+sourceFolder);
+    walker.setDaemon(true);
+    walker.start();
+  }
+
+  public boolean hasNext() {
+    if (done) {
+      return false;
+    }
+    if (nextFile==null) {
+      try {
+        nextFile = queue.take();
+      } catch(InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (nextFile==END) {
+        done = true;
+        nextFile = null;
+        if (error!=null) {
+          throw new RuntimeException(error);
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public SourceFile next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    SourceFile file = nextFile;
+    nextFile = null;
+    return file;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stops the walk if it is still running, the previous index is kept in that case.
+   */
+  public void close() throws IOException {
+    closed = true;
+    queue.clear();
+    walker.interrupt();
+  }
+
+  /**
+   * @return The number of folders listed in the walk, available once all files are returned
+   */
+  public int getNrFoldersListed() {
+    return nrFoldersListed;
+  }
+
+  /**
+   * @return The number of folders taken from the index without listing them, available once all files are returned
+   */
+  public int getNrFoldersReused() {
+    return nrFoldersReused;
+  }
+
+  private void enqueue(SourceFile file) {
+    try {
+      while (!queue.offer(file, 100, TimeUnit.MILLISECONDS)) {
+        if (closed) {
+          return;
+        }
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Runs in the walker thread: walks the tree and replaces the index when the walk is complete.
+   */
+  private void walk(Path sourceFolder) throws IOException {
+    openPreviousIndex();
+    newIndexFile = indexFile.resolveSibling(indexFile.getFileName()+".new");
+    index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newIndexFile.toFile()), 64*1024));
+    boolean complete = false;
+    try {
+      index.writeInt(MAGIC);
+      index.writeInt(VERSION);
+      walkFolder(sourceFolder, "", 0, readFolder(""));
+      index.close();
+      complete = !closed;
+    } finally {
+      IOUtils.closeQuietly(index);
+      IOUtils.closeQuietly(previousIndex);
+      if (complete) {
+        try {
+          Files.move(newIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException e) {
+          Files.move(newIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+      } else {
+        Files.deleteIfExists(newIndexFile);
+      }
+    }
+  }
+
+  private void openPreviousIndex() {
+    try {
+      previousIndex = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile.toFile()), 64*1024));
+      if (previousIndex.readInt()!=MAGIC || previousIndex.readInt()!=VERSION) {
+        invalidatePreviousIndex();
+      }
+    } catch(IOException e) {
+      // No (readable) index: everything is listed
+      //
+      invalidatePreviousIndex();
+    }
+  }
+
+  private void invalidatePreviousIndex() {
+    IOUtils.closeQuietly(previousIndex);
+    previousIndex = null;
+  }
+
+  /**
+   * Handles a folder and then its sub folders.
+   *
+   * @param previous The folder in the previous index, null if it needs to be listed
+   */
+  private void walkFolder(Path folder, String name, int depth, Folder previous) throws IOException {
+    if (closed) {
+      throw new IOException("The walk was stopped");
+    }
+    Folder current = null;
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(folder, BasicFileAttributes.class);
+      if (!attributes.isDirectory()) {
+        current = new Folder(name, UNKNOWN);
+      } else if (previous!=null && previous.lastModifiedTime!=UNKNOWN && previous.lastModifiedTime==attributes.lastModifiedTime().toMillis()) {
+        current = reuseFolder(folder, name, previous);
+        nrFoldersReused++;
+      } else {
+        current = listFolder(folder, name, depth);
+        nrFoldersListed++;
+      }
+    } catch(NoSuchFileException e) {
+      // Removed since its parent was listed: listed again next time
+      //
+      current = new Folder(name, UNKNOWN);
+    }
+    writeFolder(current);
+
+    // The sub folders of the previous index follow in the same (sorted) order, skip the ones which are gone
+    //
+    List<String> previousSubFolders = previous!=null ? previous.subFolders : Collections.<String>emptyList();
+    int previousNr = 0;
+    for (String subFolder : current.subFolders) {
+      while (previousNr<previousSubFolders.size() && previousSubFolders.get(previousNr).compareTo(subFolder)<0) {
+        skipFolder(previousSubFolders.get(previousNr++));
+      }
+      Folder previousSubFolder = null;
+      if (previousNr<previousSubFolders.size() && previousSubFolders.get(previousNr).equals(subFolder)) {
+        previousSubFolder = readFolder(previousSubFolders.get(previousNr++));
+      }
+      walkFolder(folder.resolve(subFolder), subFolder, depth+1, previousSubFolder);
+    }
+    while (previousNr<previousSubFolders.size()) {
+      skipFolder(previousSubFolders.get(previousNr++));
+    }
+  }
+
+  /**
+   * Takes the files of an unchanged folder from the previous index. Only the files old enough according to the index are looked at.
+   */
+  private Folder reuseFolder(Path folder, String name, Folder previous) throws IOException {
+    Folder current = new Folder(name, previous.lastModifiedTime);
+    current.subFolders = previous.subFolders;
+    for (IndexedFile file : previous.files) {
+      if (file.lastModifiedTime>=maxLastModifiedTime) {
+        // A file only gets younger when it is changed: still too young
+        //
+        current.files.add(file);
+        continue;
+      }
+      Path path = folder.resolve(file.name);
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      } catch(IOException e) {
+        // Gone since the previous walk
+        continue;
+      }
+      if (attributes.isRegularFile()) {
+        addFile(current, path, attributes);
+      }
+    }
+    return current;
+  }
+
+  private Folder listFolder(Path folder, String name, int depth) throws IOException {
+    long listTime = System.currentTimeMillis();
+    long lastModifiedTime = Files.getLastModifiedTime(folder).toMillis();
+
+    // A folder changed right before it is listed can change again without a new modification time
+    //
+    Folder current = new Folder(name, lastModifiedTime>listTime-MTIME_GRANULARITY ? UNKNOWN : lastModifiedTime);
+    DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder);
+    try {
+      for (Path path : directoryStream) {
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch(IOException e) {
+          // Gone since the folder was listed (or a dangling link): nothing to archive
+          continue;
+        }
+        if (attributes.isDirectory()) {
+          if (selection.isFolderSelected(path, depth+1)) {
+            current.subFolders.add(path.getFileName().toString());
+          }
+        } else if (attributes.isRegularFile() && selection.isFileSelected(path.getFileName().toString())) {
+          addFile(current, path, attributes);
+        }
+      }
+    } finally {
+      directoryStream.close();
+    }
+    Collections.sort(current.subFolders);
+    return current;
+  }
+
+  /**
+   * Keeps the file in the index and hands it out if it is old enough.
+   */
+  private void addFile(Folder folder, Path path, BasicFileAttributes attributes) throws IOException {
+    long lastModifiedTime = attributes.lastModifiedTime().toMillis();
+    folder.files.add(new IndexedFile(path.getFileName().toString(), attributes.size(), lastModifiedTime));
+    if (lastModifiedTime<maxLastModifiedTime) {
+      SourceFile file = LocalFileIterator.createSourceFile(path, attributes);
+      if (file!=null) {
+        enqueue(file);
+      }
+    }
+  }
+
+  private void writeFolder(Folder folder) throws IOException {
+    index.writeUTF(folder.name);
+    index.writeLong(folder.lastModifiedTime);
+    index.writeInt(folder.files.size());
+    for (IndexedFile file : folder.files) {
+      index.writeUTF(file.name);
+      index.writeLong(file.size);
+      index.writeLong(file.lastModifiedTime);
+    }
+    index.writeInt(folder.subFolders.size());
+    for (String subFolder : folder.subFolders) {
+      index.writeUTF(subFolder);
+    }
+  }
+
+  /**
+   * Reads the next folder of the previous index, the sub folders follow it.
+   *
+   * @return The folder or null if the index is missing or doesn't match the tree
+   */
+  private Folder readFolder(String name) {
+    if (previousIndex==null) {
+      return null;
+    }
+    try {
+      String indexedName = previousIndex.readUTF();
+      if (!indexedName.equals(name)) {
+        invalidatePreviousIndex();
+        return null;
+      }
+      Folder folder = new Folder(name, previousIndex.readLong());
+      int nrFiles = previousIndex.readInt();
+      for (int i=0;i<nrFiles;i++) {
+        folder.files.add(new IndexedFile(previousIndex.readUTF(), previousIndex.readLong(), previousIndex.readLong()));
+      }
+      int nrSubFolders = previousIndex.readInt();
+      for (int i=0;i<nrSubFolders;i++) {
+        folder.subFolders.add(previousIndex.readUTF());
+      }
+      return folder;
+    } catch(IOException e) {
+      invalidatePreviousIndex();
+      return null;
+    }
+  }
+
+  /**
+   * Skips a folder of the previous index which is gone, together with its sub folders.
+   */
+  private void skipFolder(String name) {
+    Folder folder = readFolder(name);
+    if (folder!=null) {
+      for (String subFolder : folder.subFolders) {
+        skipFolder(subFolder);
+      }
+    }
+  }
+
+  private static class Folder {
+    private String name;
+    private long lastModifiedTime;
+    private List<IndexedFile> files;
+    private List<String> subFolders;
+
+    private Folder(String name, long lastModifiedTime) {
+      this.name = name;
+      this.lastModifiedTime = lastModifiedTime;
+      files = new ArrayList<IndexedFile>();
+      subFolders = new ArrayList<String>();
+    }
+  }
+
+  private static class IndexedFile {
+    private String name;
+    private long size;
+    private long lastModifiedTime;
+
+    private IndexedFile(String name, long size, long lastModifiedTime) {
+      this.name = name;
+      this.size = size;
+      this.lastModifiedTime = lastModifiedTime;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * An output stream writing the LZ4 frame format, readable by the lz4 command line tool.
+ *
+ * The data is cut in independent blocks of 4MB which are compressed in parallel by the block compressors of lz4-java.
+ * Levels 1 and 2 are the fast LZ4 compression, levels 3 to 12 the LZ4 HC compression of the same level, like lz4 -3 to lz4 -12.
+ */
+public class LZ4FrameOutputStream extends ParallelBlockOutputStream {
+
+  public static final int DEFAULT_LEVEL = 1;
+  public static final int MAX_LEVEL = 12;
+
+  private static final int BLOCK_SIZE = 4*1024*1024;
+
+  /** The lowest level compressed with LZ4 HC, the lz4 tool uses the fast compression below it */
+  private static final int MIN_HC_LEVEL = 3;
+
+  private static final int MAGIC = 0x184D2204;
+
+  /** Version 01, independent blocks, content checksum */
+  private static final int FLG = 0x64;
+
+  /** Maximum block size 4MB */
+  private static final int BD = 0x70;
+
+  private int level;
+  private XXHash32 contentChecksum;
+
+  /**
+   * @param out The stream to write the LZ4 frame to
+   * @param executor The threads to compress the blocks with
+   * @param nrThreads The number of threads, determines how many blocks are kept in memory
+   * @param level The compression level from 1 to 12
+   */
+  public LZ4FrameOutputStream(OutputStream out, ExecutorService executor, int nrThreads, int level) throws IOException {
+    super(out, executor, nrThreads, BLOCK_SIZE);
+    this.level = Math.max(1, Math.min(MAX_LEVEL, level));
+    contentChecksum = new XXHash32();
+
+    byte[] header = new byte[7];
+    putInt(header, 0, MAGIC);
+    header[4] = (byte)FLG;
+    header[5] = (byte)BD;
+    header[6] = (byte)(XXHash32.hash(header, 4, 2) >> 8);
+    out.write(header);
+  }
+
+  @Override
+  protected void processInput(byte[] b, int off, int len) {
+    contentChecksum.update(b, off, len);
+  }
+
+  @Override
+  protected byte[] compressBlock(byte[] data, int length, byte[] previous, int previousLength) throws Exception {
+    LZ4Compressor compressor = getCompressor(getLevel(level));
+    byte[] compressed = new byte[4+compressor.maxCompressedLength(length)];
+    int blockLength = compressor.compress(data, 0, length, compressed, 4);
+
+    byte[] block;
+    if (blockLength>=length) {
+      // Store incompressible blocks as they are, flagged with the highest bit of the block size
+      //
+      block = new byte[length+4];
+      putInt(block, 0, length | 0x80000000);
+      System.arraycopy(data, 0, block, 4, length);
+    } else {
+      block = Arrays.copyOf(compressed, blockLength+4);
+      putInt(block, 0, blockLength);
+    }
+    return block;
+  }
+
+  /**
+   * @return The pure Java compressor of lz4-java for the level, the native library is never loaded
+   */
+  static LZ4Compressor getCompressor(int level) {
+    LZ4Factory factory = LZ4Factory.fastestJavaInstance();
+    return level<MIN_HC_LEVEL ? factory.fastCompressor() : factory.highCompressor(level);
+  }
+
+  @Override
+  protected void writeTrailer() throws IOException {
+    byte[] trailer = new byte[8];
+    putInt(trailer, 0, 0); // End mark
+    putInt(trailer, 4, (int)contentChecksum.getValue());
+    out.write(trailer);
+  }
+
+  private static void putInt(byte[] b, int off, int value) {
+    b[off] = (byte)value;
+    b[off+1] = (byte)(value >> 8);
+    b[off+2] = (byte)(value >> 16);
+    b[off+3] = (byte)(value >> 24);
+  }
+}
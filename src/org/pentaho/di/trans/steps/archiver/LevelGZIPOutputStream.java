@@ -0,0 +1,117 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A GZip output stream with a configurable deflate level, the deflater and its buffer are taken from a codec pool
+ * and given back when the stream is closed.
+ * With a level controller the level is adjusted while the data is written, the data written and the time spent deflating
+ * are reported to it.
+ */
+public class LevelGZIPOutputStream extends DeflaterOutputStream {
+
+  private static final byte[] HEADER = new byte[] { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+  private CompressionLevelController levelController;
+  private int level;
+  private CodecPool codecPool;
+  private CRC32 crc;
+  private long totalLength;
+  private boolean closed;
+
+  /**
+   * @param out The stream to write the gzip data to
+   * @param level The deflate level, used when there is no level controller
+   * @param levelController The controller picking the level or null
+   * @param codecPool The pool to take the deflater from
+   */
+  public LevelGZIPOutputStream(OutputStream out, int level, CompressionLevelController levelController, CodecPool codecPool) throws IOException {
+    super(out, codecPool.takeDeflater(levelController==null ? level : levelController.getLevel()), 1);
+    this.levelController = levelController;
+    this.level = levelController==null ? level : levelController.getLevel();
+    this.codecPool = codecPool;
+    buf = codecPool.takeArray();
+    crc = new CRC32();
+    totalLength = 0L;
+
+    out.write(HEADER);
+  }
+
+  /**
+   * Deflates the next part of the data, the writing of the compressed data doesn't count as compression time.
+   */
+  @Override
+  protected void deflate() throws IOException {
+    if (levelController==null) {
+      super.deflate();
+      return;
+    }
+    int len;
+    levelController.startCompressing();
+    try {
+      len = def.deflate(buf, 0, buf.length);
+    } finally {
+      levelController.stopCompressing();
+    }
+    if (len>0) {
+      out.write(buf, 0, len);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (levelController!=null) {
+      int newLevel = levelController.getLevel();
+      if (newLevel!=level) {
+        level = newLevel;
+        def.setLevel(level);
+      }
+    }
+    super.write(b, off, len);
+    crc.update(b, off, len);
+    totalLength+=len;
+    if (levelController!=null) {
+      levelController.addProcessed(len);
+    }
+  }
+
+  /**
+   * Completes the deflate data and writes the trailer without closing the underlying stream.
+   */
+  @Override
+  public void finish() throws IOException {
+    if (!def.finished()) {
+      super.finish();
+
+      // The trailer: CRC32 and the size of the uncompressed data, both little endian
+      //
+      writeInt((int)crc.getValue());
+      writeInt((int)(totalLength & 0xffffffffL));
+    }
+  }
+
+  private void writeInt(int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >> 8) & 0xff);
+    out.write((value >> 16) & 0xff);
+    out.write((value >> 24) & 0xff);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      super.close();
+    } finally {
+      codecPool.giveDeflater(def);
+      codecPool.giveArray(buf);
+    }
+  }
+}
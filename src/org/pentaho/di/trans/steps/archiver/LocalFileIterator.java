@@ -0,0 +1,139 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.provider.UriParser;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.di.core.vfs.KettleVFS;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Walks a local folder tree lazily: a folder is only listed when the files before it have been consumed.
+ * This way the files can be handled while the tree is still being scanned, without keeping the whole tree in memory.
+ * The size and modification time read during the walk are handed out with every file.
+ */
+public class LocalFileIterator implements Iterator<SourceFile>, Closeable {
+
+  private static Class<?> PKG = LocalFileIterator.class;
+
+  private FileSelection selection;
+
+  private LinkedList<Path> foldersToList;
+  private LinkedList<Integer> folderDepths;
+  private DirectoryStream<Path> directoryStream;
+  private Iterator<Path> entries;
+  private int depth;
+  private SourceFile nextFile;
+
+  /**
+   * @param sourceFolder The folder to walk
+   * @param selection Decides which files are returned and which folders are listed
+   */
+  public LocalFileIterator(Path sourceFolder, FileSelection selection) {
+    this.selection = selection;
+
+    foldersToList = new LinkedList<Path>();
+    folderDepths = new LinkedList<Integer>();
+    foldersToList.add(sourceFolder);
+    folderDepths.add(0);
+  }
+
+  public boolean hasNext() {
+    if (nextFile==null) {
+      try {
+        nextFile = findNextFile();
+      } catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+    return nextFile!=null;
+  }
+
+  public SourceFile next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    SourceFile file = nextFile;
+    nextFile = null;
+    return file;
+  }
+
+  private SourceFile findNextFile() throws IOException {
+    while (true) {
+      if (entries==null) {
+        if (foldersToList.isEmpty()) {
+          return null;
+        }
+        directoryStream = Files.newDirectoryStream(foldersToList.removeFirst());
+        depth = folderDepths.removeFirst();
+        entries = directoryStream.iterator();
+      }
+
+      while (entries.hasNext()) {
+        Path path = entries.next();
+        // This is the only time the file is looked at before it is handled
+        //
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch(IOException e) {
+          // Gone since the folder was listed (or a dangling link): nothing to archive
+          continue;
+        }
+        if (attributes.isDirectory()) {
+          if (selection.isFolderSelected(path, depth+1)) {
+            foldersToList.addFirst(path);
+            folderDepths.addFirst(depth+1);
+          }
+        } else if (attributes.isRegularFile() && selection.isFileSelected(path.getFileName().toString())) {
+          SourceFile file = createSourceFile(path, attributes);
+          if (file!=null) {
+            return file;
+          }
+        }
+      }
+
+      close();
+    }
+  }
+
+  /**
+   * @return The source file of a path found by a walk, null if VFS can't resolve the path: the file is skipped
+   */
+  static SourceFile createSourceFile(Path path, BasicFileAttributes attributes) {
+    try {
+      // VFS decodes escapes in the name it is given, a % in the file name has to be escaped itself
+      //
+      FileObject fileObject = KettleVFS.getFileObject(UriParser.encode(path.toString(), new char[] { '%' }));
+      return new SourceFile(fileObject, attributes.size(), attributes.lastModifiedTime().toMillis());
+    } catch(Exception e) {
+      LogChannel.GENERAL.logError(BaseMessages.getString(PKG, "LocalFileIterator.Log.FileSkipped", path.toString()), e);
+      return null;
+    }
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Releases the folder currently being listed.
+   */
+  public void close() throws IOException {
+    entries = null;
+    if (directoryStream!=null) {
+      DirectoryStream<Path> stream = directoryStream;
+      directoryStream = null;
+      stream.close();
+    }
+  }
+}
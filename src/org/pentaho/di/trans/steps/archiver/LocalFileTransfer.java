@@ -0,0 +1,79 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Moves and copies local files without pumping the data through the JVM heap.
+ */
+public class LocalFileTransfer {
+
+  private LocalFileTransfer() {
+  }
+
+  /**
+   * Moves a file with an atomic rename. When source and target live on different file systems the file is copied
+   * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} and the source is removed afterwards.
+   */
+  public static void move(Path source, Path target) throws IOException {
+    if (!rename(source, target)) {
+      copy(source, target);
+      Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+      Files.delete(source);
+    }
+  }
+
+  /**
+   * Moves a file with an atomic rename, no data is copied.
+   * 
+   * @return false if source and target live on different file systems and the file was not moved
+   */
+  public static boolean rename(Path source, Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch(AtomicMoveNotSupportedException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Copies a file, the kernel moves the data from one file to the other.
+   */
+  public static void copy(Path source, Path target) throws IOException {
+    FileInputStream inputStream = new FileInputStream(source.toFile());
+    try {
+      FileOutputStream outputStream = new FileOutputStream(target.toFile());
+      try {
+        FileChannel in = inputStream.getChannel();
+        transfer(in, 0L, in.size(), outputStream.getChannel());
+      } finally {
+        outputStream.close();
+      }
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  /**
+   * Transfers exactly the given number of bytes from one channel to the other.
+   * 
+   * @throws IOException when the source file ends before the given number of bytes is transferred.
+   */
+  public static void transfer(FileChannel in, long position, long count, FileChannel out) throws IOException {
+    long transferred = 0L;
+    while (transferred<count) {
+      long size = in.transferTo(position+transferred, count-transferred, out);
+      if (size<=0) {
+        throw new IOException("Only "+transferred+" out of "+count+" bytes could be transferred, the file was changed while it was archived");
+      }
+      transferred+=size;
+    }
+  }
+}
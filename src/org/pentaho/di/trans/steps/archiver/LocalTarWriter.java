@@ -0,0 +1,154 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipEncoding;
+import org.apache.commons.compress.archivers.zip.ZipEncodingHelper;
+
+/**
+ * Writes an uncompressed TAR archive to a local file. The headers are the ones TarArchiveOutputStream writes with GNU long
+ * file names and star big numbers, but the entry data is transferred from the source file with FileChannel.transferTo so
+ * the kernel copies it and it never passes through the JVM heap.
+ */
+public class LocalTarWriter implements Closeable {
+
+  /** The size of a TAR header and the unit the entry data is padded to */
+  private static final int RECORD_SIZE = 512;
+
+  /** The archive is padded to a multiple of 20 records, the default blocking factor of tar */
+  private static final int BLOCK_SIZE = 20*RECORD_SIZE;
+
+  private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+
+  private FileOutputStream outputStream;
+  private FileChannel channel;
+  private ZipEncoding encoding;
+  private boolean finished;
+  private CodecPool codecPool;
+
+  /**
+   * @param target The archive to write
+   * @param codecPool Provides the direct buffer the headers are written from
+   */
+  public LocalTarWriter(Path target, CodecPool codecPool) throws IOException {
+    this(target, false, codecPool);
+  }
+
+  /**
+   * @param target The archive to write
+   * @param append true to add entries to an archive which was cut back to the end of an entry
+   * @param codecPool Provides the direct buffer the headers are written from
+   */
+  public LocalTarWriter(Path target, boolean append, CodecPool codecPool) throws IOException {
+    outputStream = new FileOutputStream(target.toFile(), append);
+    channel = outputStream.getChannel();
+    encoding = ZipEncodingHelper.getZipEncoding(null);
+    this.codecPool = codecPool;
+  }
+
+  /**
+   * @param name The name of the entry in the archive
+   * @param source The file to add
+   * @param size The number of bytes to add, the size of the file when it was found
+   * @param lastModified The modification time of the file in ms
+   */
+  public void addEntry(String name, Path source, long size, long lastModified) throws IOException {
+    // Long names get a GNU ././@LongLink entry in front, like TarArchiveOutputStream.LONGFILE_GNU
+    //
+    byte[] nameBytes = name.getBytes(Charset.defaultCharset());
+    if (nameBytes.length>=TarConstants.NAMELEN) {
+      TarArchiveEntry longLinkEntry = new TarArchiveEntry(TarConstants.GNU_LONGLINK, TarConstants.LF_GNUTYPE_LONGNAME);
+      longLinkEntry.setSize(nameBytes.length+1);
+      writeHeader(longLinkEntry);
+      write(nameBytes, nameBytes.length);
+      write(ZEROS, 1);
+      pad(nameBytes.length+1);
+    }
+
+    TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(size);
+    entry.setModTime(lastModified);
+    writeHeader(entry);
+
+    FileInputStream inputStream = new FileInputStream(source.toFile());
+    try {
+      LocalFileTransfer.transfer(inputStream.getChannel(), 0L, size, channel);
+    } finally {
+      inputStream.close();
+    }
+    pad(size);
+  }
+
+  private void writeHeader(TarArchiveEntry entry) throws IOException {
+    byte[] header = new byte[RECORD_SIZE];
+    entry.writeEntryHeader(header, encoding, true);
+    write(header, header.length);
+  }
+
+  /**
+   * Writes through a pooled direct buffer, the channel would copy a heap buffer to a temporary direct one.
+   */
+  private void write(byte[] data, int length) throws IOException {
+    ByteBuffer buffer = codecPool.takeDirectBuffer();
+    try {
+      int offset = 0;
+      while (offset<length) {
+        int size = Math.min(length-offset, buffer.capacity());
+        buffer.clear();
+        buffer.put(data, offset, size);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        offset+=size;
+      }
+    } finally {
+      codecPool.giveDirectBuffer(buffer);
+    }
+  }
+
+  /**
+   * Fills up the last record of an entry with zeros.
+   */
+  private void pad(long size) throws IOException {
+    int remainder = (int)(size % RECORD_SIZE);
+    if (remainder>0) {
+      write(ZEROS, RECORD_SIZE-remainder);
+    }
+  }
+
+  /**
+   * @return The size of the archive so far, after {@link #addEntry(String, Path, long, long)} this is the end of the entry
+   */
+  public long getPosition() throws IOException {
+    return channel.position();
+  }
+
+  /**
+   * Writes the two end of archive records and fills up the last block.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    write(ZEROS, 2*RECORD_SIZE);
+    int remainder = (int)(channel.position() % BLOCK_SIZE);
+    if (remainder>0) {
+      write(ZEROS, BLOCK_SIZE-remainder);
+    }
+    finished = true;
+  }
+
+  public void close() throws IOException {
+    outputStream.close();
+  }
+}
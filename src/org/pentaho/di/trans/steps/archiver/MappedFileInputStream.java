@@ -0,0 +1,163 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a large local file through memory mapped windows instead of a system call per chunk.
+ *
+ * Only one window is mapped at a time: it is unmapped as soon as it has been read
+ * so the address space used doesn't grow with the size of the file.
+ * The size of the file is taken when it is opened, data appended later on is not read.
+ */
+public class MappedFileInputStream extends InputStream {
+
+  public static final int DEFAULT_WINDOW_SIZE = 64*1024*1024;
+
+  private FileChannel channel;
+  private long size;
+  private long position;
+  private int windowSize;
+  private MappedByteBuffer window;
+
+  public MappedFileInputStream(Path path) throws IOException {
+    this(path, DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * @param path The local file to read
+   * @param windowSize The size of the part of the file mapped at a time
+   */
+  public MappedFileInputStream(Path path, int windowSize) throws IOException {
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.size = channel.size();
+    this.position = 0L;
+    this.windowSize = windowSize;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!hasRemaining()) {
+      return -1;
+    }
+    return window.get() & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len==0) {
+      return 0;
+    }
+    if (!hasRemaining()) {
+      return -1;
+    }
+    int length = Math.min(len, window.remaining());
+    window.get(b, off, length);
+    return length;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n<=0 || !hasRemaining()) {
+      return 0L;
+    }
+    if (n<window.remaining()) {
+      window.position(window.position()+(int)n);
+      return n;
+    }
+    // Skip the rest of this window and continue after the skipped part of the file with a new one
+    //
+    long skipped = Math.min(n, size-position+window.remaining());
+    position += skipped-window.remaining();
+    unmap();
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (window!=null && window.hasRemaining()) {
+      return window.remaining();
+    }
+    return (int)Math.min(Integer.MAX_VALUE, size-position);
+  }
+
+  /**
+   * Maps the next window when the current one has been read.
+   *
+   * @return false at the end of the file
+   */
+  private boolean hasRemaining() throws IOException {
+    if (window!=null && window.hasRemaining()) {
+      return true;
+    }
+    unmap();
+    if (channel==null) {
+      throw new IOException("Stream already closed");
+    }
+    if (position>=size) {
+      return false;
+    }
+    long length = Math.min(windowSize, size-position);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    position += length;
+    return true;
+  }
+
+  private void unmap() {
+    if (window!=null) {
+      MappedByteBuffer buffer = window;
+      window = null;
+      unmap(buffer);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    unmap();
+    if (channel!=null) {
+      FileChannel fileChannel = channel;
+      channel = null;
+      fileChannel.close();
+    }
+  }
+
+  /**
+   * Releases the mapping right away instead of waiting for the garbage collector to find the buffer.
+   * The buffer must no longer be used afterwards. When the JVM doesn't allow it, the mapping is left to the garbage collector.
+   */
+  static void unmap(ByteBuffer buffer) {
+    try {
+      // Java 9 and later
+      //
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      return;
+    } catch(Exception e) {
+      // Not available: try the cleaner of the buffer itself
+    }
+    try {
+      // Java 7 and 8
+      //
+      Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      Object cleaner = cleanerMethod.invoke(buffer);
+      if (cleaner!=null) {
+        Method clean = cleaner.getClass().getMethod("clean");
+        clean.setAccessible(true);
+        clean.invoke(cleaner);
+      }
+    } catch(Exception e) {
+      // Left to the garbage collector
+    }
+  }
+}
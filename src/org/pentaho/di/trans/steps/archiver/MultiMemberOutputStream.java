@@ -0,0 +1,91 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Compresses into a sequence of independent members: gzip members, XZ or BZip2 streams.
+ * Decompressors read concatenated members as a single stream, so a member can be ended at any point to get a position
+ * in the compressed data from where the rest can be written again.
+ */
+public class MultiMemberOutputStream extends OutputStream {
+
+  /**
+   * Creates the compressing stream of a member.
+   */
+  public interface CompressorFactory {
+    public OutputStream create(OutputStream out) throws IOException;
+  }
+
+  private CountingOutputStream out;
+  private long startOffset;
+  private CompressorFactory factory;
+  private OutputStream member;
+  private boolean closed;
+
+  /**
+   * @param out The stream to write the members to
+   * @param startOffset The number of bytes in front of the data written to the stream, for a stream appending to a file
+   * @param factory Creates the compressing stream of every member
+   */
+  public MultiMemberOutputStream(OutputStream out, long startOffset, CompressorFactory factory) {
+    this.out = new CountingOutputStream(out);
+    this.startOffset = startOffset;
+    this.factory = factory;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte)b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (member==null) {
+      // The members are closed before the next one starts, the underlying stream stays open
+      //
+      member = factory.create(new CloseShieldOutputStream(out));
+    }
+    member.write(b, off, len);
+  }
+
+  /**
+   * Completes the current member, the next data written starts a new one.
+   *
+   * @return The position after the member: the start offset plus the compressed data written
+   */
+  public long endMember() throws IOException {
+    if (member!=null) {
+      OutputStream finished = member;
+      member = null;
+      finished.close();
+    }
+    return getOffset();
+  }
+
+  /**
+   * @return The start offset plus the compressed data written so far
+   */
+  public long getOffset() {
+    return startOffset+out.getByteCount();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      endMember();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+/**
+ * A BZip2 output stream which compresses blocks of data in parallel, the way pbzip2 does it.
+ *
+ * Every block of 900k is compressed into a complete bzip2 stream of its own.
+ * The streams are written one after the other, bzip2, pbzip2 and 7-zip read such concatenated streams as a single file.
+ */
+public class ParallelBZip2OutputStream extends ParallelBlockOutputStream {
+
+  private int blockSizeLevel;
+
+  /**
+   * @param out The stream to write the bzip2 data to
+   * @param executor The threads to compress the blocks with
+   * @param nrThreads The number of threads, determines how many blocks are kept in memory
+   */
+  public ParallelBZip2OutputStream(OutputStream out, ExecutorService executor, int nrThreads) {
+    this(out, executor, nrThreads, BZip2CompressorOutputStream.MAX_BLOCKSIZE);
+  }
+
+  /**
+   * @param blockSizeLevel The bzip2 block size from 1 (100k) to 9 (900k)
+   */
+  public ParallelBZip2OutputStream(OutputStream out, ExecutorService executor, int nrThreads, int blockSizeLevel) {
+    super(out, executor, nrThreads, blockSizeLevel*100000);
+    this.blockSizeLevel = blockSizeLevel;
+  }
+
+  @Override
+  protected byte[] compressBlock(byte[] data, int length, byte[] previous, int previousLength) throws Exception {
+    return compress(data, length);
+  }
+
+  private byte[] compress(byte[] data, int length) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(length/4+64);
+    BZip2CompressorOutputStream bz2os = new BZip2CompressorOutputStream(compressed, blockSizeLevel);
+    bz2os.write(data, 0, length);
+    bz2os.close();
+    return compressed.toByteArray();
+  }
+
+  @Override
+  protected void writeTrailer() throws IOException {
+    // Empty input still needs to be a valid bzip2 file...
+    //
+    if (getNrBlocks()==0) {
+      out.write(compress(new byte[0], 0));
+    }
+  }
+}
@@ -0,0 +1,266 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * An output stream which cuts the data in blocks, compresses the blocks in parallel and writes the compressed blocks in order.
+ *
+ * The number of blocks kept in memory is capped at twice the number of threads.
+ * Subclasses take care of the format: the header, the compression of a single block and the trailer.
+ */
+public abstract class ParallelBlockOutputStream extends OutputStream {
+
+  protected OutputStream out;
+
+  private ExecutorService executor;
+  private int blockSize;
+  private int maxBlocksInFlight;
+
+  private byte[] block;
+  private int blockLength;
+  private byte[] previousBlock;
+  private int previousBlockLength;
+
+  private LinkedList<Future<byte[]>> blocksInFlight;
+  private LinkedList<Integer> blockLengthsInFlight;
+  private long nrBlocks;
+  private boolean closed;
+
+  private CompressionLevelController levelController;
+  private Semaphore compressionPermits;
+
+  /** Deflaters and work buffers for the subclasses, shared between streams when one is set */
+  protected CodecPool codecPool;
+
+  /**
+   * @param out The stream to write the compressed data to
+   * @param executor The threads to compress the blocks with
+   * @param nrThreads The number of threads, determines how many blocks are kept in memory
+   * @param blockSize The size of the uncompressed blocks
+   */
+  protected ParallelBlockOutputStream(OutputStream out, ExecutorService executor, int nrThreads, int blockSize) {
+    this.out = out;
+    this.executor = executor;
+    this.blockSize = blockSize;
+    this.maxBlocksInFlight = Math.max(1, nrThreads)*2;
+
+    block = new byte[getInitialBlockSize()];
+    blockLength = 0;
+    blocksInFlight = new LinkedList<Future<byte[]>>();
+    blockLengthsInFlight = new LinkedList<Integer>();
+    nrBlocks = 0L;
+    codecPool = new CodecPool(Math.max(1, nrThreads));
+  }
+
+  /**
+   * Shares the deflaters and work buffers with other streams.
+   */
+  public void setCodecPool(CodecPool codecPool) {
+    this.codecPool = codecPool;
+  }
+
+  /**
+   * Blocks start small and grow up to the block size, small files don't need a complete block.
+   */
+  private int getInitialBlockSize() {
+    return Math.min(blockSize, CodecPool.BUFFER_SIZE);
+  }
+
+  /**
+   * Lets the controller choose the level of every block, the size of every block and the time spent compressing it are reported to it.
+   */
+  public void setLevelController(CompressionLevelController levelController) {
+    this.levelController = levelController;
+  }
+
+  /**
+   * Caps the number of blocks compressed at the same time by all streams and archives sharing the permits:
+   * every block takes a permit while it is compressed.
+   */
+  public void setCompressionPermits(Semaphore compressionPermits) {
+    this.compressionPermits = compressionPermits;
+  }
+
+  /**
+   * @param level The level configured for the stream
+   * @return The level to compress the next block with
+   */
+  protected int getLevel(int level) {
+    return levelController==null ? level : levelController.getLevel();
+  }
+
+  /**
+   * Compress a single block, this is called in one of the compression threads.
+   *
+   * @param data The uncompressed block
+   * @param length The length of the block
+   * @param previous The previous block or null if this is the first block
+   * @param previousLength The length of the previous block
+   * @return The compressed block
+   */
+  protected abstract byte[] compressBlock(byte[] data, int length, byte[] previous, int previousLength) throws Exception;
+
+  /**
+   * Called with all the data written to the stream, in order, before it is cut in blocks.
+   */
+  protected void processInput(byte[] b, int off, int len) {
+  }
+
+  /**
+   * Writes a compressed block, in order. Subclasses can override this to keep track of the blocks written.
+   *
+   * @param compressed The compressed block
+   * @param length The length of the uncompressed block
+   */
+  protected void writeBlock(byte[] compressed, int length) throws IOException {
+    out.write(compressed);
+  }
+
+  /**
+   * Write whatever needs to follow the last compressed block.
+   */
+  protected abstract void writeTrailer() throws IOException;
+
+  /**
+   * @return The number of blocks handed to the compression threads so far
+   */
+  protected long getNrBlocks() {
+    return nrBlocks;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte)b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    processInput(b, off, len);
+
+    while (len>0) {
+      if (blockLength==block.length && block.length<blockSize) {
+        block = Arrays.copyOf(block, Math.min(blockSize, block.length*4));
+      }
+      int size = Math.min(len, block.length-blockLength);
+      System.arraycopy(b, off, block, blockLength, size);
+      blockLength+=size;
+      off+=size;
+      len-=size;
+
+      if (blockLength==blockSize) {
+        submitBlock();
+      }
+    }
+  }
+
+  /**
+   * Hand the current block over to a compression thread and start a new one.
+   */
+  private void submitBlock() throws IOException {
+    final byte[] data = block;
+    final int length = blockLength;
+    final byte[] previous = previousBlock;
+    final int previousLength = previousBlockLength;
+    blocksInFlight.add(executor.submit(new Callable<byte[]>() {
+      public byte[] call() throws Exception {
+        if (compressionPermits!=null) {
+          compressionPermits.acquire();
+        }
+        try {
+          return compressMeasuredBlock(data, length, previous, previousLength);
+        } finally {
+          if (compressionPermits!=null) {
+            compressionPermits.release();
+          }
+        }
+      }
+    }));
+    blockLengthsInFlight.add(length);
+    nrBlocks++;
+
+    previousBlock = block;
+    previousBlockLength = blockLength;
+    block = new byte[blockSize];
+    blockLength = 0;
+
+    // Keep memory usage in check: write out the oldest blocks
+    //
+    while (blocksInFlight.size()>=maxBlocksInFlight) {
+      writeFirstBlock();
+    }
+  }
+
+  private byte[] compressMeasuredBlock(byte[] data, int length, byte[] previous, int previousLength) throws Exception {
+    if (levelController==null) {
+      return compressBlock(data, length, previous, previousLength);
+    }
+    levelController.startCompressing();
+    try {
+      return compressBlock(data, length, previous, previousLength);
+    } finally {
+      levelController.stopCompressing();
+      levelController.addProcessed(length);
+    }
+  }
+
+  private void writeFirstBlock() throws IOException {
+    Future<byte[]> future = blocksInFlight.removeFirst();
+    int length = blockLengthsInFlight.removeFirst();
+    try {
+      writeBlock(future.get(), length);
+    } catch(InterruptedException e) {
+      throw new IOException("Interrupted while compressing data", e);
+    } catch(ExecutionException e) {
+      throw new IOException("Unable to compress data", e.getCause());
+    }
+  }
+
+  /**
+   * Completes the compressed data without closing the underlying stream.
+   */
+  public void finish() throws IOException {
+    if (closed) {
+      return;
+    }
+    if (blockLength>0) {
+      submitBlock();
+    }
+    while (!blocksInFlight.isEmpty()) {
+      writeFirstBlock();
+    }
+    writeTrailer();
+    closed = true;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (!closed) {
+        finish();
+      }
+    } finally {
+      for (Future<byte[]> future : blocksInFlight) {
+        future.cancel(true);
+      }
+      blocksInFlight.clear();
+      blockLengthsInFlight.clear();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A GZip output stream which deflates independent blocks of data in parallel, the way pigz does it.
+ *
+ * Every block is deflated with the last 32k of the previous block as its dictionary and ends with a sync flush.
+ * The compressed blocks are written in order after a standard gzip header so the result can be read by gunzip and GZIPInputStream.
+ */
+public class ParallelGZIPOutputStream extends ParallelBlockOutputStream {
+
+  public static final int DEFAULT_BLOCK_SIZE = 128*1024;
+
+  private static final int DICTIONARY_SIZE = 32*1024;
+
+  private static final byte[] HEADER = new byte[] { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+  /** An empty final deflate block (BFINAL=1, fixed Huffman codes) */
+  private static final byte[] FINAL_BLOCK = new byte[] { 0x03, 0x00 };
+
+  private int level;
+  private CRC32 crc;
+  private long totalLength;
+
+  /**
+   * @param out The stream to write the gzip data to
+   * @param executor The threads to deflate the blocks with
+   * @param nrThreads The number of threads, determines how many blocks are kept in memory
+   */
+  public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int nrThreads) throws IOException {
+    this(out, executor, nrThreads, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+  }
+
+  public ParallelGZIPOutputStream(OutputStream out, ExecutorService executor, int nrThreads, int level, int blockSize) throws IOException {
+    super(out, executor, nrThreads, Math.max(blockSize, DICTIONARY_SIZE));
+    this.level = level;
+    crc = new CRC32();
+    totalLength = 0L;
+
+    out.write(HEADER);
+  }
+
+  @Override
+  protected void processInput(byte[] b, int off, int len) {
+    crc.update(b, off, len);
+    totalLength+=len;
+  }
+
+  @Override
+  protected byte[] compressBlock(byte[] data, int length, byte[] previous, int previousLength) throws Exception {
+    Deflater deflater = codecPool.takeDeflater(getLevel(level));
+    byte[] buffer = codecPool.takeArray();
+    try {
+      if (previous!=null) {
+        int size = Math.min(DICTIONARY_SIZE, previousLength);
+        deflater.setDictionary(previous, previousLength-size, size);
+      }
+      deflater.setInput(data, 0, length);
+
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(length/2+64);
+      int size;
+      do {
+        size = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        compressed.write(buffer, 0, size);
+      } while (size==buffer.length || !deflater.needsInput());
+
+      return compressed.toByteArray();
+    } finally {
+      codecPool.giveDeflater(deflater);
+      codecPool.giveArray(buffer);
+    }
+  }
+
+  @Override
+  protected void writeTrailer() throws IOException {
+    out.write(FINAL_BLOCK);
+
+    // The trailer: CRC32 and the size of the uncompressed data, both little endian
+    //
+    writeInt((int)crc.getValue());
+    writeInt((int)(totalLength & 0xffffffffL));
+  }
+
+  private void writeInt(int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >> 8) & 0xff);
+    out.write((value >> 16) & 0xff);
+    out.write((value >> 24) & 0xff);
+  }
+}
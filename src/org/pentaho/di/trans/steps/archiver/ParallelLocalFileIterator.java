@@ -0,0 +1,181 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks a local folder tree with a fork/join pool: sub folders are listed in parallel and idle threads steal the folders
+ * still waiting to be listed. The files found are handed out through a bounded queue while the walk is running.
+ * 
+ * The files returned are the same as the ones returned by {@link LocalFileIterator}, only the order differs.
+ */
+public class ParallelLocalFileIterator implements Iterator<SourceFile>, Closeable {
+
+  /** The maximum number of files found but not yet handled */
+  private static final int QUEUE_SIZE = 1000;
+
+  /** Marks the end of the walk in the queue */
+  private static final SourceFile END = new SourceFile(null, 0L, 0L);
+
+  private FileSelection selection;
+
+  private ForkJoinPool pool;
+  private BlockingQueue<SourceFile> queue;
+  private volatile boolean closed;
+  private volatile Throwable error;
+  private SourceFile nextFile;
+  private boolean done;
+
+  /**
+   * @param sourceFolder The folder to walk
+   * @param selection Decides which files are returned and which folders are listed
+   * @param parallelism The number of threads listing folders
+   */
+  public ParallelLocalFileIterator(final Path sourceFolder, FileSelection selection, int parallelism) {
+    this.selection = selection;
+
+    queue = new ArrayBlockingQueue<SourceFile>(QUEUE_SIZE);
+    pool = new ForkJoinPool(parallelism);
+    pool.execute(new RecursiveAction() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void compute() {
+        try {
+          new ListFolderTask(sourceFolder, 0).invoke();
+        } catch(Throwable t) {
+          error = t;
+        } finally {
+          enqueue(END);
+        }
+      }
+    });
+  }
+
+  public boolean hasNext() {
+    if (done) {
+      return false;
+    }
+    if (nextFile==null) {
+      try {
+        nextFile = queue.take();
+      } catch(InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      if (nextFile==END) {
+        done = true;
+        nextFile = null;
+        if (error!=null) {
+          throw new RuntimeException(error);
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public SourceFile next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    SourceFile file = nextFile;
+    nextFile = null;
+    return file;
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stops the walk if it is still running.
+   */
+  public void close() throws IOException {
+    closed = true;
+    queue.clear();
+    pool.shutdownNow();
+  }
+
+  /**
+   * Waits for room in the queue, gives up when the iterator is closed.
+   */
+  private void enqueue(SourceFile file) {
+    try {
+      while (!queue.offer(file, 100, TimeUnit.MILLISECONDS)) {
+        if (closed) {
+          return;
+        }
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Lists a single folder, the sub folders are forked as new tasks.
+   */
+  private class ListFolderTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private Path folder;
+    private int depth;
+
+    private ListFolderTask(Path folder, int depth) {
+      this.folder = folder;
+      this.depth = depth;
+    }
+
+    @Override
+    protected void compute() {
+      if (closed) {
+        return;
+      }
+      List<ListFolderTask> subTasks = new ArrayList<ListFolderTask>();
+      try {
+        DirectoryStream<Path> directoryStream = Files.newDirectoryStream(folder);
+        try {
+          for (Path path : directoryStream) {
+            if (closed) {
+              return;
+            }
+            BasicFileAttributes attributes;
+            try {
+              attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch(IOException e) {
+              // Gone since the folder was listed (or a dangling link): nothing to archive
+              continue;
+            }
+            if (attributes.isDirectory()) {
+              if (selection.isFolderSelected(path, depth+1)) {
+                subTasks.add(new ListFolderTask(path, depth+1));
+              }
+            } else if (attributes.isRegularFile() && selection.isFileSelected(path.getFileName().toString())) {
+              SourceFile file = LocalFileIterator.createSourceFile(path, attributes);
+              if (file!=null) {
+                enqueue(file);
+              }
+            }
+          }
+        } finally {
+          directoryStream.close();
+        }
+      } catch(IOException e) {
+        throw new RuntimeException(e);
+      }
+      invokeAll(subTasks);
+    }
+  }
+}
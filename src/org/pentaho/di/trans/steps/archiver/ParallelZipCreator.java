@@ -0,0 +1,655 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Writes a ZIP archive of which the entries are deflated in parallel.
+ * Entries with data which is compressed already can be stored as they are.
+ *
+ * Every entry is compressed in one of the threads into a scatter buffer which spills over to a temporary file for larger entries.
+ * The compressed entries are then gathered in order into the archive. Zip64 extensions are written where they are needed
+ * so archives larger than 4GB or with more than 65535 entries work as well.
+ * An archive cut back to the end of an entry can be continued without compressing the entries in it again.
+ */
+public class ParallelZipCreator {
+
+  /** Compressed entries up to this size are kept in memory */
+  public static final int DEFAULT_SPILL_THRESHOLD = 1024*1024;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int LOCAL_FILE_HEADER_SIG = 0x04034b50;
+  private static final int CENTRAL_FILE_HEADER_SIG = 0x02014b50;
+  private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIR_SIG = 0x06064b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIG = 0x07064b50;
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+
+  private static final int VERSION_DEFAULT = 20;
+  private static final int VERSION_ZIP64 = 45;
+  private static final int FLAG_UTF8 = 0x0800;
+
+  private static final long ZIP64_MAGIC = 0xffffffffL;
+  private static final int ZIP64_MAGIC_SHORT = 0xffff;
+
+  /**
+   * Opens the data of an entry when it is compressed.
+   */
+  public interface InputStreamSupplier {
+    public InputStream get() throws Exception;
+  }
+
+  private CountingOutputStream out;
+  private ExecutorService executor;
+  private int maxEntriesInFlight;
+  private int level;
+  private int spillThreshold;
+  private CompressionLevelController levelController;
+  private Semaphore compressionPermits;
+  private CodecPool codecPool;
+
+  private LinkedList<Future<ScatteredEntry>> entriesInFlight;
+  private List<WrittenEntry> writtenEntries;
+  private boolean closed;
+
+  public ParallelZipCreator(OutputStream out, ExecutorService executor, int nrThreads) {
+    this(out, executor, nrThreads, Deflater.DEFAULT_COMPRESSION, DEFAULT_SPILL_THRESHOLD);
+  }
+
+  /**
+   * @param out The stream to write the archive to
+   * @param executor The threads to compress the entries with
+   * @param nrThreads The number of threads, determines how many entries are kept in scatter buffers
+   * @param level The deflate compression level
+   * @param spillThreshold The compressed size above which an entry is spilled to a temporary file
+   */
+  public ParallelZipCreator(OutputStream out, ExecutorService executor, int nrThreads, int level, int spillThreshold) {
+    this.out = new CountingOutputStream(out);
+    this.executor = executor;
+    this.maxEntriesInFlight = Math.max(1, nrThreads)*2;
+    this.level = level;
+    this.spillThreshold = spillThreshold;
+
+    entriesInFlight = new LinkedList<Future<ScatteredEntry>>();
+    writtenEntries = new ArrayList<WrittenEntry>();
+    codecPool = new CodecPool(Math.max(1, nrThreads));
+  }
+
+  /**
+   * Shares the deflaters and work buffers with other archives and streams.
+   */
+  public void setCodecPool(CodecPool codecPool) {
+    this.codecPool = codecPool;
+  }
+
+  /**
+   * Lets the controller choose the level of every entry, the data compressed is reported to it.
+   */
+  public void setLevelController(CompressionLevelController levelController) {
+    this.levelController = levelController;
+  }
+
+  /**
+   * Caps the number of threads deflating at the same time by all archives and streams sharing the permits:
+   * a permit is taken for every buffer deflated, not while the file of the entry is read.
+   */
+  public void setCompressionPermits(Semaphore compressionPermits) {
+    this.compressionPermits = compressionPermits;
+  }
+
+  /**
+   * Continues an archive which was cut back to the end of the entries written before, see {@link #getWrittenEntries()}.
+   * The entries are not written again but they are included in the central directory.
+   * Call this before adding entries, the stream given to the constructor must append to the archive.
+   *
+   * @param entries The entries in the archive
+   * @param offset The size of the archive: the end of the last entry
+   */
+  public void resume(List<WrittenEntry> entries, long offset) {
+    writtenEntries.addAll(entries);
+    out.count = offset;
+  }
+
+  /**
+   * @return The entries written to the archive so far, in the order they were added
+   */
+  public List<WrittenEntry> getWrittenEntries() {
+    return Collections.unmodifiableList(writtenEntries);
+  }
+
+  /**
+   * @return The number of bytes written to the archive so far, between the calls to add entries this is the end of the last entry written
+   */
+  public long getOffset() {
+    return out.getCount();
+  }
+
+  /**
+   * Adds an entry to the archive, it will be compressed in the background.
+   *
+   * @param name The name of the entry in the archive
+   * @param lastModified The modification time of the entry in ms
+   * @param supplier Opens the data of the entry
+   */
+  public void addEntry(String name, long lastModified, InputStreamSupplier supplier) throws IOException {
+    addEntry(name, lastModified, false, supplier);
+  }
+
+  /**
+   * Adds an entry to the archive, it will be compressed or copied in the background.
+   *
+   * @param name The name of the entry in the archive
+   * @param lastModified The modification time of the entry in ms
+   * @param stored true to store the data as it is, for data which is compressed already
+   * @param supplier Opens the data of the entry
+   */
+  public void addEntry(final String name, final long lastModified, final boolean stored, final InputStreamSupplier supplier) throws IOException {
+    if (closed) {
+      throw new IOException("Archive already closed");
+    }
+    entriesInFlight.add(executor.submit(new Callable<ScatteredEntry>() {
+      public ScatteredEntry call() throws Exception {
+        return scatter(name, lastModified, stored, supplier);
+      }
+    }));
+
+    while (entriesInFlight.size()>=maxEntriesInFlight) {
+      gatherFirstEntry();
+    }
+  }
+
+  /**
+   * Compresses an entry into its scatter buffer, this runs in one of the compression threads.
+   */
+  private ScatteredEntry scatter(String name, long lastModified, boolean stored, InputStreamSupplier supplier) throws Exception {
+    ScatteredEntry entry = new ScatteredEntry(name, lastModified);
+    if (stored) {
+      return scatterStored(entry, supplier);
+    }
+    Deflater deflater = codecPool.takeDeflater(levelController==null ? level : levelController.getLevel());
+    byte[] input = codecPool.takeArray();
+    byte[] output = codecPool.takeArray();
+    CRC32 crc = new CRC32();
+    InputStream inputStream = null;
+    try {
+      inputStream = supplier.get();
+      int size;
+      while ((size=inputStream.read(input))>=0) {
+        if (size==0) {
+          continue;
+        }
+        crc.update(input, 0, size);
+        entry.size+=size;
+        acquirePermit();
+        if (levelController!=null) {
+          // Only the deflating counts for the throughput, not the reading of the file
+          //
+          levelController.startCompressing();
+        }
+        try {
+          deflater.setInput(input, 0, size);
+          while (!deflater.needsInput()) {
+            int compressed = deflater.deflate(output);
+            entry.data.write(output, 0, compressed);
+          }
+        } finally {
+          if (levelController!=null) {
+            levelController.stopCompressing();
+            levelController.addProcessed(size);
+          }
+          releasePermit();
+        }
+      }
+      acquirePermit();
+      try {
+        deflater.finish();
+        while (!deflater.finished()) {
+          int compressed = deflater.deflate(output);
+          entry.data.write(output, 0, compressed);
+        }
+      } finally {
+        releasePermit();
+      }
+      entry.data.close();
+      entry.crc = crc.getValue();
+      entry.compressedSize = entry.data.getCount();
+      return entry;
+    } catch(Exception e) {
+      entry.data.delete();
+      throw e;
+    } finally {
+      IOUtils.closeQuietly(inputStream);
+      codecPool.giveDeflater(deflater);
+      codecPool.giveArray(input);
+      codecPool.giveArray(output);
+    }
+  }
+
+  /**
+   * Copies the data of an entry into its scatter buffer as it is.
+   */
+  private void acquirePermit() throws InterruptedException {
+    if (compressionPermits!=null) {
+      compressionPermits.acquire();
+    }
+  }
+
+  private void releasePermit() {
+    if (compressionPermits!=null) {
+      compressionPermits.release();
+    }
+  }
+
+  private ScatteredEntry scatterStored(ScatteredEntry entry, InputStreamSupplier supplier) throws Exception {
+    entry.method = ZipEntry.STORED;
+    byte[] input = codecPool.takeArray();
+    CRC32 crc = new CRC32();
+    InputStream inputStream = null;
+    try {
+      inputStream = supplier.get();
+      int size;
+      while ((size=inputStream.read(input))>=0) {
+        crc.update(input, 0, size);
+        entry.data.write(input, 0, size);
+        entry.size+=size;
+      }
+      entry.data.close();
+      entry.crc = crc.getValue();
+      entry.compressedSize = entry.size;
+      return entry;
+    } catch(Exception e) {
+      entry.data.delete();
+      throw e;
+    } finally {
+      IOUtils.closeQuietly(inputStream);
+      codecPool.giveArray(input);
+    }
+  }
+
+  private void gatherFirstEntry() throws IOException {
+    Future<ScatteredEntry> future = entriesInFlight.removeFirst();
+    ScatteredEntry entry;
+    try {
+      entry = future.get();
+    } catch(InterruptedException e) {
+      throw new IOException("Interrupted while compressing ZIP entries", e);
+    } catch(ExecutionException e) {
+      throw new IOException("Unable to compress ZIP entry", e.getCause());
+    }
+
+    try {
+      entry.offset = out.getCount();
+      writeLocalFileHeader(entry);
+      entry.data.writeTo(out);
+    } finally {
+      entry.data.delete();
+    }
+    writtenEntries.add(entry);
+  }
+
+  /**
+   * Gathers the remaining entries, writes the central directory and closes the underlying stream.
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      while (!entriesInFlight.isEmpty()) {
+        gatherFirstEntry();
+      }
+
+      long centralDirectoryOffset = out.getCount();
+      for (WrittenEntry entry : writtenEntries) {
+        writeCentralFileHeader(entry);
+      }
+      long centralDirectorySize = out.getCount()-centralDirectoryOffset;
+      writeEndOfCentralDirectory(centralDirectoryOffset, centralDirectorySize);
+      closed = true;
+    } finally {
+      abort();
+      out.close();
+    }
+  }
+
+  /**
+   * Stops compressing the entries which are still in flight and removes their scatter buffers.
+   */
+  public void abort() {
+    for (Future<ScatteredEntry> future : entriesInFlight) {
+      future.cancel(true);
+      try {
+        future.get().data.delete();
+      } catch(Exception e) {
+        // Cancelled or failed: nothing was left behind
+      }
+    }
+    entriesInFlight.clear();
+  }
+
+  private void writeLocalFileHeader(WrittenEntry entry) throws IOException {
+    byte[] name = entry.name.getBytes(UTF8);
+    boolean zip64 = entry.size>=ZIP64_MAGIC || entry.compressedSize>=ZIP64_MAGIC;
+
+    writeInt(LOCAL_FILE_HEADER_SIG);
+    writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    writeShort(FLAG_UTF8);
+    writeShort(entry.method);
+    writeInt(entry.getDosTime());
+    writeInt((int)entry.crc);
+    writeInt(zip64 ? (int)ZIP64_MAGIC : (int)entry.compressedSize);
+    writeInt(zip64 ? (int)ZIP64_MAGIC : (int)entry.size);
+    writeShort(name.length);
+    writeShort(zip64 ? 20 : 0);
+    out.write(name);
+    if (zip64) {
+      writeShort(ZIP64_EXTRA_ID);
+      writeShort(16);
+      writeLong(entry.size);
+      writeLong(entry.compressedSize);
+    }
+  }
+
+  private void writeCentralFileHeader(WrittenEntry entry) throws IOException {
+    byte[] name = entry.name.getBytes(UTF8);
+    boolean zip64Size = entry.size>=ZIP64_MAGIC;
+    boolean zip64CompressedSize = entry.compressedSize>=ZIP64_MAGIC;
+    boolean zip64Offset = entry.offset>=ZIP64_MAGIC;
+    boolean zip64 = zip64Size || zip64CompressedSize || zip64Offset;
+    int extraLength = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+
+    writeInt(CENTRAL_FILE_HEADER_SIG);
+    writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+    writeShort(FLAG_UTF8);
+    writeShort(entry.method);
+    writeInt(entry.getDosTime());
+    writeInt((int)entry.crc);
+    writeInt(zip64CompressedSize ? (int)ZIP64_MAGIC : (int)entry.compressedSize);
+    writeInt(zip64Size ? (int)ZIP64_MAGIC : (int)entry.size);
+    writeShort(name.length);
+    writeShort(zip64 ? extraLength+4 : 0);
+    writeShort(0); // comment length
+    writeShort(0); // disk number start
+    writeShort(0); // internal attributes
+    writeInt(0); // external attributes
+    writeInt(zip64Offset ? (int)ZIP64_MAGIC : (int)entry.offset);
+    out.write(name);
+    if (zip64) {
+      writeShort(ZIP64_EXTRA_ID);
+      writeShort(extraLength);
+      if (zip64Size) writeLong(entry.size);
+      if (zip64CompressedSize) writeLong(entry.compressedSize);
+      if (zip64Offset) writeLong(entry.offset);
+    }
+  }
+
+  private void writeEndOfCentralDirectory(long centralDirectoryOffset, long centralDirectorySize) throws IOException {
+    long nrEntries = writtenEntries.size();
+    boolean zip64 = nrEntries>=ZIP64_MAGIC_SHORT || centralDirectoryOffset>=ZIP64_MAGIC || centralDirectorySize>=ZIP64_MAGIC;
+
+    if (zip64) {
+      long zip64EndOffset = out.getCount();
+
+      writeInt(ZIP64_END_OF_CENTRAL_DIR_SIG);
+      writeLong(44); // size of the remaining record
+      writeShort(VERSION_ZIP64);
+      writeShort(VERSION_ZIP64);
+      writeInt(0); // number of this disk
+      writeInt(0); // disk with the start of the central directory
+      writeLong(nrEntries);
+      writeLong(nrEntries);
+      writeLong(centralDirectorySize);
+      writeLong(centralDirectoryOffset);
+
+      writeInt(ZIP64_END_OF_CENTRAL_DIR_LOCATOR_SIG);
+      writeInt(0); // disk with the zip64 end of central directory
+      writeLong(zip64EndOffset);
+      writeInt(1); // total number of disks
+    }
+
+    writeInt(END_OF_CENTRAL_DIR_SIG);
+    writeShort(0); // number of this disk
+    writeShort(0); // disk with the start of the central directory
+    writeShort(zip64 ? ZIP64_MAGIC_SHORT : (int)nrEntries);
+    writeShort(zip64 ? ZIP64_MAGIC_SHORT : (int)nrEntries);
+    writeInt(zip64 ? (int)ZIP64_MAGIC : (int)centralDirectorySize);
+    writeInt(zip64 ? (int)ZIP64_MAGIC : (int)centralDirectoryOffset);
+    writeShort(0); // comment length
+  }
+
+  private void writeShort(int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >> 8) & 0xff);
+  }
+
+  private void writeInt(int value) throws IOException {
+    writeShort(value & 0xffff);
+    writeShort((value >> 16) & 0xffff);
+  }
+
+  private void writeLong(long value) throws IOException {
+    writeInt((int)(value & 0xffffffffL));
+    writeInt((int)(value >>> 32));
+  }
+
+  /**
+   * The central directory data of an entry written to the archive.
+   */
+  public static class WrittenEntry {
+    String name;
+    long lastModified;
+    long crc;
+    long size;
+    long compressedSize;
+    long offset;
+    int method = ZipEntry.DEFLATED;
+
+    private WrittenEntry(String name, long lastModified) {
+      this.name = name;
+      this.lastModified = lastModified;
+    }
+
+    /**
+     * Describes an entry written to the archive before, see {@link ParallelZipCreator#resume(List, long)}.
+     */
+    public WrittenEntry(String name, long lastModified, int method, long crc, long size, long compressedSize, long offset) {
+      this(name, lastModified);
+      this.method = method;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.offset = offset;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public int getMethod() {
+      return method;
+    }
+
+    public long getCrc() {
+      return crc;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getCompressedSize() {
+      return compressedSize;
+    }
+
+    /**
+     * @return The offset of the local file header in the archive
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    /**
+     * @return The modification time in MS-DOS format: the date in the upper 16 bits, the time in the lower ones.
+     */
+    private int getDosTime() {
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(lastModified);
+      int year = calendar.get(Calendar.YEAR);
+      if (year<1980) {
+        return (1 << 21) | (1 << 16);
+      }
+      return ((year-1980) << 25)
+          | ((calendar.get(Calendar.MONTH)+1) << 21)
+          | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+          | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+          | (calendar.get(Calendar.MINUTE) << 5)
+          | (calendar.get(Calendar.SECOND) >> 1);
+    }
+  }
+
+  /**
+   * A compressed entry waiting in its scatter buffer to be written to the archive.
+   */
+  private class ScatteredEntry extends WrittenEntry {
+    private SpillOutputStream data;
+
+    private ScatteredEntry(String name, long lastModified) {
+      super(name, lastModified);
+      this.data = new SpillOutputStream(spillThreshold);
+    }
+  }
+
+  /**
+   * Keeps data in memory up to a threshold, spills everything to a temporary file beyond that.
+   */
+  private static class SpillOutputStream extends OutputStream {
+    private int threshold;
+    private ByteArrayOutputStream memory;
+    private File spillFile;
+    private OutputStream spill;
+    private long count;
+
+    private SpillOutputStream(int threshold) {
+      this.threshold = threshold;
+      this.memory = new ByteArrayOutputStream();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (spill==null && count+len>threshold) {
+        spillFile = File.createTempFile("archiver-zip-", ".scatter");
+        spill = new FileOutputStream(spillFile);
+        memory.writeTo(spill);
+        memory = null;
+      }
+      if (spill!=null) {
+        spill.write(b, off, len);
+      } else {
+        memory.write(b, off, len);
+      }
+      count+=len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (spill!=null) {
+        spill.close();
+      }
+    }
+
+    private long getCount() {
+      return count;
+    }
+
+    private void writeTo(OutputStream outputStream) throws IOException {
+      if (spillFile==null) {
+        memory.writeTo(outputStream);
+      } else {
+        InputStream inputStream = new FileInputStream(spillFile);
+        try {
+          IOUtils.copyLarge(inputStream, outputStream);
+        } finally {
+          inputStream.close();
+        }
+      }
+    }
+
+    private void delete() {
+      memory = null;
+      if (spillFile!=null) {
+        IOUtils.closeQuietly(spill);
+        spillFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Keeps track of the position in the archive.
+   */
+  private static class CountingOutputStream extends OutputStream {
+    private OutputStream out;
+    private long count;
+
+    private CountingOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count+=len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+
+    private long getCount() {
+      return count;
+    }
+  }
+}
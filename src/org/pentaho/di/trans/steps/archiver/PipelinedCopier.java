@@ -0,0 +1,410 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Copies files into archives in three stages so the disks and the CPU are busy at the same time:
+ * a reader thread reads ahead into buffers, the calling thread compresses (writes to the compressing stream)
+ * and a writer thread writes the compressed data behind it. The stages are connected by bounded queues.
+ *
+ * Every pipeline holds a fixed number of buffers for both queues, they are reserved all at once when the pipeline is opened.
+ * The total memory of all open pipelines is capped: opening a pipeline waits until enough memory is released.
+ */
+public class PipelinedCopier {
+
+  public static final int DEFAULT_BUFFER_SIZE = 256*1024;
+  public static final int DEFAULT_QUEUE_DEPTH = 4;
+  public static final long DEFAULT_MEMORY_LIMIT = 64L*1024*1024;
+
+  private ExecutorService ioThreads;
+  private int bufferSize;
+  private int queueDepth;
+  private int buffersPerPipeline;
+  private Semaphore memory;
+  private ConcurrentLinkedQueue<byte[]> spareBuffers;
+
+  /**
+   * @param ioThreads The threads to read and write with, two per open pipeline
+   * @param bufferSize The size of the buffers handed from one stage to the next
+   * @param queueDepth The number of buffers which can wait between two stages
+   * @param memoryLimit The maximum size of all buffers together, enough for at least one pipeline is used
+   */
+  public PipelinedCopier(ExecutorService ioThreads, int bufferSize, int queueDepth, long memoryLimit) {
+    this.ioThreads = ioThreads;
+    this.bufferSize = Math.max(1024, bufferSize);
+    this.queueDepth = Math.max(1, queueDepth);
+
+    // On top of the queue, each side of a stage holds a buffer
+    //
+    buffersPerPipeline = 2*(this.queueDepth+2);
+    long nrBuffers = Math.max(buffersPerPipeline, memoryLimit/this.bufferSize);
+    memory = new Semaphore((int)Math.min(Integer.MAX_VALUE, nrBuffers), true);
+    spareBuffers = new ConcurrentLinkedQueue<byte[]>();
+  }
+
+  /**
+   * Opens a pipeline writing to the given stream, waits for its buffers if the memory limit is reached.
+   * Always release the pipeline when done with it.
+   */
+  public Pipeline open(OutputStream out) throws IOException {
+    try {
+      memory.acquire(buffersPerPipeline);
+    } catch(InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for copy buffers");
+    }
+    return new Pipeline(out);
+  }
+
+  private byte[] takeBuffer() {
+    byte[] buffer = spareBuffers.poll();
+    return buffer!=null ? buffer : new byte[bufferSize];
+  }
+
+  /**
+   * A buffer handed from one stage to the next, a negative length marks the end of the data.
+   */
+  private static class Chunk {
+    private byte[] data;
+    private int length;
+
+    private Chunk(byte[] data) {
+      this.data = data;
+    }
+  }
+
+  /**
+   * The buffers and threads of a single archive or file being written.
+   */
+  public class Pipeline {
+    private BlockingQueue<Chunk> freeReadChunks;
+    private BlockingQueue<Chunk> readChunks;
+    private volatile boolean readAborted;
+    private volatile Exception readException;
+
+    private AsyncOutputStream outputStream;
+    private boolean released;
+
+    private Pipeline(OutputStream out) {
+      int nrChunks = queueDepth+2;
+      freeReadChunks = new ArrayBlockingQueue<Chunk>(nrChunks);
+      readChunks = new ArrayBlockingQueue<Chunk>(nrChunks);
+      for (int i=0;i<nrChunks;i++) {
+        freeReadChunks.add(new Chunk(takeBuffer()));
+      }
+      outputStream = new AsyncOutputStream(out, nrChunks);
+    }
+
+    /**
+     * @return The stream to write the (compressed) data to, it is written to the target stream in the writer thread.
+     * Closing it waits until all data is written and closes the target stream.
+     */
+    public OutputStream getOutputStream() {
+      return outputStream;
+    }
+
+    /**
+     * Copies the input to the given stream, the input is read ahead in the reader thread. The input is not closed.
+     *
+     * @param in The data to copy
+     * @param target The stream to write to in the calling thread, usually a compressing stream on top of {@link #getOutputStream()}
+     * @return The number of bytes copied
+     */
+    public long copy(final InputStream in, OutputStream target) throws IOException {
+      readAborted = false;
+      readException = null;
+      ioThreads.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          readAhead(in);
+          return null;
+        }
+      });
+
+      long size = 0;
+      boolean done = false;
+      try {
+        while (true) {
+          Chunk chunk = take(readChunks);
+          if (chunk.length<0) {
+            freeReadChunks.add(chunk);
+            done = true;
+            if (readException!=null) {
+              throw readException instanceof IOException ? (IOException)readException : new IOException(readException);
+            }
+            return size;
+          }
+          try {
+            target.write(chunk.data, 0, chunk.length);
+            size+=chunk.length;
+          } finally {
+            freeReadChunks.add(chunk);
+          }
+        }
+      } finally {
+        if (!done) {
+          // Stop the reader and take back the buffers it still hands over
+          //
+          readAborted = true;
+          Chunk chunk;
+          do {
+            chunk = takeUninterruptibly(readChunks);
+            freeReadChunks.add(chunk);
+          } while (chunk.length>=0);
+        }
+      }
+    }
+
+    /**
+     * Runs in the reader thread: fills the free buffers and hands them over until the end of the input.
+     * The last buffer handed over always has a negative length, also when reading fails.
+     */
+    private void readAhead(InputStream in) {
+      Chunk chunk = null;
+      try {
+        while (!readAborted) {
+          chunk = take(freeReadChunks);
+          chunk.length = 0;
+          int size = 0;
+          while (chunk.length<chunk.data.length && (size=in.read(chunk.data, chunk.length, chunk.data.length-chunk.length))>=0) {
+            chunk.length+=size;
+          }
+          if (chunk.length==0 && size<0) {
+            break;
+          }
+          readChunks.add(chunk);
+          chunk = null;
+          if (size<0) {
+            break;
+          }
+        }
+      } catch(Exception e) {
+        readException = e;
+      }
+      if (chunk==null) {
+        chunk = takeUninterruptibly(freeReadChunks);
+      }
+      chunk.length = -1;
+      readChunks.add(chunk);
+    }
+
+    /**
+     * Stops the writer thread if the output stream wasn't closed and releases the buffers of the pipeline.
+     */
+    public void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      outputStream.abort();
+      for (Chunk chunk : freeReadChunks) {
+        spareBuffers.add(chunk.data);
+      }
+      freeReadChunks.clear();
+      memory.release(buffersPerPipeline);
+    }
+  }
+
+  /**
+   * Collects the data in buffers which are written to the target stream in the writer thread.
+   */
+  private class AsyncOutputStream extends OutputStream {
+    private OutputStream out;
+    private BlockingQueue<Chunk> freeChunks;
+    private BlockingQueue<Chunk> writeChunks;
+    private Chunk current;
+    private Future<Void> writer;
+    private volatile Exception writeException;
+    private boolean closed;
+
+    private AsyncOutputStream(OutputStream out, int nrChunks) {
+      this.out = out;
+      freeChunks = new ArrayBlockingQueue<Chunk>(nrChunks);
+      writeChunks = new ArrayBlockingQueue<Chunk>(nrChunks);
+      for (int i=0;i<nrChunks;i++) {
+        freeChunks.add(new Chunk(takeBuffer()));
+      }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream already closed");
+      }
+      while (len>0) {
+        if (current==null) {
+          checkWriteException();
+          current = take(freeChunks);
+          current.length = 0;
+        }
+        int size = Math.min(len, current.data.length-current.length);
+        System.arraycopy(b, off, current.data, current.length, size);
+        current.length+=size;
+        off+=size;
+        len-=size;
+        if (current.length==current.data.length) {
+          handOver();
+        }
+      }
+    }
+
+    /**
+     * Hands the data written so far to the writer thread, it doesn't wait for it to be written.
+     */
+    @Override
+    public void flush() throws IOException {
+      if (current!=null && current.length>0) {
+        handOver();
+      }
+      checkWriteException();
+    }
+
+    private void handOver() {
+      if (writer==null) {
+        writer = ioThreads.submit(new Callable<Void>() {
+          public Void call() throws Exception {
+            writeBehind();
+            return null;
+          }
+        });
+      }
+      writeChunks.add(current);
+      current = null;
+    }
+
+    /**
+     * Runs in the writer thread until a buffer with a negative length is handed over.
+     * After a failure the buffers are still taken back so the compressing thread never blocks.
+     */
+    private void writeBehind() throws InterruptedException {
+      while (true) {
+        Chunk chunk = writeChunks.take();
+        if (chunk.length<0) {
+          freeChunks.add(chunk);
+          return;
+        }
+        if (writeException==null) {
+          try {
+            out.write(chunk.data, 0, chunk.length);
+          } catch(Exception e) {
+            writeException = e;
+          }
+        }
+        freeChunks.add(chunk);
+      }
+    }
+
+    private void checkWriteException() throws IOException {
+      if (writeException!=null) {
+        throw writeException instanceof IOException ? (IOException)writeException : new IOException(writeException);
+      }
+    }
+
+    /**
+     * Waits until everything is written and closes the target stream.
+     */
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      try {
+        flush();
+        stopWriter();
+        checkWriteException();
+      } finally {
+        closed = true;
+        out.close();
+      }
+    }
+
+    /**
+     * Hands over the end of the data, anything in the current buffer is dropped, and waits for the writer thread.
+     */
+    private void stopWriter() throws IOException {
+      if (writer==null) {
+        return;
+      }
+      if (current==null) {
+        current = take(freeChunks);
+      }
+      current.length = -1;
+      writeChunks.add(current);
+      current = null;
+      try {
+        writer.get();
+      } catch(InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while waiting for the writer");
+      } catch(ExecutionException e) {
+        throw new IOException(e.getCause());
+      }
+      writer = null;
+    }
+
+    /**
+     * Stops the writer thread without writing what was not handed over yet and returns the buffers.
+     */
+    private void abort() {
+      try {
+        stopWriter();
+      } catch(IOException e) {
+        // The stream is abandoned, the failure was reported to whoever wrote to it
+      }
+      if (current!=null) {
+        freeChunks.add(current);
+        current = null;
+      }
+      if (!closed) {
+        closed = true;
+        try {
+          out.close();
+        } catch(IOException e) {
+          // Idem
+        }
+      }
+      for (Chunk chunk : freeChunks) {
+        spareBuffers.add(chunk.data);
+      }
+      freeChunks.clear();
+    }
+  }
+
+  private static Chunk take(BlockingQueue<Chunk> queue) throws IOException {
+    try {
+      return queue.take();
+    } catch(InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while copying");
+    }
+  }
+
+  private static Chunk takeUninterruptibly(BlockingQueue<Chunk> queue) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return queue.take();
+        } catch(InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
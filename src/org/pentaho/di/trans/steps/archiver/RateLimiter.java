@@ -0,0 +1,65 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the number of bytes per second read or written, shared by all threads doing the I/O.
+ *
+ * The bucket fills at the configured rate and holds at most one second of bytes, so after a quiet period a burst
+ * of at most one second is let through. Taking more bytes than available puts the bucket in debt: the caller sleeps
+ * until the debt is paid off. A limiter can have a parent, for example the step wide limit above the limit of a generation,
+ * the bytes are then taken from both.
+ */
+public class RateLimiter {
+
+  private double bytesPerSecond;
+  private RateLimiter parent;
+  private double available;
+  private long lastRefillTime;
+
+  /**
+   * @param bytesPerSecond The rate at which the bucket fills, must be positive
+   * @param parent The limiter the bytes are taken from as well or null
+   */
+  public RateLimiter(long bytesPerSecond, RateLimiter parent) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.parent = parent;
+    this.available = bytesPerSecond;
+    this.lastRefillTime = System.nanoTime();
+  }
+
+  /**
+   * Takes the given number of bytes from the bucket, waits until the rate allows them.
+   */
+  public void acquire(long bytes) throws InterruptedIOException {
+    if (bytes<=0) {
+      return;
+    }
+    long waitTime;
+    synchronized(this) {
+      long now = System.nanoTime();
+      available = Math.min(bytesPerSecond, available+(now-lastRefillTime)*bytesPerSecond/1e9);
+      lastRefillTime = now;
+      available-=bytes;
+      waitTime = available<0 ? (long)(-available*1e9/bytesPerSecond) : 0L;
+    }
+    if (waitTime>0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(waitTime);
+      } catch(InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while waiting for the I/O rate limit");
+      }
+    }
+    if (parent!=null) {
+      parent.acquire(bytes);
+    }
+  }
+
+  /**
+   * @return The rate in bytes per second
+   */
+  public long getBytesPerSecond() {
+    return (long)bytesPerSecond;
+  }
+}
@@ -0,0 +1,98 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.apache.commons.vfs.FileContent;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.provider.UriParser;
+import org.pentaho.di.core.vfs.KettleVFS;
+
+/**
+ * A file found in the source folder of a generation, together with the attributes captured when it was found.
+ * Deciding what to do with the file uses these attributes so the file doesn't need to be looked up again.
+ */
+public class SourceFile {
+
+  private FileObject file;
+  private long size;
+  private long lastModifiedTime;
+  private volatile boolean compressionSkipped;
+  private volatile byte[] digest;
+
+  public SourceFile(FileObject file, long size, long lastModifiedTime) {
+    this.file = file;
+    this.size = size;
+    this.lastModifiedTime = lastModifiedTime;
+  }
+
+  /**
+   * Captures the attributes through VFS, for file systems which are not walked with NIO.
+   */
+  public static SourceFile fromFileObject(FileObject file) throws FileSystemException {
+    FileContent content = file.getContent();
+    return new SourceFile(file, content.getSize(), content.getLastModifiedTime());
+  }
+
+  /**
+   * VFS keeps the names of files URI encoded, a % in a file name shows up as %25.
+   * 
+   * @return The path of a file of the local file system as NIO knows it
+   */
+  public static Path getLocalPath(FileObject file) throws FileSystemException {
+    return Paths.get(UriParser.decode(KettleVFS.getFilename(file)));
+  }
+
+  /**
+   * @return The base name of the file as it is written to an archive, decoded the same way as {@link #getLocalPath(FileObject)}
+   */
+  public static String getEntryName(FileObject file) throws FileSystemException {
+    return UriParser.decode(file.getName().getBaseName());
+  }
+
+  public FileObject getFile() {
+    return file;
+  }
+
+  /**
+   * @return The size in bytes when the file was found
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @return The last modification time in ms when the file was found
+   */
+  public long getLastModifiedTime() {
+    return lastModifiedTime;
+  }
+
+  /**
+   * @return true if the file was found to be compressed already and was stored or moved as it is
+   */
+  public boolean isCompressionSkipped() {
+    return compressionSkipped;
+  }
+
+  public void setCompressionSkipped(boolean compressionSkipped) {
+    this.compressionSkipped = compressionSkipped;
+  }
+
+  /**
+   * @return The digest of the data written to the archive, null if it was not calculated
+   */
+  public byte[] getDigest() {
+    return digest;
+  }
+
+  public void setDigest(byte[] digest) {
+    this.digest = digest;
+  }
+
+  @Override
+  public String toString() {
+    return file.toString();
+  }
+}
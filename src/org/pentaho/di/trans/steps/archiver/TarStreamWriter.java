@@ -0,0 +1,172 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipEncoding;
+import org.apache.commons.compress.archivers.zip.ZipEncodingHelper;
+
+/**
+ * Writes a TAR archive to a stream with the headers TarArchiveOutputStream writes with GNU long file names and star big numbers.
+ * Unlike TarArchiveOutputStream nothing is held back: once an entry is closed all of it is written to the underlying stream,
+ * so the end of an entry is a position an archive can be continued from.
+ */
+public class TarStreamWriter extends OutputStream {
+
+  /** The size of a TAR header and the unit the entry data is padded to */
+  private static final int RECORD_SIZE = 512;
+
+  /** The archive is padded to a multiple of 20 records, the default blocking factor of tar */
+  private static final int BLOCK_SIZE = 20*RECORD_SIZE;
+
+  private static final byte[] ZEROS = new byte[BLOCK_SIZE];
+
+  private OutputStream out;
+  private long position;
+  private ZipEncoding encoding;
+  private long entrySize;
+  private long entryRemaining;
+  private boolean inEntry;
+  private boolean finished;
+
+  /**
+   * @param out The stream to write the archive to
+   * @param position The size of the TAR data in front of what is written, for an archive which is continued
+   */
+  public TarStreamWriter(OutputStream out, long position) {
+    this.out = out;
+    this.position = position;
+    encoding = ZipEncodingHelper.getZipEncoding(null);
+  }
+
+  /**
+   * Writes the header of an entry, the data is written next.
+   *
+   * @param name The name of the entry in the archive
+   * @param size The exact number of bytes which will be written for the entry
+   * @param lastModified The modification time in ms
+   */
+  public void putEntry(String name, long size, long lastModified) throws IOException {
+    if (inEntry) {
+      closeEntry();
+    }
+    // Long names get a GNU ././@LongLink entry in front, like TarArchiveOutputStream.LONGFILE_GNU
+    //
+    byte[] nameBytes = name.getBytes(Charset.defaultCharset());
+    if (nameBytes.length>=TarConstants.NAMELEN) {
+      TarArchiveEntry longLinkEntry = new TarArchiveEntry(TarConstants.GNU_LONGLINK, TarConstants.LF_GNUTYPE_LONGNAME);
+      longLinkEntry.setSize(nameBytes.length+1);
+      writeHeader(longLinkEntry);
+      writeRaw(nameBytes, 0, nameBytes.length);
+      writeRaw(ZEROS, 0, 1);
+      pad(nameBytes.length+1);
+    }
+
+    TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setSize(size);
+    entry.setModTime(lastModified);
+    writeHeader(entry);
+
+    entrySize = size;
+    entryRemaining = size;
+    inEntry = true;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte)b }, 0, 1);
+  }
+
+  /**
+   * Writes data of the current entry.
+   */
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (!inEntry) {
+      throw new IOException("No TAR entry to write to");
+    }
+    if (len>entryRemaining) {
+      throw new IOException("Request to write "+len+" bytes exceeds the size in the header of "+entrySize+" bytes");
+    }
+    writeRaw(b, off, len);
+    entryRemaining-=len;
+  }
+
+  /**
+   * Fills up the last record of the entry, after this the entry is completely written to the underlying stream.
+   */
+  public void closeEntry() throws IOException {
+    if (!inEntry) {
+      return;
+    }
+    inEntry = false;
+    if (entryRemaining>0) {
+      throw new IOException("The entry is "+entryRemaining+" bytes shorter than the size in its header");
+    }
+    pad(entrySize);
+  }
+
+  private void writeHeader(TarArchiveEntry entry) throws IOException {
+    byte[] header = new byte[RECORD_SIZE];
+    entry.writeEntryHeader(header, encoding, true);
+    writeRaw(header, 0, header.length);
+  }
+
+  private void writeRaw(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    position+=len;
+  }
+
+  /**
+   * Fills up the last record of an entry with zeros.
+   */
+  private void pad(long size) throws IOException {
+    int remainder = (int)(size % RECORD_SIZE);
+    if (remainder>0) {
+      writeRaw(ZEROS, 0, RECORD_SIZE-remainder);
+    }
+  }
+
+  /**
+   * Writes the two end of archive records and fills up the last block, the underlying stream is not closed.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    closeEntry();
+    writeRaw(ZEROS, 0, 2*RECORD_SIZE);
+    int remainder = (int)(position % BLOCK_SIZE);
+    if (remainder>0) {
+      writeRaw(ZEROS, 0, BLOCK_SIZE-remainder);
+    }
+    finished = true;
+  }
+
+  /**
+   * @return The size of the TAR data written so far, including the data in front of it
+   */
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Finishes the archive and closes the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Limits the number of bytes per second read from a stream: after every read the bytes read are taken from the rate limiter.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+  private RateLimiter rateLimiter;
+
+  public ThrottledInputStream(InputStream in, RateLimiter rateLimiter) {
+    super(in);
+    this.rateLimiter = rateLimiter;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = in.read();
+    if (b>=0) {
+      rateLimiter.acquire(1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int size = in.read(b, off, len);
+    if (size>0) {
+      rateLimiter.acquire(size);
+    }
+    return size;
+  }
+}
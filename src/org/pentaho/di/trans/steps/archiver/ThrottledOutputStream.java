@@ -0,0 +1,30 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Limits the number of bytes per second written to a stream: before every write the bytes are taken from the rate limiter.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+
+  private RateLimiter rateLimiter;
+
+  public ThrottledOutputStream(OutputStream out, RateLimiter rateLimiter) {
+    super(out);
+    this.rateLimiter = rateLimiter;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    rateLimiter.acquire(1);
+    out.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    rateLimiter.acquire(len);
+    out.write(b, off, len);
+  }
+}
@@ -0,0 +1,116 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hashed timer wheel: items are kept in the slot of the tick in which they are due, so scheduling, rescheduling
+ * and taking the due items only costs the items of the slots passed, not all scheduled items.
+ * Items due further away than one turn of the wheel wait in their slot until the wheel has turned far enough.
+ *
+ * An item is scheduled once: scheduling it again replaces the earlier time. Not thread safe.
+ */
+public class TimerWheel<T> {
+
+  private long tickTime;
+  private List<LinkedList<Entry<T>>> slots;
+  private Map<T, Entry<T>> entries;
+  private long currentTick;
+
+  /**
+   * @param tickTime The time in ms covered by a slot
+   * @param nrSlots The number of slots of the wheel
+   * @param now The current time in ms
+   */
+  public TimerWheel(long tickTime, int nrSlots, long now) {
+    this.tickTime = tickTime;
+    slots = new ArrayList<LinkedList<Entry<T>>>(nrSlots);
+    for (int i=0;i<nrSlots;i++) {
+      slots.add(new LinkedList<Entry<T>>());
+    }
+    entries = new HashMap<T, Entry<T>>();
+    currentTick = now/tickTime;
+  }
+
+  /**
+   * Schedules the item at the given time, replacing an earlier schedule of the item.
+   * Items scheduled in the past are due at the next poll.
+   */
+  public void schedule(T item, long time) {
+    cancel(item);
+    Entry<T> entry = new Entry<T>(item, time);
+    entries.put(item, entry);
+    long tick = Math.max(currentTick, time/tickTime);
+    slots.get((int)(tick%slots.size())).add(entry);
+  }
+
+  /**
+   * Removes the item from the wheel if it was scheduled.
+   */
+  public void cancel(T item) {
+    Entry<T> entry = entries.remove(item);
+    if (entry!=null) {
+      // Removed from its slot when the wheel passes it
+      //
+      entry.cancelled = true;
+    }
+  }
+
+  /**
+   * Turns the wheel up to the given time.
+   *
+   * @return The items due at or before the given time, they are no longer scheduled
+   */
+  public List<T> poll(long now) {
+    List<T> dueItems = new ArrayList<T>();
+    long nowTick = now/tickTime;
+
+    // The slots passed since the previous poll and the current one, every slot is looked at once at most
+    //
+    long nrTicks = Math.min(nowTick-currentTick+1, slots.size());
+    for (long tick=nowTick-nrTicks+1;tick<=nowTick;tick++) {
+      Iterator<Entry<T>> iterator = slots.get((int)(tick%slots.size())).iterator();
+      while (iterator.hasNext()) {
+        Entry<T> entry = iterator.next();
+        if (entry.cancelled) {
+          iterator.remove();
+        } else if (entry.time<=now) {
+          iterator.remove();
+          entries.remove(entry.item);
+          dueItems.add(entry.item);
+        }
+      }
+    }
+    currentTick = Math.max(currentTick, nowTick);
+    return dueItems;
+  }
+
+  /**
+   * @return The number of items scheduled
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  public void clear() {
+    for (LinkedList<Entry<T>> slot : slots) {
+      slot.clear();
+    }
+    entries.clear();
+  }
+
+  private static class Entry<T> {
+    private T item;
+    private long time;
+    private boolean cancelled;
+
+    private Entry(T item, long time) {
+      this.item = item;
+      this.time = time;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.util.zip.Checksum;
+
+/**
+ * The 32 bit xxHash checksum, used as the content and header checksum of the LZ4 frame format.
+ */
+public class XXHash32 implements Checksum {
+
+  private static final int PRIME1 = 0x9E3779B1;
+  private static final int PRIME2 = 0x85EBCA77;
+  private static final int PRIME3 = 0xC2B2AE3D;
+  private static final int PRIME4 = 0x27D4EB2F;
+  private static final int PRIME5 = 0x165667B1;
+
+  private int seed;
+  private int v1, v2, v3, v4;
+  private byte[] buffer = new byte[16];
+  private int bufferLength;
+  private long totalLength;
+
+  public XXHash32() {
+    this(0);
+  }
+
+  public XXHash32(int seed) {
+    this.seed = seed;
+    reset();
+  }
+
+  public void reset() {
+    v1 = seed + PRIME1 + PRIME2;
+    v2 = seed + PRIME2;
+    v3 = seed;
+    v4 = seed - PRIME1;
+    bufferLength = 0;
+    totalLength = 0L;
+  }
+
+  public void update(int b) {
+    update(new byte[] { (byte)b }, 0, 1);
+  }
+
+  public void update(byte[] b, int off, int len) {
+    totalLength+=len;
+
+    if (bufferLength>0) {
+      int size = Math.min(len, 16-bufferLength);
+      System.arraycopy(b, off, buffer, bufferLength, size);
+      bufferLength+=size;
+      off+=size;
+      len-=size;
+      if (bufferLength<16) {
+        return;
+      }
+      processStripe(buffer, 0);
+      bufferLength = 0;
+    }
+
+    while (len>=16) {
+      processStripe(b, off);
+      off+=16;
+      len-=16;
+    }
+
+    System.arraycopy(b, off, buffer, 0, len);
+    bufferLength = len;
+  }
+
+  private void processStripe(byte[] b, int off) {
+    v1 = round(v1, getInt(b, off));
+    v2 = round(v2, getInt(b, off+4));
+    v3 = round(v3, getInt(b, off+8));
+    v4 = round(v4, getInt(b, off+12));
+  }
+
+  public long getValue() {
+    int hash;
+    if (totalLength>=16) {
+      hash = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7) + Integer.rotateLeft(v3, 12) + Integer.rotateLeft(v4, 18);
+    } else {
+      hash = seed + PRIME5;
+    }
+    hash += (int)totalLength;
+
+    int i = 0;
+    while (i+4<=bufferLength) {
+      hash = Integer.rotateLeft(hash + getInt(buffer, i) * PRIME3, 17) * PRIME4;
+      i+=4;
+    }
+    while (i<bufferLength) {
+      hash = Integer.rotateLeft(hash + (buffer[i] & 0xff) * PRIME5, 11) * PRIME1;
+      i++;
+    }
+
+    hash ^= hash >>> 15;
+    hash *= PRIME2;
+    hash ^= hash >>> 13;
+    hash *= PRIME3;
+    hash ^= hash >>> 16;
+    return hash & 0xffffffffL;
+  }
+
+  /**
+   * @return The checksum of the given bytes
+   */
+  public static int hash(byte[] b, int off, int len) {
+    XXHash32 xxHash = new XXHash32();
+    xxHash.update(b, off, len);
+    return (int)xxHash.getValue();
+  }
+
+  private static int round(int acc, int input) {
+    return Integer.rotateLeft(acc + input * PRIME2, 13) * PRIME1;
+  }
+
+  private static int getInt(byte[] b, int off) {
+    return (b[off] & 0xff) | (b[off+1] & 0xff) << 8 | (b[off+2] & 0xff) << 16 | (b[off+3] & 0xff) << 24;
+  }
+}
@@ -0,0 +1,131 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.util.zip.Checksum;
+
+/**
+ * The 64 bit xxHash checksum, used by the verification digests and to name the scan indexes.
+ */
+public class XXHash64 implements Checksum {
+
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+  private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+  private long seed;
+  private long v1, v2, v3, v4;
+  private byte[] buffer = new byte[32];
+  private int bufferLength;
+  private long totalLength;
+
+  public XXHash64() {
+    this(0L);
+  }
+
+  public XXHash64(long seed) {
+    this.seed = seed;
+    reset();
+  }
+
+  public void reset() {
+    v1 = seed + PRIME1 + PRIME2;
+    v2 = seed + PRIME2;
+    v3 = seed;
+    v4 = seed - PRIME1;
+    bufferLength = 0;
+    totalLength = 0L;
+  }
+
+  public void update(int b) {
+    update(new byte[] { (byte)b }, 0, 1);
+  }
+
+  public void update(byte[] b, int off, int len) {
+    totalLength+=len;
+
+    if (bufferLength>0) {
+      int size = Math.min(len, 32-bufferLength);
+      System.arraycopy(b, off, buffer, bufferLength, size);
+      bufferLength+=size;
+      off+=size;
+      len-=size;
+      if (bufferLength<32) {
+        return;
+      }
+      processStripe(buffer, 0);
+      bufferLength = 0;
+    }
+
+    while (len>=32) {
+      processStripe(b, off);
+      off+=32;
+      len-=32;
+    }
+
+    System.arraycopy(b, off, buffer, 0, len);
+    bufferLength = len;
+  }
+
+  private void processStripe(byte[] b, int off) {
+    v1 = round(v1, getLong(b, off));
+    v2 = round(v2, getLong(b, off+8));
+    v3 = round(v3, getLong(b, off+16));
+    v4 = round(v4, getLong(b, off+24));
+  }
+
+  public long getValue() {
+    long hash;
+    if (totalLength>=32) {
+      hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      hash = mergeRound(hash, v1);
+      hash = mergeRound(hash, v2);
+      hash = mergeRound(hash, v3);
+      hash = mergeRound(hash, v4);
+    } else {
+      hash = seed + PRIME5;
+    }
+    hash += totalLength;
+
+    int i = 0;
+    while (i+8<=bufferLength) {
+      hash ^= round(0L, getLong(buffer, i));
+      hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+      i+=8;
+    }
+    if (i+4<=bufferLength) {
+      hash ^= (getInt(buffer, i) & 0xffffffffL) * PRIME1;
+      hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+      i+=4;
+    }
+    while (i<bufferLength) {
+      hash ^= (buffer[i] & 0xff) * PRIME5;
+      hash = Long.rotateLeft(hash, 11) * PRIME1;
+      i++;
+    }
+
+    hash ^= hash >>> 33;
+    hash *= PRIME2;
+    hash ^= hash >>> 29;
+    hash *= PRIME3;
+    hash ^= hash >>> 32;
+    return hash;
+  }
+
+  private static long round(long acc, long input) {
+    return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+  }
+
+  private static long mergeRound(long acc, long value) {
+    acc ^= round(0L, value);
+    return acc * PRIME1 + PRIME4;
+  }
+
+  private static int getInt(byte[] b, int off) {
+    return (b[off] & 0xff) | (b[off+1] & 0xff) << 8 | (b[off+2] & 0xff) << 16 | (b[off+3] & 0xff) << 24;
+  }
+
+  private static long getLong(byte[] b, int off) {
+    return (getInt(b, off) & 0xffffffffL) | ((long)getInt(b, off+4)) << 32;
+  }
+}
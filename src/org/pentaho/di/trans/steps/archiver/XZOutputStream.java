@@ -0,0 +1,158 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+
+import org.tukaani.xz.BasicArrayCache;
+import org.tukaani.xz.FinishableOutputStream;
+import org.tukaani.xz.FinishableWrapperOutputStream;
+import org.tukaani.xz.LZMA2Options;
+
+/**
+ * An output stream writing the XZ format with LZMA2 compression, readable by xz and 7-zip.
+ *
+ * The data is cut in blocks of 4MB which are compressed independently in parallel, the way xz -T does it.
+ * Every block is an XZ block of its own with a CRC32 check, the index at the end lists them all.
+ * The blocks are encoded by the LZMA2 encoder of XZ for Java with the presets of xz: the level runs from 1 (fastest) to 9.
+ * The dictionary never needs to be larger than a block, so it is capped at 4MB.
+ */
+public class XZOutputStream extends ParallelBlockOutputStream {
+
+  public static final int DEFAULT_LEVEL = 6;
+  public static final int MAX_LEVEL = 9;
+
+  private static final int BLOCK_SIZE = 4*1024*1024;
+
+  private static final byte[] HEADER_MAGIC = new byte[] { (byte)0xFD, '7', 'z', 'X', 'Z', 0x00 };
+  private static final byte[] FOOTER_MAGIC = new byte[] { 'Y', 'Z' };
+
+  /** Check type CRC32 */
+  private static final byte[] STREAM_FLAGS = new byte[] { 0x00, 0x01 };
+
+  private static final int FILTER_LZMA2 = 0x21;
+  private static final int CHECK_SIZE = 4;
+
+  private int level;
+
+  /** The unpadded and uncompressed size of every block written, for the index */
+  private List<long[]> records;
+
+  /**
+   * @param out The stream to write the XZ data to
+   * @param executor The threads to compress the blocks with
+   * @param nrThreads The number of threads, determines how many blocks are kept in memory
+   * @param level The compression level from 1 to 9, the xz preset
+   */
+  public XZOutputStream(OutputStream out, ExecutorService executor, int nrThreads, int level) throws IOException {
+    super(out, executor, nrThreads, BLOCK_SIZE);
+    this.level = Math.max(1, Math.min(MAX_LEVEL, level));
+    records = new ArrayList<long[]>();
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream(12);
+    header.write(HEADER_MAGIC);
+    header.write(STREAM_FLAGS);
+    writeCRC32(header, STREAM_FLAGS, 0, STREAM_FLAGS.length);
+    out.write(header.toByteArray());
+  }
+
+  /**
+   * @return The block header, the LZMA2 data and the check, without the block padding
+   */
+  @Override
+  protected byte[] compressBlock(byte[] data, int length, byte[] previous, int previousLength) throws Exception {
+    ByteArrayOutputStream block = new ByteArrayOutputStream(length/4+64);
+
+    // Block header: no sizes, a single LZMA2 filter with the dictionary size, padded to a multiple of 4
+    //
+    LZMA2Options options = new LZMA2Options(getLevel(level));
+    options.setDictSize(Math.min(options.getDictSize(), BLOCK_SIZE));
+    byte[] header = new byte[] { 2, 0x00, FILTER_LZMA2, 1, (byte)getDictionarySizeProperty(options.getDictSize()), 0, 0, 0 };
+    block.write(header);
+    writeCRC32(block, header, 0, header.length);
+
+    // The raw LZMA2 chunks and the end marker, the match finder buffers are reused by the next blocks
+    //
+    FinishableOutputStream lzma2 = options.getOutputStream(new FinishableWrapperOutputStream(block), BasicArrayCache.getInstance());
+    lzma2.write(data, 0, length);
+    lzma2.finish();
+
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+    writeInt(block, (int)crc.getValue());
+    return block.toByteArray();
+  }
+
+  /**
+   * @return The dictionary size as coded in the LZMA2 filter properties: the smallest 2^n or 3*2^(n-1) which holds it
+   */
+  static int getDictionarySizeProperty(int dictionarySize) {
+    int property = 0;
+    while (((2L | (property & 1)) << (property/2 + 11))<dictionarySize) {
+      property++;
+    }
+    return property;
+  }
+
+  @Override
+  protected void writeBlock(byte[] compressed, int length) throws IOException {
+    out.write(compressed, 0, compressed.length-CHECK_SIZE);
+    out.write(new byte[getPadding(compressed.length-CHECK_SIZE)]);
+    out.write(compressed, compressed.length-CHECK_SIZE, CHECK_SIZE);
+    records.add(new long[] { compressed.length, length });
+  }
+
+  @Override
+  protected void writeTrailer() throws IOException {
+    ByteArrayOutputStream index = new ByteArrayOutputStream();
+    index.write(0x00);
+    writeVarInt(index, records.size());
+    for (long[] record : records) {
+      writeVarInt(index, record[0]);
+      writeVarInt(index, record[1]);
+    }
+    index.write(new byte[getPadding(index.size())]);
+    byte[] indexBytes = index.toByteArray();
+    writeCRC32(index, indexBytes, 0, indexBytes.length);
+    out.write(index.toByteArray());
+
+    // Stream footer: CRC32, the size of the index and the stream flags
+    //
+    ByteArrayOutputStream footer = new ByteArrayOutputStream(12);
+    writeInt(footer, index.size()/4-1);
+    footer.write(STREAM_FLAGS);
+    byte[] footerFields = footer.toByteArray();
+    writeCRC32(out, footerFields, 0, footerFields.length);
+    out.write(footerFields);
+    out.write(FOOTER_MAGIC);
+  }
+
+  private static int getPadding(long size) {
+    return (int)((4-(size & 3)) & 3);
+  }
+
+  private static void writeVarInt(OutputStream os, long value) throws IOException {
+    while (value>=0x80) {
+      os.write((int)(value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    os.write((int)value);
+  }
+
+  private static void writeCRC32(OutputStream os, byte[] b, int off, int len) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(b, off, len);
+    writeInt(os, (int)crc.getValue());
+  }
+
+  private static void writeInt(OutputStream os, int value) throws IOException {
+    os.write(value);
+    os.write(value >> 8);
+    os.write(value >> 16);
+    os.write(value >> 24);
+  }
+}
@@ -1,6 +1,7 @@
 package org.pentaho.di.ui.trans.steps.archiver;
 
 import org.eclipse.swt.SWT;
+import org.eclipse.swt.custom.CCombo;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.events.ModifyListener;
 import org.eclipse.swt.events.SelectionAdapter;
@@ -26,9 +27,11 @@ import org.pentaho.di.trans.step.StepDialogInterface;
 import org.pentaho.di.trans.steps.archiver.ArchiverGeneration;
 import org.pentaho.di.trans.steps.archiver.ArchiverMeta;
 import org.pentaho.di.trans.steps.archiver.CompressionType;
+import org.pentaho.di.trans.steps.archiver.DigestType;
 import org.pentaho.di.trans.steps.archiver.WaitingUnit;
 import org.pentaho.di.ui.core.widget.ColumnInfo;
 import org.pentaho.di.ui.core.widget.TableView;
+import org.pentaho.di.ui.core.widget.TextVar;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
 
 public class ArchiverDialog extends BaseStepDialog implements StepDialogInterface {
@@ -39,6 +42,78 @@ public class ArchiverDialog extends BaseStepDialog implements StepDialogInterfac
   private Text         wStepname;
   private FormData     fdlStepname, fdStepname;
   
+  private Label        wlNrThreads;
+  private TextVar      wNrThreads;
+  private FormData     fdlNrThreads, fdNrThreads;
+  
+  private Label        wlNrGenerationThreads;
+  private TextVar      wNrGenerationThreads;
+  private FormData     fdlNrGenerationThreads, fdNrGenerationThreads;
+  
+  private Label        wlCopyBufferSize;
+  private TextVar      wCopyBufferSize;
+  private FormData     fdlCopyBufferSize, fdCopyBufferSize;
+  
+  private Label        wlCopyQueueDepth;
+  private TextVar      wCopyQueueDepth;
+  private FormData     fdlCopyQueueDepth, fdCopyQueueDepth;
+  
+  private Label        wlCopyMemoryLimit;
+  private TextVar      wCopyMemoryLimit;
+  private FormData     fdlCopyMemoryLimit, fdCopyMemoryLimit;
+  
+  private Label        wlMmapThreshold;
+  private TextVar      wMmapThreshold;
+  private FormData     fdlMmapThreshold, fdMmapThreshold;
+  
+  private Label        wlInputFilenameField;
+  private TextVar      wInputFilenameField;
+  private FormData     fdlInputFilenameField, fdInputFilenameField;
+  
+  private Label        wlInputBatchSize;
+  private TextVar      wInputBatchSize;
+  private FormData     fdlInputBatchSize, fdInputBatchSize;
+
+  private Label        wlReadRateLimit;
+  private TextVar      wReadRateLimit;
+  private FormData     fdlReadRateLimit, fdReadRateLimit;
+
+  private Label        wlWriteRateLimit;
+  private TextVar      wWriteRateLimit;
+  private FormData     fdlWriteRateLimit, fdWriteRateLimit;
+
+  private Label        wlMaxCpuShare;
+  private TextVar      wMaxCpuShare;
+  private FormData     fdlMaxCpuShare, fdMaxCpuShare;
+
+  private Label        wlScanIndexFolder;
+  private TextVar      wScanIndexFolder;
+  private FormData     fdlScanIndexFolder, fdScanIndexFolder;
+
+  private Label        wlWatching;
+  private Button       wWatching;
+  private FormData     fdlWatching, fdWatching;
+
+  private Label        wlWatchFlushInterval;
+  private TextVar      wWatchFlushInterval;
+  private FormData     fdlWatchFlushInterval, fdWatchFlushInterval;
+
+  private Label        wlCheckpointInterval;
+  private TextVar      wCheckpointInterval;
+  private FormData     fdlCheckpointInterval, fdCheckpointInterval;
+
+  private Label        wlVerifyDigest;
+  private CCombo       wVerifyDigest;
+  private FormData     fdlVerifyDigest, fdVerifyDigest;
+
+  private Label        wlNrDeleteThreads;
+  private TextVar      wNrDeleteThreads;
+  private FormData     fdlNrDeleteThreads, fdNrDeleteThreads;
+
+  private Label        wlRemovingEmptyFolders;
+  private Button       wRemovingEmptyFolders;
+  private FormData     fdlRemovingEmptyFolders, fdRemovingEmptyFolders;
+  
   private Label        wlFields;
   private TableView    wFields;
   private FormData     fdlFields, fdFields;
@@ -99,12 +174,341 @@ public class ArchiverDialog extends BaseStepDialog implements StepDialogInterfac
     fdStepname.right= new FormAttachment(100, 0);
     wStepname.setLayoutData(fdStepname);
     
+    // Number of compression threads line
+    wlNrThreads=new Label(shell, SWT.RIGHT);
+    wlNrThreads.setText(BaseMessages.getString(PKG, "ArchiverDialog.NrThreads.Label"));
+    props.setLook(wlNrThreads);
+    fdlNrThreads=new FormData();
+    fdlNrThreads.left = new FormAttachment(0, 0);
+    fdlNrThreads.right= new FormAttachment(middle, -margin);
+    fdlNrThreads.top  = new FormAttachment(wStepname, margin);
+    wlNrThreads.setLayoutData(fdlNrThreads);
+    wNrThreads=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wNrThreads);
+    wNrThreads.addModifyListener(lsMod);
+    fdNrThreads=new FormData();
+    fdNrThreads.left = new FormAttachment(middle, 0);
+    fdNrThreads.top  = new FormAttachment(wStepname, margin);
+    fdNrThreads.right= new FormAttachment(100, 0);
+    wNrThreads.setLayoutData(fdNrThreads);
+    
+    // Number of generations handled in parallel line
+    wlNrGenerationThreads=new Label(shell, SWT.RIGHT);
+    wlNrGenerationThreads.setText(BaseMessages.getString(PKG, "ArchiverDialog.NrGenerationThreads.Label"));
+    props.setLook(wlNrGenerationThreads);
+    fdlNrGenerationThreads=new FormData();
+    fdlNrGenerationThreads.left = new FormAttachment(0, 0);
+    fdlNrGenerationThreads.right= new FormAttachment(middle, -margin);
+    fdlNrGenerationThreads.top  = new FormAttachment(wNrThreads, margin);
+    wlNrGenerationThreads.setLayoutData(fdlNrGenerationThreads);
+    wNrGenerationThreads=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wNrGenerationThreads);
+    wNrGenerationThreads.addModifyListener(lsMod);
+    fdNrGenerationThreads=new FormData();
+    fdNrGenerationThreads.left = new FormAttachment(middle, 0);
+    fdNrGenerationThreads.top  = new FormAttachment(wNrThreads, margin);
+    fdNrGenerationThreads.right= new FormAttachment(100, 0);
+    wNrGenerationThreads.setLayoutData(fdNrGenerationThreads);
+    
+    // Copy buffer size line
+    wlCopyBufferSize=new Label(shell, SWT.RIGHT);
+    wlCopyBufferSize.setText(BaseMessages.getString(PKG, "ArchiverDialog.CopyBufferSize.Label"));
+    props.setLook(wlCopyBufferSize);
+    fdlCopyBufferSize=new FormData();
+    fdlCopyBufferSize.left = new FormAttachment(0, 0);
+    fdlCopyBufferSize.right= new FormAttachment(middle, -margin);
+    fdlCopyBufferSize.top  = new FormAttachment(wNrGenerationThreads, margin);
+    wlCopyBufferSize.setLayoutData(fdlCopyBufferSize);
+    wCopyBufferSize=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wCopyBufferSize);
+    wCopyBufferSize.addModifyListener(lsMod);
+    fdCopyBufferSize=new FormData();
+    fdCopyBufferSize.left = new FormAttachment(middle, 0);
+    fdCopyBufferSize.top  = new FormAttachment(wNrGenerationThreads, margin);
+    fdCopyBufferSize.right= new FormAttachment(100, 0);
+    wCopyBufferSize.setLayoutData(fdCopyBufferSize);
+    
+    // Copy queue depth line
+    wlCopyQueueDepth=new Label(shell, SWT.RIGHT);
+    wlCopyQueueDepth.setText(BaseMessages.getString(PKG, "ArchiverDialog.CopyQueueDepth.Label"));
+    props.setLook(wlCopyQueueDepth);
+    fdlCopyQueueDepth=new FormData();
+    fdlCopyQueueDepth.left = new FormAttachment(0, 0);
+    fdlCopyQueueDepth.right= new FormAttachment(middle, -margin);
+    fdlCopyQueueDepth.top  = new FormAttachment(wCopyBufferSize, margin);
+    wlCopyQueueDepth.setLayoutData(fdlCopyQueueDepth);
+    wCopyQueueDepth=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wCopyQueueDepth);
+    wCopyQueueDepth.addModifyListener(lsMod);
+    fdCopyQueueDepth=new FormData();
+    fdCopyQueueDepth.left = new FormAttachment(middle, 0);
+    fdCopyQueueDepth.top  = new FormAttachment(wCopyBufferSize, margin);
+    fdCopyQueueDepth.right= new FormAttachment(100, 0);
+    wCopyQueueDepth.setLayoutData(fdCopyQueueDepth);
+    
+    // Copy memory limit line
+    wlCopyMemoryLimit=new Label(shell, SWT.RIGHT);
+    wlCopyMemoryLimit.setText(BaseMessages.getString(PKG, "ArchiverDialog.CopyMemoryLimit.Label"));
+    props.setLook(wlCopyMemoryLimit);
+    fdlCopyMemoryLimit=new FormData();
+    fdlCopyMemoryLimit.left = new FormAttachment(0, 0);
+    fdlCopyMemoryLimit.right= new FormAttachment(middle, -margin);
+    fdlCopyMemoryLimit.top  = new FormAttachment(wCopyQueueDepth, margin);
+    wlCopyMemoryLimit.setLayoutData(fdlCopyMemoryLimit);
+    wCopyMemoryLimit=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wCopyMemoryLimit);
+    wCopyMemoryLimit.addModifyListener(lsMod);
+    fdCopyMemoryLimit=new FormData();
+    fdCopyMemoryLimit.left = new FormAttachment(middle, 0);
+    fdCopyMemoryLimit.top  = new FormAttachment(wCopyQueueDepth, margin);
+    fdCopyMemoryLimit.right= new FormAttachment(100, 0);
+    wCopyMemoryLimit.setLayoutData(fdCopyMemoryLimit);
+    
+    // Memory map threshold line
+    wlMmapThreshold=new Label(shell, SWT.RIGHT);
+    wlMmapThreshold.setText(BaseMessages.getString(PKG, "ArchiverDialog.MmapThreshold.Label"));
+    props.setLook(wlMmapThreshold);
+    fdlMmapThreshold=new FormData();
+    fdlMmapThreshold.left = new FormAttachment(0, 0);
+    fdlMmapThreshold.right= new FormAttachment(middle, -margin);
+    fdlMmapThreshold.top  = new FormAttachment(wCopyMemoryLimit, margin);
+    wlMmapThreshold.setLayoutData(fdlMmapThreshold);
+    wMmapThreshold=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wMmapThreshold);
+    wMmapThreshold.addModifyListener(lsMod);
+    fdMmapThreshold=new FormData();
+    fdMmapThreshold.left = new FormAttachment(middle, 0);
+    fdMmapThreshold.top  = new FormAttachment(wCopyMemoryLimit, margin);
+    fdMmapThreshold.right= new FormAttachment(100, 0);
+    wMmapThreshold.setLayoutData(fdMmapThreshold);
+    
+    // Input filename field line
+    wlInputFilenameField=new Label(shell, SWT.RIGHT);
+    wlInputFilenameField.setText(BaseMessages.getString(PKG, "ArchiverDialog.InputFilenameField.Label"));
+    props.setLook(wlInputFilenameField);
+    fdlInputFilenameField=new FormData();
+    fdlInputFilenameField.left = new FormAttachment(0, 0);
+    fdlInputFilenameField.right= new FormAttachment(middle, -margin);
+    fdlInputFilenameField.top  = new FormAttachment(wMmapThreshold, margin);
+    wlInputFilenameField.setLayoutData(fdlInputFilenameField);
+    wInputFilenameField=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wInputFilenameField);
+    wInputFilenameField.addModifyListener(lsMod);
+    wInputFilenameField.addModifyListener(new ModifyListener() {
+      public void modifyText(ModifyEvent e) {
+        enableFlushInterval();
+      }
+    });
+    fdInputFilenameField=new FormData();
+    fdInputFilenameField.left = new FormAttachment(middle, 0);
+    fdInputFilenameField.top  = new FormAttachment(wMmapThreshold, margin);
+    fdInputFilenameField.right= new FormAttachment(100, 0);
+    wInputFilenameField.setLayoutData(fdInputFilenameField);
+    
+    // Input batch size line
+    wlInputBatchSize=new Label(shell, SWT.RIGHT);
+    wlInputBatchSize.setText(BaseMessages.getString(PKG, "ArchiverDialog.InputBatchSize.Label"));
+    props.setLook(wlInputBatchSize);
+    fdlInputBatchSize=new FormData();
+    fdlInputBatchSize.left = new FormAttachment(0, 0);
+    fdlInputBatchSize.right= new FormAttachment(middle, -margin);
+    fdlInputBatchSize.top  = new FormAttachment(wInputFilenameField, margin);
+    wlInputBatchSize.setLayoutData(fdlInputBatchSize);
+    wInputBatchSize=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wInputBatchSize);
+    wInputBatchSize.addModifyListener(lsMod);
+    fdInputBatchSize=new FormData();
+    fdInputBatchSize.left = new FormAttachment(middle, 0);
+    fdInputBatchSize.top  = new FormAttachment(wInputFilenameField, margin);
+    fdInputBatchSize.right= new FormAttachment(100, 0);
+    wInputBatchSize.setLayoutData(fdInputBatchSize);
+    
+    wlReadRateLimit=new Label(shell, SWT.RIGHT);
+    wlReadRateLimit.setText(BaseMessages.getString(PKG, "ArchiverDialog.ReadRateLimit.Label"));
+    props.setLook(wlReadRateLimit);
+    fdlReadRateLimit=new FormData();
+    fdlReadRateLimit.left = new FormAttachment(0, 0);
+    fdlReadRateLimit.right= new FormAttachment(middle, -margin);
+    fdlReadRateLimit.top  = new FormAttachment(wInputBatchSize, margin);
+    wlReadRateLimit.setLayoutData(fdlReadRateLimit);
+    wReadRateLimit=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wReadRateLimit);
+    wReadRateLimit.addModifyListener(lsMod);
+    fdReadRateLimit=new FormData();
+    fdReadRateLimit.left = new FormAttachment(middle, 0);
+    fdReadRateLimit.top  = new FormAttachment(wInputBatchSize, margin);
+    fdReadRateLimit.right= new FormAttachment(100, 0);
+    wReadRateLimit.setLayoutData(fdReadRateLimit);
+    
+    wlWriteRateLimit=new Label(shell, SWT.RIGHT);
+    wlWriteRateLimit.setText(BaseMessages.getString(PKG, "ArchiverDialog.WriteRateLimit.Label"));
+    props.setLook(wlWriteRateLimit);
+    fdlWriteRateLimit=new FormData();
+    fdlWriteRateLimit.left = new FormAttachment(0, 0);
+    fdlWriteRateLimit.right= new FormAttachment(middle, -margin);
+    fdlWriteRateLimit.top  = new FormAttachment(wReadRateLimit, margin);
+    wlWriteRateLimit.setLayoutData(fdlWriteRateLimit);
+    wWriteRateLimit=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wWriteRateLimit);
+    wWriteRateLimit.addModifyListener(lsMod);
+    fdWriteRateLimit=new FormData();
+    fdWriteRateLimit.left = new FormAttachment(middle, 0);
+    fdWriteRateLimit.top  = new FormAttachment(wReadRateLimit, margin);
+    fdWriteRateLimit.right= new FormAttachment(100, 0);
+    wWriteRateLimit.setLayoutData(fdWriteRateLimit);
+    
+    wlMaxCpuShare=new Label(shell, SWT.RIGHT);
+    wlMaxCpuShare.setText(BaseMessages.getString(PKG, "ArchiverDialog.MaxCpuShare.Label"));
+    props.setLook(wlMaxCpuShare);
+    fdlMaxCpuShare=new FormData();
+    fdlMaxCpuShare.left = new FormAttachment(0, 0);
+    fdlMaxCpuShare.right= new FormAttachment(middle, -margin);
+    fdlMaxCpuShare.top  = new FormAttachment(wWriteRateLimit, margin);
+    wlMaxCpuShare.setLayoutData(fdlMaxCpuShare);
+    wMaxCpuShare=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wMaxCpuShare);
+    wMaxCpuShare.addModifyListener(lsMod);
+    fdMaxCpuShare=new FormData();
+    fdMaxCpuShare.left = new FormAttachment(middle, 0);
+    fdMaxCpuShare.top  = new FormAttachment(wWriteRateLimit, margin);
+    fdMaxCpuShare.right= new FormAttachment(100, 0);
+    wMaxCpuShare.setLayoutData(fdMaxCpuShare);
+    
+    wlScanIndexFolder=new Label(shell, SWT.RIGHT);
+    wlScanIndexFolder.setText(BaseMessages.getString(PKG, "ArchiverDialog.ScanIndexFolder.Label"));
+    props.setLook(wlScanIndexFolder);
+    fdlScanIndexFolder=new FormData();
+    fdlScanIndexFolder.left = new FormAttachment(0, 0);
+    fdlScanIndexFolder.right= new FormAttachment(middle, -margin);
+    fdlScanIndexFolder.top  = new FormAttachment(wMaxCpuShare, margin);
+    wlScanIndexFolder.setLayoutData(fdlScanIndexFolder);
+    wScanIndexFolder=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wScanIndexFolder);
+    wScanIndexFolder.addModifyListener(lsMod);
+    fdScanIndexFolder=new FormData();
+    fdScanIndexFolder.left = new FormAttachment(middle, 0);
+    fdScanIndexFolder.top  = new FormAttachment(wMaxCpuShare, margin);
+    fdScanIndexFolder.right= new FormAttachment(100, 0);
+    wScanIndexFolder.setLayoutData(fdScanIndexFolder);
+    
+    wlWatching=new Label(shell, SWT.RIGHT);
+    wlWatching.setText(BaseMessages.getString(PKG, "ArchiverDialog.Watching.Label"));
+    props.setLook(wlWatching);
+    fdlWatching=new FormData();
+    fdlWatching.left = new FormAttachment(0, 0);
+    fdlWatching.right= new FormAttachment(middle, -margin);
+    fdlWatching.top  = new FormAttachment(wScanIndexFolder, margin);
+    wlWatching.setLayoutData(fdlWatching);
+    wWatching=new Button(shell, SWT.CHECK);
+    props.setLook(wWatching);
+    fdWatching=new FormData();
+    fdWatching.left = new FormAttachment(middle, 0);
+    fdWatching.top  = new FormAttachment(wScanIndexFolder, margin);
+    fdWatching.right= new FormAttachment(100, 0);
+    wWatching.setLayoutData(fdWatching);
+    wWatching.addSelectionListener(new SelectionAdapter() {
+      public void widgetSelected(SelectionEvent e) {
+        changed = true;
+        enableFlushInterval();
+      }
+    });
+    
+    wlWatchFlushInterval=new Label(shell, SWT.RIGHT);
+    wlWatchFlushInterval.setText(BaseMessages.getString(PKG, "ArchiverDialog.WatchFlushInterval.Label"));
+    props.setLook(wlWatchFlushInterval);
+    fdlWatchFlushInterval=new FormData();
+    fdlWatchFlushInterval.left = new FormAttachment(0, 0);
+    fdlWatchFlushInterval.right= new FormAttachment(middle, -margin);
+    fdlWatchFlushInterval.top  = new FormAttachment(wWatching, margin);
+    wlWatchFlushInterval.setLayoutData(fdlWatchFlushInterval);
+    wWatchFlushInterval=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wWatchFlushInterval);
+    wWatchFlushInterval.addModifyListener(lsMod);
+    fdWatchFlushInterval=new FormData();
+    fdWatchFlushInterval.left = new FormAttachment(middle, 0);
+    fdWatchFlushInterval.top  = new FormAttachment(wWatching, margin);
+    fdWatchFlushInterval.right= new FormAttachment(100, 0);
+    wWatchFlushInterval.setLayoutData(fdWatchFlushInterval);
+
+    wlCheckpointInterval=new Label(shell, SWT.RIGHT);
+    wlCheckpointInterval.setText(BaseMessages.getString(PKG, "ArchiverDialog.CheckpointInterval.Label"));
+    props.setLook(wlCheckpointInterval);
+    fdlCheckpointInterval=new FormData();
+    fdlCheckpointInterval.left = new FormAttachment(0, 0);
+    fdlCheckpointInterval.right= new FormAttachment(middle, -margin);
+    fdlCheckpointInterval.top  = new FormAttachment(wWatchFlushInterval, margin);
+    wlCheckpointInterval.setLayoutData(fdlCheckpointInterval);
+    wCheckpointInterval=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wCheckpointInterval);
+    wCheckpointInterval.addModifyListener(lsMod);
+    fdCheckpointInterval=new FormData();
+    fdCheckpointInterval.left = new FormAttachment(middle, 0);
+    fdCheckpointInterval.top  = new FormAttachment(wWatchFlushInterval, margin);
+    fdCheckpointInterval.right= new FormAttachment(100, 0);
+    wCheckpointInterval.setLayoutData(fdCheckpointInterval);
+
+    wlVerifyDigest=new Label(shell, SWT.RIGHT);
+    wlVerifyDigest.setText(BaseMessages.getString(PKG, "ArchiverDialog.VerifyDigest.Label"));
+    props.setLook(wlVerifyDigest);
+    fdlVerifyDigest=new FormData();
+    fdlVerifyDigest.left = new FormAttachment(0, 0);
+    fdlVerifyDigest.right= new FormAttachment(middle, -margin);
+    fdlVerifyDigest.top  = new FormAttachment(wCheckpointInterval, margin);
+    wlVerifyDigest.setLayoutData(fdlVerifyDigest);
+    wVerifyDigest=new CCombo(shell, SWT.BORDER | SWT.READ_ONLY);
+    wVerifyDigest.setItems(DigestType.getDescriptions());
+    props.setLook(wVerifyDigest);
+    wVerifyDigest.addModifyListener(lsMod);
+    fdVerifyDigest=new FormData();
+    fdVerifyDigest.left = new FormAttachment(middle, 0);
+    fdVerifyDigest.top  = new FormAttachment(wCheckpointInterval, margin);
+    fdVerifyDigest.right= new FormAttachment(100, 0);
+    wVerifyDigest.setLayoutData(fdVerifyDigest);
+
+    wlNrDeleteThreads=new Label(shell, SWT.RIGHT);
+    wlNrDeleteThreads.setText(BaseMessages.getString(PKG, "ArchiverDialog.NrDeleteThreads.Label"));
+    props.setLook(wlNrDeleteThreads);
+    fdlNrDeleteThreads=new FormData();
+    fdlNrDeleteThreads.left = new FormAttachment(0, 0);
+    fdlNrDeleteThreads.right= new FormAttachment(middle, -margin);
+    fdlNrDeleteThreads.top  = new FormAttachment(wVerifyDigest, margin);
+    wlNrDeleteThreads.setLayoutData(fdlNrDeleteThreads);
+    wNrDeleteThreads=new TextVar(transMeta, shell, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(wNrDeleteThreads);
+    wNrDeleteThreads.addModifyListener(lsMod);
+    fdNrDeleteThreads=new FormData();
+    fdNrDeleteThreads.left = new FormAttachment(middle, 0);
+    fdNrDeleteThreads.top  = new FormAttachment(wVerifyDigest, margin);
+    fdNrDeleteThreads.right= new FormAttachment(100, 0);
+    wNrDeleteThreads.setLayoutData(fdNrDeleteThreads);
+
+    wlRemovingEmptyFolders=new Label(shell, SWT.RIGHT);
+    wlRemovingEmptyFolders.setText(BaseMessages.getString(PKG, "ArchiverDialog.RemovingEmptyFolders.Label"));
+    props.setLook(wlRemovingEmptyFolders);
+    fdlRemovingEmptyFolders=new FormData();
+    fdlRemovingEmptyFolders.left = new FormAttachment(0, 0);
+    fdlRemovingEmptyFolders.right= new FormAttachment(middle, -margin);
+    fdlRemovingEmptyFolders.top  = new FormAttachment(wNrDeleteThreads, margin);
+    wlRemovingEmptyFolders.setLayoutData(fdlRemovingEmptyFolders);
+    wRemovingEmptyFolders=new Button(shell, SWT.CHECK);
+    props.setLook(wRemovingEmptyFolders);
+    fdRemovingEmptyFolders=new FormData();
+    fdRemovingEmptyFolders.left = new FormAttachment(middle, 0);
+    fdRemovingEmptyFolders.top  = new FormAttachment(wNrDeleteThreads, margin);
+    fdRemovingEmptyFolders.right= new FormAttachment(100, 0);
+    wRemovingEmptyFolders.setLayoutData(fdRemovingEmptyFolders);
+    wRemovingEmptyFolders.addSelectionListener(new SelectionAdapter() {
+      public void widgetSelected(SelectionEvent e) {
+        changed = true;
+      }
+    });
+    
     wlFields=new Label(shell, SWT.NONE);
     wlFields.setText(BaseMessages.getString(PKG, "ArchiverDialog.Generations.Label"));
     props.setLook(wlFields);
     fdlFields=new FormData();
     fdlFields.left = new FormAttachment(0, 0);
-    fdlFields.top  = new FormAttachment(wStepname, margin);
+    fdlFields.top  = new FormAttachment(wRemovingEmptyFolders, margin);
     wlFields.setLayoutData(fdlFields);
     
     int nrGenerations=meta.getGenerations().size();
@@ -123,6 +527,15 @@ public class ArchiverDialog extends BaseStepDialog implements StepDialogInterfac
         new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.CompressionType.Column"), ColumnInfo.COLUMN_TYPE_CCOMBO, CompressionType.getDescriptions(), false),
         new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.ArchiveBase.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
         new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.RemoveOriginal.Column"), ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] { "Y", "N" }, false),
+        new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.NrThreads.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+        new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.NrScanThreads.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+        new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.MaxDepth.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+        new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.FolderIncludes.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+        new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.FolderExcludes.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+        new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.CompressionLevel.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+        new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.TargetThroughput.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+        new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.ReadRateLimit.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
+        new ColumnInfo(BaseMessages.getString(PKG, "ArchiverDialog.WriteRateLimit.Column"), ColumnInfo.COLUMN_TYPE_TEXT, false),
       };
     colinf[0].setUsingVariables(true);
     colinf[1].setUsingVariables(true);
@@ -131,6 +544,13 @@ public class ArchiverDialog extends BaseStepDialog implements StepDialogInterfac
     colinf[5].setUsingVariables(true);
     colinf[6].setUsingVariables(true);
     colinf[8].setUsingVariables(true);
+    colinf[10].setUsingVariables(true);
+    colinf[11].setUsingVariables(true);
+    colinf[12].setUsingVariables(true);
+    colinf[13].setUsingVariables(true);
+    colinf[14].setUsingVariables(true);
+    colinf[15].setUsingVariables(true);
+    colinf[16].setUsingVariables(true);
 
     wFields=new TableView(transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, colinf, nrGenerations, lsMod, props );
 
@@ -185,6 +605,25 @@ public class ArchiverDialog extends BaseStepDialog implements StepDialogInterfac
    */ 
   public void getData() {
     wStepname.selectAll();
+    wNrThreads.setText(Const.NVL(meta.getNrThreads(), ""));
+    wNrGenerationThreads.setText(Const.NVL(meta.getNrGenerationThreads(), ""));
+    wCopyBufferSize.setText(Const.NVL(meta.getCopyBufferSize(), ""));
+    wCopyQueueDepth.setText(Const.NVL(meta.getCopyQueueDepth(), ""));
+    wCopyMemoryLimit.setText(Const.NVL(meta.getCopyMemoryLimit(), ""));
+    wMmapThreshold.setText(Const.NVL(meta.getMmapThreshold(), ""));
+    wInputFilenameField.setText(Const.NVL(meta.getInputFilenameField(), ""));
+    wInputBatchSize.setText(Const.NVL(meta.getInputBatchSize(), ""));
+    wReadRateLimit.setText(Const.NVL(meta.getReadRateLimit(), ""));
+    wWriteRateLimit.setText(Const.NVL(meta.getWriteRateLimit(), ""));
+    wMaxCpuShare.setText(Const.NVL(meta.getMaxCpuShare(), ""));
+    wScanIndexFolder.setText(Const.NVL(meta.getScanIndexFolder(), ""));
+    wWatching.setSelection(meta.isWatching());
+    wWatchFlushInterval.setText(Const.NVL(meta.getWatchFlushInterval(), ""));
+    enableFlushInterval();
+    wCheckpointInterval.setText(Const.NVL(meta.getCheckpointInterval(), ""));
+    wVerifyDigest.setText(meta.getVerifyDigest()!=null ? meta.getVerifyDigest().getDescription() : DigestType.NONE.getDescription());
+    wNrDeleteThreads.setText(Const.NVL(meta.getNrDeleteThreads(), ""));
+    wRemovingEmptyFolders.setSelection(meta.isRemovingEmptyFolders());
     
     for (int i=0;i<meta.getGenerations().size();i++) {
       ArchiverGeneration generation = meta.getGenerations().get(i);
@@ -200,12 +639,28 @@ public class ArchiverDialog extends BaseStepDialog implements StepDialogInterfac
       item.setText( index++, generation.getCompressionType().getDescription());
       item.setText( index++, Const.NVL(generation.getArchiveBaseName(), ""));
       item.setText( index++, generation.isRemovingOriginal() ? "Y" : "N" );
+      item.setText( index++, Const.NVL(generation.getNrThreads(), ""));
+      item.setText( index++, Const.NVL(generation.getNrScanThreads(), ""));
+      item.setText( index++, Const.NVL(generation.getMaxDepth(), ""));
+      item.setText( index++, Const.NVL(generation.getFolderIncludes(), ""));
+      item.setText( index++, Const.NVL(generation.getFolderExcludes(), ""));
+      item.setText( index++, Const.NVL(generation.getCompressionLevel(), ""));
+      item.setText( index++, Const.NVL(generation.getTargetThroughput(), ""));
+      item.setText( index++, Const.NVL(generation.getReadRateLimit(), ""));
+      item.setText( index++, Const.NVL(generation.getWriteRateLimit(), ""));
     }
     
     wFields.setRowNums();
     wFields.optWidth(true);
   }
 
+  /**
+   * The flush interval applies to the batches of the watch mode and of the input mode.
+   */
+  private void enableFlushInterval() {
+    wWatchFlushInterval.setEnabled(wWatching.getSelection() || !Const.isEmpty(wInputFilenameField.getText()));
+  }
+
   private void cancel() {
       stepname=null;
       dispose();
@@ -218,6 +673,24 @@ public class ArchiverDialog extends BaseStepDialog implements StepDialogInterfac
     
     int nrNonEmptyFields = wFields.nrNonEmpty(); 
     meta.clear();
+    meta.setNrThreads(wNrThreads.getText());
+    meta.setNrGenerationThreads(wNrGenerationThreads.getText());
+    meta.setCopyBufferSize(wCopyBufferSize.getText());
+    meta.setCopyQueueDepth(wCopyQueueDepth.getText());
+    meta.setCopyMemoryLimit(wCopyMemoryLimit.getText());
+    meta.setMmapThreshold(wMmapThreshold.getText());
+    meta.setInputFilenameField(wInputFilenameField.getText());
+    meta.setInputBatchSize(wInputBatchSize.getText());
+    meta.setReadRateLimit(wReadRateLimit.getText());
+    meta.setWriteRateLimit(wWriteRateLimit.getText());
+    meta.setMaxCpuShare(wMaxCpuShare.getText());
+    meta.setScanIndexFolder(wScanIndexFolder.getText());
+    meta.setWatching(wWatching.getSelection());
+    meta.setWatchFlushInterval(wWatchFlushInterval.getText());
+    meta.setCheckpointInterval(wCheckpointInterval.getText());
+    meta.setVerifyDigest(DigestType.getDigestTypeForDescription(wVerifyDigest.getText()));
+    meta.setNrDeleteThreads(wNrDeleteThreads.getText());
+    meta.setRemovingEmptyFolders(wRemovingEmptyFolders.getSelection());
     
     for (int i=0;i<nrNonEmptyFields;i++) {
       TableItem item = wFields.getNonEmpty(i);
@@ -232,6 +705,15 @@ public class ArchiverDialog extends BaseStepDialog implements StepDialogInterfac
       String compressionType = item.getText(index++);
       String archiveBaseName = item.getText(index++);
       boolean removeOriginal = "Y".equalsIgnoreCase(item.getText(index++));
+      String nrThreads = item.getText(index++);
+      String nrScanThreads = item.getText(index++);
+      String maxDepth = item.getText(index++);
+      String folderIncludes = item.getText(index++);
+      String folderExcludes = item.getText(index++);
+      String compressionLevel = item.getText(index++);
+      String targetThroughput = item.getText(index++);
+      String readRateLimit = item.getText(index++);
+      String writeRateLimit = item.getText(index++);
       
       ArchiverGeneration generation = new ArchiverGeneration(sourceFolder, sourceRegex, targetFolder, 
           waitTime, WaitingUnit.getWaitingUnitForDescription(waitUnit),
@@ -239,6 +721,15 @@ public class ArchiverDialog extends BaseStepDialog implements StepDialogInterfac
           CompressionType.getCompressionTypeForDescription(compressionType),
           archiveBaseName, removeOriginal
          );
+      generation.setNrThreads(nrThreads);
+      generation.setNrScanThreads(nrScanThreads);
+      generation.setMaxDepth(maxDepth);
+      generation.setFolderIncludes(folderIncludes);
+      generation.setFolderExcludes(folderExcludes);
+      generation.setCompressionLevel(compressionLevel);
+      generation.setTargetThroughput(targetThroughput);
+      generation.setReadRateLimit(readRateLimit);
+      generation.setWriteRateLimit(writeRateLimit);
       meta.getGenerations().add(generation);
     }
         
@@ -0,0 +1,207 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveJournalTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private Path folder;
+  private Path journalFile;
+  private SourceFile a;
+  private SourceFile b;
+  private SourceFile c;
+
+  @Before
+  public void setUp() throws IOException {
+    folder = Files.createTempDirectory("journal");
+    journalFile = folder.resolve(".archive.journal");
+    a = createFile("a.log", "first");
+    b = createFile("b.log", "second file");
+    c = createFile("c.log", "third");
+    b.setDigest(new byte[] { 1, 2, 3, 4 });
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(folder.toFile());
+  }
+
+  @Test
+  public void testRecordsAreReadBack() throws Exception {
+    ParallelZipCreator.WrittenEntry zipEntry = new ParallelZipCreator.WrittenEntry("b.log", 1400000000000L, ZipEntry.DEFLATED, 0x12345678L, 11L, 9L, 100L);
+    ArchiveJournal journal = new ArchiveJournal(journalFile, 0L);
+    journal.start("/target/archive.zip");
+    journal.checkpoint(Arrays.asList(new ArchiveJournal.Entry(a, null)), 100L);
+    journal.checkpoint(Arrays.asList(new ArchiveJournal.Entry(b, zipEntry)), 200L);
+    journal.close();
+
+    journal = new ArchiveJournal(journalFile, 0L);
+    assertTrue(journal.load());
+    assertEquals("/target/archive.zip", journal.getTargetFile());
+    assertEquals(200L, journal.getOffset());
+    assertFalse(journal.isComplete());
+
+    List<ArchiveJournal.Entry> entries = journal.getEntries();
+    assertEquals(2, entries.size());
+    assertEquals(a.getFile().getName().getURI(), entries.get(0).getSource());
+    assertTrue(entries.get(0).isSameFile(a));
+    assertNull(entries.get(0).getZipEntry());
+    assertNull(entries.get(0).getDigest());
+    assertArrayEquals(new byte[] { 1, 2, 3, 4 }, entries.get(1).getDigest());
+
+    ParallelZipCreator.WrittenEntry readEntry = entries.get(1).getZipEntry();
+    assertEquals("b.log", readEntry.getName());
+    assertEquals(1400000000000L, readEntry.getLastModified());
+    assertEquals(ZipEntry.DEFLATED, readEntry.getMethod());
+    assertEquals(0x12345678L, readEntry.getCrc());
+    assertEquals(11L, readEntry.getSize());
+    assertEquals(9L, readEntry.getCompressedSize());
+    assertEquals(100L, readEntry.getOffset());
+
+    assertEquals(Arrays.asList(c), journal.getMissingFiles(Arrays.asList(a, b, c)));
+  }
+
+  @Test
+  public void testCompletedArchive() throws Exception {
+    ArchiveJournal journal = new ArchiveJournal(journalFile, 0L);
+    journal.start("/target/archive.tgz");
+    journal.checkpoint(Arrays.asList(new ArchiveJournal.Entry(a, null)), 100L);
+    journal.complete(Arrays.asList(new ArchiveJournal.Entry(b, null), new ArchiveJournal.Entry(c, null)), 250L);
+    journal.close();
+
+    journal = new ArchiveJournal(journalFile, 0L);
+    assertTrue(journal.load());
+    assertTrue(journal.isComplete());
+    assertEquals(3, journal.getEntries().size());
+    assertEquals(250L, journal.getOffset());
+
+    journal.delete();
+    assertFalse(Files.exists(journalFile));
+    assertFalse(new ArchiveJournal(journalFile, 0L).load());
+  }
+
+  @Test
+  public void testTornRecordEndsTheJournal() throws Exception {
+    writeThreeCheckpoints();
+
+    // The JVM was killed halfway the last record
+    //
+    RandomAccessFile file = new RandomAccessFile(journalFile.toFile(), "rw");
+    try {
+      file.setLength(file.length()-3);
+    } finally {
+      file.close();
+    }
+
+    ArchiveJournal journal = new ArchiveJournal(journalFile, 0L);
+    assertTrue(journal.load());
+    assertEquals(2, journal.getEntries().size());
+    assertEquals(200L, journal.getOffset());
+  }
+
+  @Test
+  public void testCorruptedRecordIsNotUsed() throws Exception {
+    writeThreeCheckpoints();
+    long length = Files.size(journalFile);
+
+    // A flipped bit in the offset of the last checkpoint only shows in the checksum
+    //
+    RandomAccessFile file = new RandomAccessFile(journalFile.toFile(), "rw");
+    try {
+      file.seek(length-5);
+      int value = file.read();
+      file.seek(length-5);
+      file.write(value ^ 0x01);
+    } finally {
+      file.close();
+    }
+
+    ArchiveJournal journal = new ArchiveJournal(journalFile, 0L);
+    assertTrue(journal.load());
+    assertEquals(2, journal.getEntries().size());
+    assertEquals(200L, journal.getOffset());
+  }
+
+  @Test
+  public void testUnknownFileIsNoJournal() throws Exception {
+    Files.write(journalFile, "not a journal at all".getBytes(UTF8));
+    assertFalse(new ArchiveJournal(journalFile, 0L).load());
+  }
+
+  @Test
+  public void testRollBackToTheArchiveLeftBehind() throws Exception {
+    writeThreeCheckpoints();
+
+    // The archive was written ahead of the journal but not completely: continue from the second checkpoint
+    //
+    ArchiveJournal journal = new ArchiveJournal(journalFile, 150L);
+    assertTrue(journal.load());
+    assertTrue(journal.rollBack(299L));
+    assertEquals(200L, journal.getOffset());
+    assertEquals(2, journal.getEntries().size());
+    assertEquals(Arrays.asList(c), journal.getMissingFiles(Arrays.asList(a, b, c)));
+    assertFalse(journal.isCheckpointDue(300L));
+    assertTrue(journal.isCheckpointDue(350L));
+
+    // The rewritten journal only knows the entries rolled back to
+    //
+    journal.restart();
+    journal.complete(Arrays.asList(new ArchiveJournal.Entry(c, null)), 320L);
+    journal.close();
+
+    journal = new ArchiveJournal(journalFile, 150L);
+    assertTrue(journal.load());
+    assertTrue(journal.isComplete());
+    assertEquals(3, journal.getEntries().size());
+    assertEquals(320L, journal.getOffset());
+    assertEquals(Collections.<SourceFile>emptyList(), journal.getMissingFiles(Arrays.asList(a, b, c)));
+  }
+
+  @Test
+  public void testChangedFileIsWrittenAgain() throws Exception {
+    ArchiveJournal journal = new ArchiveJournal(journalFile, 0L);
+    journal.start("/target/archive.zip");
+    journal.checkpoint(Arrays.asList(new ArchiveJournal.Entry(a, null)), 100L);
+    journal.close();
+
+    Files.write(SourceFile.getLocalPath(a.getFile()), "changed since".getBytes(UTF8));
+    SourceFile changed = SourceFile.fromFileObject(a.getFile());
+    assertEquals(Arrays.asList(changed), journal.getMissingFiles(Arrays.asList(changed)));
+  }
+
+  private void writeThreeCheckpoints() throws IOException {
+    ArchiveJournal journal = new ArchiveJournal(journalFile, 0L);
+    journal.start("/target/archive.zip");
+    journal.checkpoint(Arrays.asList(new ArchiveJournal.Entry(a, null)), 100L);
+    journal.checkpoint(Arrays.asList(new ArchiveJournal.Entry(b, null)), 200L);
+    journal.checkpoint(Arrays.asList(new ArchiveJournal.Entry(c, null)), 300L);
+    journal.close();
+  }
+
+  private SourceFile createFile(String name, String content) throws IOException {
+    Path path = folder.resolve(name);
+    Files.write(path, content.getBytes(UTF8));
+    return LocalFileIterator.createSourceFile(path, Files.readAttributes(path, BasicFileAttributes.class));
+  }
+}
@@ -0,0 +1,47 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+import org.pentaho.di.core.variables.Variables;
+
+public class ArchiverGenerationTest {
+
+  @Test
+  public void testCompressionLevelIsClampedToTheLevelsOfTheType() {
+    Variables space = new Variables();
+    ArchiverGeneration generation = createGeneration(CompressionType.ZIP);
+
+    generation.setCompressionLevel("12");
+    assertEquals(9, generation.getCompressionLevel(space, Deflater.DEFAULT_COMPRESSION));
+
+    generation.setCompressionLevel("4");
+    assertEquals(4, generation.getCompressionLevel(space, Deflater.DEFAULT_COMPRESSION));
+
+    generation = createGeneration(CompressionType.LZ4);
+    generation.setCompressionLevel("${LEVEL}");
+    space.setVariable("LEVEL", "99");
+    assertEquals(LZ4FrameOutputStream.MAX_LEVEL, generation.getCompressionLevel(space, LZ4FrameOutputStream.DEFAULT_LEVEL));
+  }
+
+  @Test
+  public void testDefaultLevelWithoutAValidLevel() {
+    Variables space = new Variables();
+    ArchiverGeneration generation = createGeneration(CompressionType.GZIP);
+
+    generation.setCompressionLevel(null);
+    assertEquals(Deflater.DEFAULT_COMPRESSION, generation.getCompressionLevel(space, Deflater.DEFAULT_COMPRESSION));
+
+    generation.setCompressionLevel("fast");
+    assertEquals(Deflater.DEFAULT_COMPRESSION, generation.getCompressionLevel(space, Deflater.DEFAULT_COMPRESSION));
+
+    generation.setCompressionLevel("-3");
+    assertEquals(Deflater.DEFAULT_COMPRESSION, generation.getCompressionLevel(space, Deflater.DEFAULT_COMPRESSION));
+  }
+
+  private static ArchiverGeneration createGeneration(CompressionType compressionType) {
+    return new ArchiverGeneration("/source", ".*", "/target", "1", WaitingUnit.DAYS, null, null, compressionType, null, true);
+  }
+}
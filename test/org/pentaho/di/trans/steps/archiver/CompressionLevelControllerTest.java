@@ -0,0 +1,71 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CompressionLevelControllerTest {
+
+  private static final long MB = 1024*1024;
+
+  @Test
+  public void testIdleTimeDoesNotLowerTheLevel() throws Exception {
+    // 10MB compressed in about 100ms is 100MB/s, spread over more than a second of reading it is less than 10MB/s
+    //
+    CompressionLevelController controller = new CompressionLevelController(1, 9, 6, 20.0);
+    compress(controller, 100, 5*MB);
+    Thread.sleep(1000);
+    compress(controller, 0, 5*MB);
+    assertEquals(7, controller.getLevel());
+  }
+
+  @Test
+  public void testSlowCompressionLowersTheLevel() throws Exception {
+    CompressionLevelController controller = new CompressionLevelController(1, 9, 6, 20.0);
+    compress(controller, 1050, 5*MB);
+    compress(controller, 0, 0);
+    assertEquals(5, controller.getLevel());
+  }
+
+  @Test
+  public void testParallelCompressorsCountOnce() throws Exception {
+    // Four threads compressing 400KB every 100ms make 16MB/s together, 4MB/s if their busy times would be added up
+    //
+    final CompressionLevelController controller = new CompressionLevelController(1, 9, 6, 10.0);
+    Thread[] threads = new Thread[4];
+    for (int i=0;i<threads.length;i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            for (int j=0;j<15;j++) {
+              compress(controller, 100, 400*1024);
+            }
+          } catch(InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(7, controller.getLevel());
+  }
+
+  @Test
+  public void testLevelStaysWithinTheRange() throws Exception {
+    CompressionLevelController controller = new CompressionLevelController(1, 9, 12, 20.0);
+    assertEquals(9, controller.getLevel());
+  }
+
+  private static void compress(CompressionLevelController controller, long millis, long bytes) throws InterruptedException {
+    controller.startCompressing();
+    try {
+      Thread.sleep(millis);
+    } finally {
+      controller.stopCompressing();
+      controller.addProcessed(bytes);
+    }
+  }
+}
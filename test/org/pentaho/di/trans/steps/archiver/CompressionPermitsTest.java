@@ -0,0 +1,112 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressionPermitsTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testStreamsSharingPermitsCompressOneBlockAtATime() throws Exception {
+    // Two streams with four threads each, one permit between them
+    //
+    Semaphore permits = new Semaphore(1, true);
+    AtomicInteger busy = new AtomicInteger();
+    AtomicInteger maxBusy = new AtomicInteger();
+    SlowBlockOutputStream first = new SlowBlockOutputStream(executor, busy, maxBusy);
+    SlowBlockOutputStream second = new SlowBlockOutputStream(executor, busy, maxBusy);
+    first.setCompressionPermits(permits);
+    second.setCompressionPermits(permits);
+
+    byte[] data = new byte[8*SlowBlockOutputStream.BLOCK_SIZE];
+    first.write(data);
+    second.write(data);
+    first.close();
+    second.close();
+
+    assertEquals(1, maxBusy.get());
+    assertEquals(1, permits.availablePermits());
+  }
+
+  @Test
+  public void testWithoutPermitsBlocksAreCompressedInParallel() throws Exception {
+    AtomicInteger busy = new AtomicInteger();
+    AtomicInteger maxBusy = new AtomicInteger();
+    SlowBlockOutputStream stream = new SlowBlockOutputStream(executor, busy, maxBusy);
+    stream.write(new byte[8*SlowBlockOutputStream.BLOCK_SIZE]);
+    stream.close();
+
+    assertTrue("The blocks should overlap, at most "+maxBusy.get()+" at the same time", maxBusy.get()>1);
+  }
+
+  @Test
+  public void testPermitsAreGivenBackByACompressorInTheCallingThread() throws Exception {
+    Semaphore permits = new Semaphore(1);
+    byte[] data = TestData.text(1024*1024);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputStream os = new CompressionPermitOutputStream(new LevelGZIPOutputStream(out, 6, null, new CodecPool()), permits);
+    os.write(data);
+    os.close();
+
+    assertEquals(1, permits.availablePermits());
+    assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+  }
+
+  /**
+   * Keeps every block busy for a while and tracks how many blocks are compressed at the same time.
+   */
+  private static class SlowBlockOutputStream extends ParallelBlockOutputStream {
+    private static final int BLOCK_SIZE = 1024;
+
+    private AtomicInteger busy;
+    private AtomicInteger maxBusy;
+
+    private SlowBlockOutputStream(ExecutorService executor, AtomicInteger busy, AtomicInteger maxBusy) {
+      super(new ByteArrayOutputStream(), executor, 4, BLOCK_SIZE);
+      this.busy = busy;
+      this.maxBusy = maxBusy;
+    }
+
+    @Override
+    protected byte[] compressBlock(byte[] data, int length, byte[] previous, int previousLength) throws Exception {
+      int nrBusy = busy.incrementAndGet();
+      synchronized(maxBusy) {
+        maxBusy.set(Math.max(maxBusy.get(), nrBusy));
+      }
+      Thread.sleep(20);
+      busy.decrementAndGet();
+      return new byte[0];
+    }
+
+    @Override
+    protected void writeTrailer() throws IOException {
+    }
+  }
+}
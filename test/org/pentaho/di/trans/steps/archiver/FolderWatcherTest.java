@@ -0,0 +1,103 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FolderWatcherTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private Path folder;
+  private FolderWatcher watcher;
+
+  @Before
+  public void setUp() throws IOException {
+    folder = Files.createTempDirectory("watcher");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (watcher!=null) {
+      watcher.close();
+    }
+    FileUtils.deleteDirectory(folder.toFile());
+  }
+
+  @Test
+  public void testRescanSkipsTheHandledFilesWhichDidNotChange() throws Exception {
+    createFile("a.log", "a");
+    createFile("b.log", "b");
+    createFile("c.log", "c");
+    watcher = new FolderWatcher(folder, new FileSelection(null, null, null, -1, null), 0L);
+    assertEquals(3, watcher.getNrWaitingFiles());
+    assertEquals(list("a.log", "b.log", "c.log"), takeDueFiles());
+    assertEquals(3, watcher.getNrHandledFiles());
+
+    // Left alone, changed, removed and new
+    //
+    Path b = folder.resolve("b.log");
+    Files.write(b, "more".getBytes(UTF8), StandardOpenOption.APPEND);
+    Files.setLastModifiedTime(b, FileTime.fromMillis(System.currentTimeMillis()-60000L));
+    Files.delete(folder.resolve("c.log"));
+    createFile("d.log", "d");
+
+    watcher.rescan();
+    assertEquals(2, watcher.getNrWaitingFiles());
+    assertEquals(1, watcher.getNrHandledFiles());
+    assertEquals(list("b.log", "d.log"), takeDueFiles());
+
+    watcher.rescan();
+    assertEquals(0, watcher.getNrWaitingFiles());
+    assertEquals(3, watcher.getNrHandledFiles());
+  }
+
+  @Test
+  public void testHandledFileChangedAgainIsFollowed() throws Exception {
+    createFile("a.log", "a");
+    watcher = new FolderWatcher(folder, new FileSelection(null, null, null, -1, null), 0L);
+    assertEquals(list("a.log"), takeDueFiles());
+
+    Path a = folder.resolve("a.log");
+    Files.setLastModifiedTime(a, FileTime.fromMillis(Files.getLastModifiedTime(a).toMillis()+1000L));
+    watcher.rescan();
+    assertEquals(list("a.log"), takeDueFiles());
+  }
+
+  private void createFile(String name, String content) throws IOException {
+    Path path = folder.resolve(name);
+    Files.write(path, content.getBytes(UTF8));
+    Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()-60000L));
+  }
+
+  /**
+   * @return The names of the files handed out, sorted
+   */
+  private List<String> takeDueFiles() throws IOException {
+    List<String> names = new ArrayList<String>();
+    for (SourceFile file : watcher.takeDueFiles(System.currentTimeMillis()+5000L)) {
+      names.add(file.getFile().getName().getBaseName());
+    }
+    Collections.sort(names);
+    return names;
+  }
+
+  private static List<String> list(String...names) {
+    List<String> list = new ArrayList<String>();
+    Collections.addAll(list, names);
+    return list;
+  }
+}
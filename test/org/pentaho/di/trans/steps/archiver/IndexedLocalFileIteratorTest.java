@@ -0,0 +1,175 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexedLocalFileIteratorTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private Path root;
+  private Path source;
+  private Path indexFile;
+  private FileSelection selection;
+  private long past;
+
+  @Before
+  public void setUp() throws IOException {
+    root = Files.createTempDirectory("index");
+    source = root.resolve("source");
+    indexFile = root.resolve("source.index");
+    selection = new FileSelection(FileNameMatcher.fromGlob("*.log"), null, null, -1, null);
+    past = System.currentTimeMillis()-3600000L;
+
+    createFile("a.log");
+    createFile("skipped.txt");
+    createFile("sub1/b.log");
+    createFile("sub2/c.log");
+    createFile("sub2/deep/d.log");
+    touchFolders();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(root.toFile());
+  }
+
+  @Test
+  public void testUnchangedFoldersAreTakenFromTheIndex() throws Exception {
+    Walk first = walk(System.currentTimeMillis());
+    assertEquals(list("a.log", "sub1/b.log", "sub2/c.log", "sub2/deep/d.log"), first.files);
+    assertEquals(4, first.nrFoldersListed);
+    assertEquals(0, first.nrFoldersReused);
+
+    Walk second = walk(System.currentTimeMillis());
+    assertEquals(first.files, second.files);
+    assertEquals(0, second.nrFoldersListed);
+    assertEquals(4, second.nrFoldersReused);
+  }
+
+  @Test
+  public void testChangedFoldersAreListedAgain() throws Exception {
+    walk(System.currentTimeMillis());
+
+    // A new file in one folder, a sub folder removed from another one
+    //
+    createFile("sub1/e.log");
+    FileUtils.deleteDirectory(source.resolve("sub2/deep").toFile());
+    Files.setLastModifiedTime(source.resolve("sub1"), FileTime.fromMillis(past+60000L));
+    Files.setLastModifiedTime(source.resolve("sub2"), FileTime.fromMillis(past+60000L));
+
+    Walk walk = walk(System.currentTimeMillis());
+    assertEquals(list("a.log", "sub1/b.log", "sub1/e.log", "sub2/c.log"), walk.files);
+    assertEquals(2, walk.nrFoldersListed);
+    assertEquals(1, walk.nrFoldersReused);
+
+    walk = walk(System.currentTimeMillis());
+    assertEquals(0, walk.nrFoldersListed);
+    assertEquals(3, walk.nrFoldersReused);
+  }
+
+  @Test
+  public void testYoungFilesAreNotReturned() throws Exception {
+    Files.setLastModifiedTime(source.resolve("sub1/b.log"), FileTime.fromMillis(System.currentTimeMillis()));
+
+    long maxLastModifiedTime = System.currentTimeMillis()-60000L;
+    assertEquals(list("a.log", "sub2/c.log", "sub2/deep/d.log"), walk(maxLastModifiedTime).files);
+
+    // Still too young according to the index, and once old enough it is returned without listing its folder
+    //
+    assertEquals(list("a.log", "sub2/c.log", "sub2/deep/d.log"), walk(maxLastModifiedTime).files);
+    Walk walk = walk(System.currentTimeMillis()+1000L);
+    assertEquals(list("a.log", "sub1/b.log", "sub2/c.log", "sub2/deep/d.log"), walk.files);
+    assertEquals(0, walk.nrFoldersListed);
+  }
+
+  @Test
+  public void testFileChangedInAnUnchangedFolderIsLookedAtAgain() throws Exception {
+    walk(System.currentTimeMillis());
+
+    // Changing the content of a file leaves the folder alone
+    //
+    Path b = source.resolve("sub1/b.log");
+    Files.write(b, "changed".getBytes(UTF8));
+    Files.setLastModifiedTime(b, FileTime.fromMillis(System.currentTimeMillis()));
+    touchFolders();
+
+    Walk walk = walk(System.currentTimeMillis()-60000L);
+    assertEquals(list("a.log", "sub2/c.log", "sub2/deep/d.log"), walk.files);
+    assertEquals(0, walk.nrFoldersListed);
+  }
+
+  @Test
+  public void testUnreadableIndexListsEverything() throws Exception {
+    walk(System.currentTimeMillis());
+    Files.write(indexFile, "garbage".getBytes(UTF8));
+
+    Walk walk = walk(System.currentTimeMillis());
+    assertEquals(4, walk.files.size());
+    assertEquals(4, walk.nrFoldersListed);
+    assertEquals(0, walk.nrFoldersReused);
+    assertFalse(Files.exists(root.resolve("source.index.new")));
+  }
+
+  private void createFile(String name) throws IOException {
+    Path path = source.resolve(name);
+    Files.createDirectories(path.getParent());
+    Files.write(path, name.getBytes(UTF8));
+    Files.setLastModifiedTime(path, FileTime.fromMillis(past));
+  }
+
+  /**
+   * Folders changed recently are listed every time, make them all old.
+   */
+  private void touchFolders() throws IOException {
+    for (String folder : new String[] { "", "sub1", "sub2", "sub2/deep" }) {
+      Path path = source.resolve(folder);
+      if (Files.isDirectory(path)) {
+        Files.setLastModifiedTime(path, FileTime.fromMillis(past));
+      }
+    }
+  }
+
+  private Walk walk(long maxLastModifiedTime) throws IOException {
+    Walk walk = new Walk();
+    IndexedLocalFileIterator files = new IndexedLocalFileIterator(source, selection, indexFile, maxLastModifiedTime);
+    try {
+      while (files.hasNext()) {
+        Path path = SourceFile.getLocalPath(files.next().getFile());
+        walk.files.add(source.relativize(path).toString().replace('\\', '/'));
+      }
+    } finally {
+      files.close();
+    }
+    Collections.sort(walk.files);
+    walk.nrFoldersListed = files.getNrFoldersListed();
+    walk.nrFoldersReused = files.getNrFoldersReused();
+    return walk;
+  }
+
+  private static List<String> list(String...names) {
+    List<String> list = new ArrayList<String>();
+    Collections.addAll(list, names);
+    return list;
+  }
+
+  private static class Walk {
+    private List<String> files = new ArrayList<String>();
+    private int nrFoldersListed;
+    private int nrFoldersReused;
+  }
+}
@@ -0,0 +1,98 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.jpountz.lz4.LZ4FrameInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LZ4FrameOutputStreamTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRoundTripOfSeveralBlocks() throws Exception {
+    byte[] data = TestData.text(9*1024*1024+123);
+    byte[] compressed = compress(data, 4, LZ4FrameOutputStream.DEFAULT_LEVEL);
+    assertArrayEquals(data, decompress(compressed));
+    assertTrue("JSON lines should shrink at least 2 times, got "+compressed.length, compressed.length<data.length/2);
+  }
+
+  @Test
+  public void testRoundTripAtEveryLevel() throws Exception {
+    byte[] data = TestData.text(300*1024);
+    int previousSize = Integer.MAX_VALUE;
+    for (int level=1;level<=LZ4FrameOutputStream.MAX_LEVEL;level++) {
+      byte[] compressed = compress(data, 2, level);
+      assertArrayEquals("level "+level, data, decompress(compressed));
+      assertTrue("level "+level+" should not be larger than the level below it", compressed.length<=previousSize);
+      previousSize = compressed.length;
+    }
+  }
+
+  @Test
+  public void testIncompressibleBlocksAreStored() throws Exception {
+    byte[] data = TestData.random(5*1024*1024);
+    byte[] compressed = compress(data, 3, 9);
+    assertArrayEquals(data, decompress(compressed));
+
+    // Header, block sizes, end mark and content checksum
+    //
+    assertEquals(data.length+7+2*4+8, compressed.length);
+  }
+
+  @Test
+  public void testEmptyStream() throws Exception {
+    assertEquals(0, decompress(compress(new byte[0], 1, LZ4FrameOutputStream.DEFAULT_LEVEL)).length);
+  }
+
+  @Test
+  public void testCorruptedContentIsDetected() throws Exception {
+    byte[] data = TestData.random(100000);
+    byte[] compressed = compress(data, 1, 1);
+
+    // A flipped bit in a stored block only shows in the content checksum
+    //
+    compressed[1000] ^= 0x10;
+    try {
+      decompress(compressed);
+      fail("The content checksum should not match");
+    } catch(IOException e) {
+      // expected
+    }
+  }
+
+  private byte[] compress(byte[] data, int nrThreads, int level) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    LZ4FrameOutputStream lz4os = new LZ4FrameOutputStream(out, executor, nrThreads, level);
+    lz4os.write(data);
+    lz4os.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] compressed) throws IOException {
+    return IOUtils.toByteArray(new LZ4FrameInputStream(new ByteArrayInputStream(compressed)));
+  }
+}
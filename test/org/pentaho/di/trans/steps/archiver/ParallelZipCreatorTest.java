@@ -0,0 +1,183 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelZipCreatorTest {
+
+  private static final long LAST_MODIFIED = 1400000000000L;
+
+  private ExecutorService executor;
+  private File zipFile;
+
+  @Before
+  public void setUp() throws IOException {
+    executor = Executors.newFixedThreadPool(3);
+    zipFile = File.createTempFile("archive", ".zip");
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    zipFile.delete();
+  }
+
+  @Test
+  public void testRoundTripOfDeflatedStoredAndSpilledEntries() throws Exception {
+    byte[][] contents = new byte[][] {
+        TestData.text(100*1024),
+        TestData.random(50*1024),
+        new byte[0],
+        TestData.text(3*1024*1024),
+        TestData.random(200*1024),
+    };
+    boolean[] stored = new boolean[] { false, true, false, false, false };
+
+    // A small spill threshold sends the larger entries through temporary files
+    //
+    ParallelZipCreator creator = new ParallelZipCreator(new FileOutputStream(zipFile), executor, 3, Deflater.DEFAULT_COMPRESSION, 64*1024);
+    for (int i=0;i<contents.length;i++) {
+      creator.addEntry("folder/entry"+i+".log", LAST_MODIFIED, stored[i], supplier(contents[i]));
+    }
+    creator.close();
+
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      List<ZipEntry> entries = list(zip);
+      assertEquals(contents.length, entries.size());
+      for (int i=0;i<contents.length;i++) {
+        ZipEntry entry = entries.get(i);
+        assertEquals("folder/entry"+i+".log", entry.getName());
+        assertEquals(stored[i] ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+        assertEquals(contents[i].length, entry.getSize());
+        assertEquals(crc(contents[i]), entry.getCrc());
+        assertEquals(LAST_MODIFIED/2000, entry.getTime()/2000);
+        assertArrayEquals(contents[i], read(zip, entry));
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  @Test
+  public void testMoreThan65535EntriesUseZip64() throws Exception {
+    int nrEntries = 70000;
+    ParallelZipCreator creator = new ParallelZipCreator(new FileOutputStream(zipFile), executor, 3);
+    for (int i=0;i<nrEntries;i++) {
+      creator.addEntry("entry"+i, LAST_MODIFIED, true, supplier(Integer.toString(i).getBytes("UTF-8")));
+    }
+    creator.close();
+
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      assertEquals(nrEntries, zip.size());
+      for (int i : new int[] { 0, 65535, nrEntries-1 }) {
+        assertArrayEquals(Integer.toString(i).getBytes("UTF-8"), read(zip, zip.getEntry("entry"+i)));
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  @Test
+  public void testResumeAnArchiveCutBackToAnEntry() throws Exception {
+    byte[][] contents = new byte[][] { TestData.text(80*1024), TestData.text(120*1024), TestData.random(30*1024), TestData.text(10*1024) };
+
+    ParallelZipCreator creator = new ParallelZipCreator(new FileOutputStream(zipFile), executor, 2);
+    for (int i=0;i<3;i++) {
+      creator.addEntry("entry"+i, LAST_MODIFIED, supplier(contents[i]));
+    }
+    creator.close();
+
+    // Cut off in the third entry, the way a killed JVM leaves it behind: the first two entries are kept
+    //
+    List<ParallelZipCreator.WrittenEntry> written = new ArrayList<ParallelZipCreator.WrittenEntry>(creator.getWrittenEntries().subList(0, 2));
+    long offset = creator.getWrittenEntries().get(2).getOffset();
+    RandomAccessFile file = new RandomAccessFile(zipFile, "rw");
+    try {
+      file.setLength(offset+100);
+    } finally {
+      file.close();
+    }
+
+    // The journal knows where the second entry ended, the archive is cut back to it
+    //
+    file = new RandomAccessFile(zipFile, "rw");
+    try {
+      file.setLength(offset);
+    } finally {
+      file.close();
+    }
+    creator = new ParallelZipCreator(new FileOutputStream(zipFile, true), executor, 2);
+    creator.resume(written, offset);
+    creator.addEntry("entry2", LAST_MODIFIED, supplier(contents[2]));
+    creator.addEntry("entry3", LAST_MODIFIED, supplier(contents[3]));
+    creator.close();
+    assertEquals(4, creator.getWrittenEntries().size());
+
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      List<ZipEntry> entries = list(zip);
+      assertEquals(4, entries.size());
+      for (int i=0;i<contents.length;i++) {
+        assertEquals("entry"+i, entries.get(i).getName());
+        assertArrayEquals(contents[i], read(zip, entries.get(i)));
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static ParallelZipCreator.InputStreamSupplier supplier(final byte[] data) {
+    return new ParallelZipCreator.InputStreamSupplier() {
+      public InputStream get() {
+        return new ByteArrayInputStream(data);
+      }
+    };
+  }
+
+  private static List<ZipEntry> list(ZipFile zip) {
+    List<ZipEntry> entries = new ArrayList<ZipEntry>();
+    Enumeration<? extends ZipEntry> enumeration = zip.entries();
+    while (enumeration.hasMoreElements()) {
+      entries.add(enumeration.nextElement());
+    }
+    return entries;
+  }
+
+  private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+    InputStream in = zip.getInputStream(entry);
+    try {
+      return IOUtils.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static long crc(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+}
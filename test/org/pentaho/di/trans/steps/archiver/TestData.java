@@ -0,0 +1,41 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Data to compress in the tests: repetitive JSON log lines like the files the step archives, and random bytes which don't compress.
+ * The same seed gives the same data in every run.
+ */
+public class TestData {
+
+  private static final String[] LEVELS = new String[] { "DEBUG", "INFO", "INFO", "INFO", "WARN", "ERROR" };
+  private static final String[] HOSTS = new String[] { "etl-01", "etl-02", "db-primary", "db-replica" };
+  private static final String[] MESSAGES = new String[] {
+    "Finished processing of the transformation", "Opening a connection to the database", "Row count of the batch",
+    "Retrying the request after a timeout", "Flushing the output buffers", "Checkpoint written",
+  };
+
+  public static byte[] text(int length) {
+    Random random = new Random(length);
+    StringBuilder text = new StringBuilder(length+256);
+    long time = 1600000000000L;
+    while (text.length()<length) {
+      time += random.nextInt(2000);
+      text.append("{\"time\":").append(time)
+        .append(",\"level\":\"").append(LEVELS[random.nextInt(LEVELS.length)])
+        .append("\",\"host\":\"").append(HOSTS[random.nextInt(HOSTS.length)])
+        .append("\",\"message\":\"").append(MESSAGES[random.nextInt(MESSAGES.length)])
+        .append("\",\"rows\":").append(random.nextInt(100000))
+        .append(",\"id\":\"").append(Long.toHexString(random.nextLong())).append("\"}\n");
+    }
+    return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), length);
+  }
+
+  public static byte[] random(int length) {
+    byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+}
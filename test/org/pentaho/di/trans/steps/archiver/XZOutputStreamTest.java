@@ -0,0 +1,106 @@
+package org.pentaho.di.trans.steps.archiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.tukaani.xz.XZInputStream;
+
+public class XZOutputStreamTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testRoundTripOfSeveralBlocks() throws Exception {
+    byte[] data = TestData.text(9*1024*1024+123);
+    byte[] compressed = compress(data, 4, XZOutputStream.DEFAULT_LEVEL);
+    assertArrayEquals(data, decompress(compressed));
+    assertTrue("JSON lines should shrink at least 5 times, got "+compressed.length, compressed.length<data.length/5);
+  }
+
+  @Test
+  public void testRoundTripAtEveryLevel() throws Exception {
+    byte[] data = TestData.text(300*1024);
+    for (int level=1;level<=XZOutputStream.MAX_LEVEL;level++) {
+      assertArrayEquals("level "+level, data, decompress(compress(data, 2, level)));
+    }
+  }
+
+  @Test
+  public void testRoundTripOfIncompressibleData() throws Exception {
+    byte[] data = TestData.random(5*1024*1024);
+    assertArrayEquals(data, decompress(compress(data, 3, 1)));
+  }
+
+  @Test
+  public void testRoundTripOfSmallWrites() throws Exception {
+    byte[] data = TestData.text(100*1024);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XZOutputStream xzos = new XZOutputStream(out, executor, 1, 3);
+    for (byte b : data) {
+      xzos.write(b);
+    }
+    xzos.close();
+    assertArrayEquals(data, decompress(out.toByteArray()));
+  }
+
+  @Test
+  public void testEmptyStream() throws Exception {
+    assertEquals(0, decompress(compress(new byte[0], 1, XZOutputStream.DEFAULT_LEVEL)).length);
+  }
+
+  @Test
+  public void testConcatenatedStreams() throws Exception {
+    // Journaled archives are written as a stream per checkpoint
+    //
+    byte[] first = TestData.text(50000);
+    byte[] second = TestData.random(70000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(compress(first, 2, 6));
+    out.write(compress(second, 2, 6));
+    byte[] both = Arrays.copyOf(first, first.length+second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    assertArrayEquals(both, decompress(out.toByteArray()));
+  }
+
+  @Test
+  public void testDictionarySizeProperty() {
+    assertEquals(0, XZOutputStream.getDictionarySizeProperty(4096));
+    assertEquals(16, XZOutputStream.getDictionarySizeProperty(1024*1024));
+    assertEquals(17, XZOutputStream.getDictionarySizeProperty(1024*1024+1));
+    assertEquals(20, XZOutputStream.getDictionarySizeProperty(4*1024*1024));
+  }
+
+  private byte[] compress(byte[] data, int nrThreads, int level) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    XZOutputStream xzos = new XZOutputStream(out, executor, nrThreads, level);
+    xzos.write(data);
+    xzos.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] compressed) throws IOException {
+    return IOUtils.toByteArray(new XZInputStream(new ByteArrayInputStream(compressed)));
+  }
+}